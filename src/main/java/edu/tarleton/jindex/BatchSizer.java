@@ -0,0 +1,260 @@
+package edu.tarleton.jindex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The class that decides where a batch of files ends. A batch ends after
+ * batchFileSize files or before the estimated size of its TRIE exceeds the
+ * target size. The size of a TRIE is known only after the batch is parsed, so
+ * the batches are cut by the size of the source files, which is converted by
+ * the ratio (bytes of the TRIE per byte of source) observed in the previous
+ * batches. A file is never split, so a batch of one large file can exceed the
+ * target.
+ *
+ * The memory budget (the property batchMemoryBudget in megabytes, 0 for
+ * none) is the total for the batches on their way through the pipeline. A
+ * batch reserves its estimated size before it enters the pipeline and waits
+ * while the reservations would exceed the budget (unless no other batch is
+ * on its way), and the reservation is released when the batch is added to
+ * the index. The target is a quarter of the budget, so that several batches
+ * can be parsed at once. In the adaptive mode (the property adaptiveBatches),
+ * the target starts at a quarter of the budget (or of the maximum heap if
+ * there is no budget) and is tuned by the merge time per file: it changes by
+ * a quarter in the same direction while the merge time per file falls and
+ * the direction is reversed when it rises. The target never exceeds the
+ * budget.
+ *
+ * The sizes are estimated for a 64-bit JVM with compressed references.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class BatchSizer {
+
+    public static final int REFERENCE = 4;
+    public static final int OBJECT_HEADER = 12;
+    public static final int ARRAY_HEADER = 16;
+    /**
+     * The size of a position and its start and end. The start and end of the
+     * method are shared by the statements of the method.
+     */
+    public static final long POS_BYTES = objectBytes(6 * REFERENCE) + 2 * objectBytes(8);
+    /**
+     * The size of an entry of a hash map (without the key and the value).
+     */
+    public static final long MAP_ENTRY_BYTES = objectBytes(4 + 3 * REFERENCE) + 2 * REFERENCE;
+    private static final double INITIAL_RATIO = 40.0;
+    private static final long MIN_TARGET = 1L << 20;
+    private static final double STEP = 1.25;
+    private final int maxFiles;
+    private final long memoryBudget;
+    private final boolean adaptive;
+    private final List<Record> records = new ArrayList<>();
+    private double ratio = INITIAL_RATIO;
+    private boolean calibrated;
+    private long target;
+    private double step = STEP;
+    private double lastCost = -1.0;
+    private long inFlight;
+    private long maxInFlight;
+
+    public BatchSizer(int maxFiles) {
+        this(maxFiles, 0L, false);
+    }
+
+    public BatchSizer(int maxFiles, long memoryBudget, boolean adaptive) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("invalid memory budget: " + memoryBudget);
+        }
+        this.maxFiles = Math.max(1, maxFiles);
+        this.adaptive = adaptive;
+        if (adaptive && memoryBudget == 0L) {
+            memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+        }
+        this.memoryBudget = memoryBudget;
+        target = Math.min(Math.max(MIN_TARGET, memoryBudget / 4), memoryBudget);
+    }
+
+    /**
+     * Creates the sizer from the properties batchFileSize, batchMemoryBudget,
+     * and adaptiveBatches. If there is a budget, the number of files is not
+     * limited unless batchFileSize is given.
+     */
+    public static BatchSizer fromConf(Properties conf) {
+        long budget = Long.parseLong(conf.getProperty("batchMemoryBudget", "0")) << 20;
+        boolean adaptive = Boolean.parseBoolean(conf.getProperty("adaptiveBatches"));
+        String defaultFiles = (budget > 0L || adaptive) ? Integer.toString(Integer.MAX_VALUE) : "1000";
+        int maxFiles = Integer.parseInt(conf.getProperty("batchFileSize", defaultFiles));
+        return new BatchSizer(maxFiles, budget, adaptive);
+    }
+
+    /**
+     * Returns true if the size of the TRIE is estimated, i.e. the batches are
+     * cut by the size of the files.
+     */
+    public boolean isBudgeted() {
+        return memoryBudget > 0L;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    /**
+     * Returns true if the batch of the given number of files and the given
+     * size of source exceeds the limits.
+     */
+    public synchronized boolean exceeds(int files, long sourceBytes) {
+        return files > maxFiles || (isBudgeted() && sourceBytes * ratio > target);
+    }
+
+    /**
+     * Reserves the estimated size of the TRIE of the batch of the given size
+     * of source. The reservation waits while it would exceed the budget and
+     * some other batch is reserved. Returns the reserved number of bytes.
+     */
+    public synchronized long reserve(long sourceBytes) throws InterruptedException {
+        if (!isBudgeted()) {
+            return 0L;
+        }
+        long bytes = (long) (sourceBytes * ratio);
+        while (inFlight > 0L && inFlight + bytes > memoryBudget) {
+            wait();
+        }
+        inFlight += bytes;
+        maxInFlight = Math.max(maxInFlight, inFlight);
+        return bytes;
+    }
+
+    /**
+     * Releases the bytes reserved for a batch.
+     */
+    public synchronized void release(long bytes) {
+        inFlight -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Returns the largest total of the reservations.
+     */
+    public synchronized long getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Records the batch that was added to the index. The estimated size of
+     * its TRIE calibrates the ratio and, in the adaptive mode, the merge time
+     * tunes the target.
+     */
+    public synchronized void record(int files, long sourceBytes, long trieBytes, long mergeNanos) {
+        if (files == 0) {
+            return;
+        }
+        records.add(new Record(files, sourceBytes, trieBytes, mergeNanos, target));
+        if (sourceBytes > 0L && trieBytes > 0L) {
+            double r = (double) trieBytes / sourceBytes;
+            ratio = calibrated ? (ratio + r) / 2 : r;
+            calibrated = true;
+        }
+        if (adaptive) {
+            double cost = (double) mergeNanos / files;
+            if (lastCost >= 0.0 && cost > lastCost) {
+                step = 1.0 / step;
+            }
+            lastCost = cost;
+            target = Math.min(memoryBudget, Math.max(MIN_TARGET, (long) (target * step)));
+        }
+    }
+
+    public synchronized double getRatio() {
+        return ratio;
+    }
+
+    public synchronized long getTarget() {
+        return target;
+    }
+
+    public synchronized List<Record> getRecords() {
+        return new ArrayList<>(records);
+    }
+
+    public static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Returns the size of an object with the given size of fields.
+     */
+    public static long objectBytes(int fieldBytes) {
+        return align(OBJECT_HEADER + fieldBytes);
+    }
+
+    /**
+     * Returns the size of an array of references.
+     */
+    public static long arrayBytes(int length) {
+        return align(ARRAY_HEADER + (long) REFERENCE * length);
+    }
+
+    /**
+     * Returns the size of a string of one-byte characters.
+     */
+    public static long stringBytes(String s) {
+        return objectBytes(REFERENCE + 4 + 2) + align(ARRAY_HEADER + s.length());
+    }
+
+    /**
+     * The batch that was added to the index.
+     */
+    public static class Record {
+
+        private final int files;
+        private final long sourceBytes;
+        private final long trieBytes;
+        private final long mergeNanos;
+        private final long target;
+
+        Record(int files, long sourceBytes, long trieBytes, long mergeNanos, long target) {
+            this.files = files;
+            this.sourceBytes = sourceBytes;
+            this.trieBytes = trieBytes;
+            this.mergeNanos = mergeNanos;
+            this.target = target;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public long getSourceBytes() {
+            return sourceBytes;
+        }
+
+        public long getTrieBytes() {
+            return trieBytes;
+        }
+
+        public long getMergeMillis() {
+            return mergeNanos / 1000000L;
+        }
+
+        public long getTarget() {
+            return target;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d\t%d\t%d\t%d\t%d", files, sourceBytes >> 10,
+                    trieBytes >> 10, getMergeMillis(), target >> 10);
+        }
+    }
+}
@@ -98,6 +98,11 @@ public class CountingVisitor extends VoidVisitorAdapter<Void> {
         return nodes;
     }
 
+    public void add(CountingVisitor that) {
+        lines += that.lines;
+        nodes += that.nodes;
+    }
+
     @Override
     public void visit(ArrayAccessExpr n, Void arg) {
         nodes++;
@@ -1,12 +1,31 @@
 package edu.tarleton.jindex;
 
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseProblemException;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ParseStart;
 import com.github.javaparser.ParserConfiguration;
 import com.github.javaparser.ParserConfiguration.LanguageLevel;
+import com.github.javaparser.Providers;
+import com.github.javaparser.ast.CompilationUnit;
+import edu.tarleton.jindex.IndexPipeline.SourceFile;
+import edu.tarleton.jindex.index.MappedFile;
 import edu.tarleton.jindex.index.compressed.persistent.CPEngine;
 import edu.tarleton.jindex.index.plain.persistent.PlainPersistentEngine;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Properties;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * The class that builds the index and finds the clones.
@@ -19,11 +38,20 @@ public abstract class Engine {
     protected final String sourceDir;
     protected final boolean printStatistics;
     protected final boolean printTrie;
+    protected final boolean detectClones;
+    protected final boolean sequenceClones;
+    protected final boolean serve;
+    protected final int minCloneSize;
+    protected final int maxCloneSize;
     protected final boolean verbose;
     protected final boolean preprocessUnicodeEscapes;
     protected final String languageLevel;
     protected final String sourceEncoding;
     protected final ParserConfiguration parserConfiguration = new ParserConfiguration();
+    protected final int readerThreads;
+    protected final int pipelineQueueSize;
+    private final NormalizingVisitor normVisitor;
+    private final ThreadLocal<JavaParser> javaParsers;
     protected final CountingVisitor countingVisitor;
     protected final Statistics statistics;
     protected int fileCount;
@@ -33,11 +61,24 @@ public abstract class Engine {
         sourceDir = conf.getProperty("sourceDir");
         printStatistics = Boolean.parseBoolean(conf.getProperty("printStatistics"));
         printTrie = Boolean.parseBoolean(conf.getProperty("printTrie"));
+        detectClones = Boolean.parseBoolean(conf.getProperty("detectClones"));
+        sequenceClones = Boolean.parseBoolean(conf.getProperty("sequenceClones"));
+        serve = Boolean.parseBoolean(conf.getProperty("serve"));
+        minCloneSize = Integer.parseInt(conf.getProperty("minCloneSize", "1"));
+        maxCloneSize = Integer.parseInt(conf.getProperty("maxCloneSize", Integer.toString(Integer.MAX_VALUE)));
         verbose = Boolean.parseBoolean(conf.getProperty("verbose"));
         preprocessUnicodeEscapes = Boolean.parseBoolean(conf.getProperty("preprocessUnicodeEscapes"));
         languageLevel = conf.getProperty("languageLevel", "JAVA_8");
         sourceEncoding = conf.getProperty("sourceEncoding", "UTF-8");
         prepareParserConfiguration();
+        readerThreads = Integer.parseInt(conf.getProperty("readerThreads", "1"));
+        pipelineQueueSize = Integer.parseInt(conf.getProperty("pipelineQueueSize", "0"));
+        normVisitor = new NormalizingVisitor(conf);
+        javaParsers = ThreadLocal.withInitial(() -> new JavaParser(parserConfiguration));
+        String limit = conf.getProperty("addressSpaceLimit");
+        if (limit != null) {
+            MappedFile.setAddressSpaceLimit(Long.parseLong(limit));
+        }
         countingVisitor = printStatistics ? new CountingVisitor() : null;
         statistics = printStatistics ? new Statistics() : null;
     }
@@ -55,7 +96,150 @@ public abstract class Engine {
         return compressed ? new CPEngine(conf) : new PlainPersistentEngine(conf);
     }
 
+    protected List<Path> listSourceFiles(String srcDir) throws IOException {
+        try (Stream<Path> paths = walkSourceFiles(srcDir)) {
+            return paths.collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Returns the lazily populated stream of the source files. The stream
+     * must be closed.
+     */
+    protected Stream<Path> walkSourceFiles(String srcDir) throws IOException {
+        Path path = Paths.get(srcDir);
+        return Files.walk(path)
+                .filter(Files::isRegularFile)
+                .filter(p -> p.toString().endsWith(".java"));
+    }
+
+    /**
+     * Creates the pipeline that reads, parses, and indexes the source files
+     * in batches. The batches are sized by the properties batchFileSize,
+     * batchMemoryBudget, and adaptiveBatches (see BatchSizer).
+     */
+    protected <B> IndexPipeline<B> createPipeline(int indexThreads) {
+        return new IndexPipeline<>(BatchSizer.fromConf(conf), readerThreads, indexThreads,
+                (pipelineQueueSize > 0) ? pipelineQueueSize : 2 * Math.max(1, indexThreads));
+    }
+
+    /**
+     * Parses the content of the source file, counts the nodes, and normalizes
+     * the compilation unit. Returns null if the file cannot be read or
+     * parsed. This can be called by several threads at once.
+     */
+    protected CompilationUnit parseFile(String srcDir, SourceFile file, CountingVisitor counter) {
+        String fn = file.getPath().toString().substring(srcDir.length());
+        if (fn.startsWith("/") || fn.startsWith("\\")) {
+            fn = fn.substring(1);
+        }
+        if (verbose) {
+            System.out.printf("processing %s...%n", fn);
+        }
+        if (file.getContent() == null) {
+            return null;
+        }
+        try {
+            Charset cs = parserConfiguration.getCharacterEncoding();
+            ParseResult<CompilationUnit> result = javaParsers.get().parse(ParseStart.COMPILATION_UNIT,
+                    Providers.provider(new String(file.getContent(), cs)));
+            if (!result.isSuccessful()) {
+                throw new ParseProblemException(result.getProblems());
+            }
+            CompilationUnit cu = result.getResult().get();
+            cu.setStorage(Paths.get(srcDir).normalize().resolve(fn), cs);
+            if (counter != null) {
+                cu.accept(counter, null);
+            }
+            cu.accept(normVisitor, null);
+            return cu;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     public abstract void perform() throws Exception;
 
-    public abstract List<Pos> find(String code) throws Exception;
+    /**
+     * Opens the index for queries. The searcher keeps the index open until
+     * it is closed.
+     */
+    public abstract Searcher openSearcher() throws Exception;
+
+    public List<Pos> find(String code) throws Exception {
+        try (Searcher searcher = openSearcher()) {
+            return searcher.find(code);
+        }
+    }
+
+    /**
+     * Finds several code snippets at once. The results are in the order of
+     * the snippets.
+     */
+    public List<List<Pos>> find(List<String> codes) throws Exception {
+        try (Searcher searcher = openSearcher()) {
+            long start = System.nanoTime();
+            List<List<Pos>> found = searcher.find(codes);
+            long nanos = Math.max(1L, System.nanoTime() - start);
+            if (verbose) {
+                System.out.printf("%d queries in %d ms (%.0f queries/s)%n",
+                        codes.size(), nanos / 1000000, codes.size() * 1e9 / nanos);
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Passes every clone class in the index to the consumer. Only the
+     * positions whose size (in lines) is between minSize and maxSize are
+     * considered. Returns the number of clone classes.
+     */
+    public abstract long detectClones(int minSize, int maxSize,
+            Consumer<List<Pos>> consumer) throws Exception;
+
+    /**
+     * Passes every clone class of sequences of two or more consecutive
+     * statements to the consumer. Only the fragments whose size (in lines) is
+     * between minSize and maxSize are considered. Returns the number of clone
+     * classes.
+     */
+    public abstract long detectSequenceClones(int minSize, int maxSize,
+            Consumer<List<Pos>> consumer) throws Exception;
+
+    /**
+     * Prints the clone classes to the file given by the cloneFile property or
+     * to the standard output. If the sequenceClones property is set, the
+     * clone classes of statement sequences are printed.
+     */
+    protected void printClones() throws Exception {
+        String cloneFile = conf.getProperty("cloneFile");
+        PrintWriter out = (cloneFile == null)
+                ? new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)))
+                : new PrintWriter(new BufferedWriter(new FileWriter(cloneFile)));
+        try {
+            long[] classes = new long[1];
+            Consumer<List<Pos>> consumer = clones -> {
+                classes[0]++;
+                out.printf("clone class %d (%d fragments):%n", classes[0], clones.size());
+                for (Pos pos : clones) {
+                    out.printf("  %s%n", pos);
+                }
+            };
+            if (sequenceClones) {
+                detectSequenceClones(minCloneSize, maxCloneSize, consumer);
+            } else {
+                detectClones(minCloneSize, maxCloneSize, consumer);
+            }
+            if (verbose) {
+                out.printf("%d clone classes%n", classes[0]);
+            }
+        } finally {
+            if (cloneFile == null) {
+                out.flush();
+            } else {
+                out.close();
+            }
+        }
+    }
 }
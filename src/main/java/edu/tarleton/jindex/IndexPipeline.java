@@ -0,0 +1,498 @@
+package edu.tarleton.jindex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+/**
+ * The pipeline that indexes the source files in four stages: the walker
+ * groups the paths into batches, the readers read the files, the parsers
+ * parse the files and build the index of each batch, and the index stage (the
+ * calling thread) adds the batches to the index in the order of the walk. The
+ * stages are connected by bounded queues, so a stage that is ahead waits
+ * until the next stage catches up. The batches that are parsed ahead of their
+ * turn wait for the index stage, so the walker emits a batch only when fewer
+ * than queueSize batches are on their way (the reorder window). The batches
+ * end where the batch sizer decides (see BatchSizer), the walker reserves the
+ * estimated size of every batch in the memory budget, and the sizer is told
+ * the estimated size and the merge time of every batch. For every stage, the
+ * pipeline records the number of files, the time spent working, and the time
+ * spent waiting for input and for room in the output queue.
+ *
+ * @param <B> the type of the index of a batch
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class IndexPipeline<B> {
+
+    /**
+     * The stage that adds the batches to the index.
+     */
+    public interface Sink<B> {
+
+        void accept(B batch) throws Exception;
+    }
+
+    private static final long POLL_MILLIS = 100L;
+    private final BatchSizer sizer;
+    private final int readerThreads;
+    private final int parserThreads;
+    private final Stage walk = new Stage("walk", 1);
+    private final Stage read;
+    private final Stage parse;
+    private final Stage index = new Stage("index", 1);
+    private final Channel paths;
+    private final Channel sources;
+    private final Channel parsed;
+    private final int windowSize;
+    private final Semaphore window;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private int maxAhead;
+
+    public IndexPipeline(int batchSize, int readerThreads, int parserThreads, int queueSize) {
+        this(new BatchSizer(batchSize), readerThreads, parserThreads, queueSize);
+    }
+
+    public IndexPipeline(BatchSizer sizer, int readerThreads, int parserThreads, int queueSize) {
+        this.sizer = sizer;
+        this.readerThreads = Math.max(1, readerThreads);
+        this.parserThreads = Math.max(1, parserThreads);
+        read = new Stage("read", this.readerThreads);
+        parse = new Stage("parse", this.parserThreads);
+        int capacity = Math.max(1, queueSize);
+        paths = new Channel("paths", capacity);
+        sources = new Channel("sources", capacity);
+        parsed = new Channel("parsed", capacity);
+        windowSize = capacity;
+        window = new Semaphore(capacity);
+    }
+
+    /**
+     * Indexes the files. The stream is closed when the walk is finished. The
+     * files that cannot be read are passed to the parsers without content.
+     */
+    public void run(Stream<Path> files, Function<List<SourceFile>, B> parser,
+            Sink<B> sink) throws Exception {
+        run(files, parser, b -> 0L, sink);
+    }
+
+    /**
+     * Indexes the files. The size of the index of every batch is estimated by
+     * sizeOf in the parse stage if the batches are cut by the memory budget.
+     */
+    public void run(Stream<Path> files, Function<List<SourceFile>, B> parser,
+            ToLongFunction<B> sizeOf, Sink<B> sink) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(1 + readerThreads + parserThreads);
+        try {
+            executor.execute(guard(() -> walk(files)));
+            AtomicInteger readers = new AtomicInteger(readerThreads);
+            for (int i = 0; i < readerThreads; i++) {
+                executor.execute(guard(() -> read(readers)));
+            }
+            AtomicInteger parsers = new AtomicInteger(parserThreads);
+            for (int i = 0; i < parserThreads; i++) {
+                executor.execute(guard(() -> parse(parser, sizeOf, parsers)));
+            }
+            index(sink);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface Task {
+
+        void run() throws Exception;
+    }
+
+    private Runnable guard(Task task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (InterruptedException e) {
+                // the pipeline is stopped
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        };
+    }
+
+    private void walk(Stream<Path> files) throws InterruptedException {
+        long seq = 0L;
+        try (Stream<Path> ff = files) {
+            Iterator<Path> it = ff.iterator();
+            long start = System.nanoTime();
+            List<Path> batch = new ArrayList<>();
+            long batchBytes = 0L;
+            while (it.hasNext()) {
+                Path path = it.next();
+                long size = sizer.isBudgeted() ? size(path) : 0L;
+                if (!batch.isEmpty() && sizer.exceeds(batch.size() + 1, batchBytes + size)) {
+                    walk.work(start, batch.size());
+                    emit(new Batch(seq++, batch, batchBytes));
+                    batch = new ArrayList<>();
+                    batchBytes = 0L;
+                    start = System.nanoTime();
+                }
+                batch.add(path);
+                batchBytes += size;
+            }
+            if (!batch.isEmpty()) {
+                walk.work(start, batch.size());
+                emit(new Batch(seq, batch, batchBytes));
+            }
+        }
+        for (int i = 0; i < readerThreads; i++) {
+            paths.put(Batch.END, walk);
+        }
+    }
+
+    /**
+     * Puts the batch into the pipeline when there is room in the reorder
+     * window and in the memory budget.
+     */
+    private void emit(Batch b) throws InterruptedException {
+        long start = System.nanoTime();
+        window.acquire();
+        b.reservedBytes = sizer.reserve(b.sourceBytes);
+        walk.blockedNanos.add(System.nanoTime() - start);
+        paths.put(b, walk);
+    }
+
+    private static long size(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            // the reader reports the file
+            return 0L;
+        }
+    }
+
+    private void read(AtomicInteger readers) throws InterruptedException {
+        while (true) {
+            Batch b = paths.take(read);
+            if (b == Batch.END) {
+                break;
+            }
+            long start = System.nanoTime();
+            List<SourceFile> ff = new ArrayList<>(b.paths.size());
+            for (Path path : b.paths) {
+                byte[] content = null;
+                try {
+                    content = Files.readAllBytes(path);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                ff.add(new SourceFile(path, content));
+            }
+            read.work(start, ff.size());
+            sources.put(b.withFiles(ff), read);
+        }
+        if (readers.decrementAndGet() == 0) {
+            for (int i = 0; i < parserThreads; i++) {
+                sources.put(Batch.END, read);
+            }
+        }
+    }
+
+    private void parse(Function<List<SourceFile>, B> parser, ToLongFunction<B> sizeOf,
+            AtomicInteger parsers) throws InterruptedException {
+        while (true) {
+            Batch b = sources.take(parse);
+            if (b == Batch.END) {
+                break;
+            }
+            long start = System.nanoTime();
+            B result = parser.apply(b.files);
+            long trieBytes = sizer.isBudgeted() ? sizeOf.applyAsLong(result) : 0L;
+            parse.work(start, b.files.size());
+            parsed.put(b.withResult(result, trieBytes), parse);
+        }
+        if (parsers.decrementAndGet() == 0) {
+            parsed.put(Batch.END, parse);
+        }
+    }
+
+    /**
+     * Adds the batches to the index in the order of the walk. The batches
+     * that are parsed ahead of their turn wait in a map. A batch leaves the
+     * reorder window and releases its memory when it is added to the index.
+     */
+    @SuppressWarnings("unchecked")
+    private void index(Sink<B> sink) throws Exception {
+        Map<Long, Batch> ahead = new HashMap<>();
+        long next = 0L;
+        while (true) {
+            Batch b = parsed.poll(index);
+            if (b == null) {
+                Throwable e = failure.get();
+                if (e != null) {
+                    rethrow(e);
+                }
+                continue;
+            }
+            if (b == Batch.END) {
+                break;
+            }
+            ahead.put(b.seq, b);
+            maxAhead = Math.max(maxAhead, ahead.size());
+            while ((b = ahead.remove(next)) != null) {
+                long start = System.nanoTime();
+                sink.accept((B) b.result);
+                index.work(start, b.paths.size());
+                sizer.record(b.paths.size(), b.sourceBytes, b.trieBytes, System.nanoTime() - start);
+                sizer.release(b.reservedBytes);
+                window.release();
+                next++;
+            }
+        }
+        Throwable e = failure.get();
+        if (e != null) {
+            rethrow(e);
+        }
+        assert ahead.isEmpty();
+    }
+
+    private static void rethrow(Throwable e) throws Exception {
+        if (e instanceof Exception) {
+            throw (Exception) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        throw new AssertionError(e);
+    }
+
+    public BatchSizer getBatchSizer() {
+        return sizer;
+    }
+
+    public List<Stage> getStages() {
+        return Arrays.asList(walk, read, parse, index);
+    }
+
+    public List<Channel> getQueues() {
+        return Arrays.asList(paths, sources, parsed);
+    }
+
+    /**
+     * Returns the maximum number of batches on their way through the
+     * pipeline.
+     */
+    public int getReorderWindow() {
+        return windowSize;
+    }
+
+    /**
+     * Returns the maximum number of parsed batches that waited for the index
+     * stage (including the batch whose turn it was).
+     */
+    public int getMaxAhead() {
+        return maxAhead;
+    }
+
+    /**
+     * The source file and its content (or null if it cannot be read).
+     */
+    public static class SourceFile {
+
+        private final Path path;
+        private final byte[] content;
+
+        SourceFile(Path path, byte[] content) {
+            this.path = path;
+            this.content = content;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+    }
+
+    /**
+     * The batch of files on its way through the pipeline.
+     */
+    private static class Batch {
+
+        static final Batch END = new Batch(-1L, null, 0L);
+        final long seq;
+        final List<Path> paths;
+        final long sourceBytes;
+        List<SourceFile> files;
+        Object result;
+        long trieBytes;
+        long reservedBytes;
+
+        Batch(long seq, List<Path> paths, long sourceBytes) {
+            this.seq = seq;
+            this.paths = paths;
+            this.sourceBytes = sourceBytes;
+        }
+
+        Batch withFiles(List<SourceFile> files) {
+            this.files = files;
+            return this;
+        }
+
+        Batch withResult(Object result, long trieBytes) {
+            this.files = null;
+            this.result = result;
+            this.trieBytes = trieBytes;
+            return this;
+        }
+    }
+
+    /**
+     * The metrics of a stage. The times are summed over the threads of the
+     * stage.
+     */
+    public static class Stage {
+
+        private final String name;
+        private final int threads;
+        private final LongAdder files = new LongAdder();
+        private final LongAdder busyNanos = new LongAdder();
+        private final LongAdder starvedNanos = new LongAdder();
+        private final LongAdder blockedNanos = new LongAdder();
+
+        Stage(String name, int threads) {
+            this.name = name;
+            this.threads = threads;
+        }
+
+        void work(long start, int count) {
+            busyNanos.add(System.nanoTime() - start);
+            files.add(count);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public long getFiles() {
+            return files.sum();
+        }
+
+        public long getBusyMillis() {
+            return busyNanos.sum() / 1000000L;
+        }
+
+        /**
+         * Returns the time spent waiting for input.
+         */
+        public long getStarvedMillis() {
+            return starvedNanos.sum() / 1000000L;
+        }
+
+        /**
+         * Returns the time spent waiting for room in the output queue.
+         */
+        public long getBlockedMillis() {
+            return blockedNanos.sum() / 1000000L;
+        }
+
+        /**
+         * Returns the number of files per second of work of one thread.
+         */
+        public double getThroughput() {
+            long nanos = busyNanos.sum();
+            return (nanos == 0L) ? 0.0 : files.sum() * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s\t%d\t%d\t%d\t%d\t%d\t%.0f", name, threads, getFiles(),
+                    getBusyMillis(), getStarvedMillis(), getBlockedMillis(), getThroughput());
+        }
+    }
+
+    /**
+     * The bounded queue between two stages. The depth of the queue is
+     * sampled whenever a batch is put into it.
+     */
+    public static class Channel {
+
+        private final String name;
+        private final BlockingQueue<Batch> queue;
+        private final LongAdder samples = new LongAdder();
+        private final LongAdder depthSum = new LongAdder();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+
+        Channel(String name, int capacity) {
+            this.name = name;
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void put(Batch b, Stage producer) throws InterruptedException {
+            int depth = queue.size();
+            samples.increment();
+            depthSum.add(depth);
+            maxDepth.accumulateAndGet(depth, Math::max);
+            long start = System.nanoTime();
+            queue.put(b);
+            producer.blockedNanos.add(System.nanoTime() - start);
+        }
+
+        Batch take(Stage consumer) throws InterruptedException {
+            long start = System.nanoTime();
+            Batch b = queue.take();
+            consumer.starvedNanos.add(System.nanoTime() - start);
+            return b;
+        }
+
+        Batch poll(Stage consumer) throws InterruptedException {
+            long start = System.nanoTime();
+            Batch b = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            consumer.starvedNanos.add(System.nanoTime() - start);
+            return b;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getCapacity() {
+            return queue.size() + queue.remainingCapacity();
+        }
+
+        public int getMaxDepth() {
+            return maxDepth.get();
+        }
+
+        public double getAverageDepth() {
+            long n = samples.sum();
+            return (n == 0L) ? 0.0 : (double) depthSum.sum() / n;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s\t%d\t%.1f\t%d", name, getCapacity(),
+                    getAverageDepth(), getMaxDepth());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package edu.tarleton.jindex;
+
+/**
+ * The histogram of latencies (in microseconds). Values below 64 are counted
+ * exactly, larger values in 32 buckets per power of two, so a percentile is
+ * accurate within about 3% and the histogram has a fixed size.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class LatencyHistogram {
+
+    private static final int EXACT = 64;
+    private static final int SUB_BUCKETS = 32;
+    private final long[] counts = new long[EXACT + (64 - 6) * SUB_BUCKETS];
+    private long total;
+    private long max;
+
+    public synchronized void record(long nanos) {
+        long micros = Math.max(0L, nanos / 1000L);
+        counts[index(micros)]++;
+        total++;
+        max = Math.max(max, micros);
+    }
+
+    public synchronized long getCount() {
+        return total;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the latency (in microseconds) below which the given percentage
+     * of the recorded values falls.
+     */
+    public synchronized long getPercentile(double percent) {
+        if (total == 0L) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(percent / 100.0 * total));
+        long seen = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - 5;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return EXACT + (msb - 6) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < EXACT) {
+            return index;
+        }
+        int msb = (index - EXACT) / SUB_BUCKETS + 6;
+        int sub = (index - EXACT) % SUB_BUCKETS;
+        int shift = msb - 5;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("queries: %d, p50: %d us, p90: %d us, p99: %d us, max: %d us",
+                total, getPercentile(50), getPercentile(90), getPercentile(99), max);
+    }
+}
@@ -2,6 +2,7 @@ package edu.tarleton.jindex;
 
 import com.github.javaparser.Position;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The representation of a position in the source code.
@@ -10,7 +11,7 @@ import java.util.Objects;
  */
 public class Pos {
 
-    private static int count;
+    private static final AtomicInteger count = new AtomicInteger();
     private final String project;
     private final String file;
     private final Position start;
@@ -26,11 +27,11 @@ public class Pos {
         this.end = end;
         this.methodStart = methodStart;
         this.methodEnd = methodEnd;
-        count++;
+        count.incrementAndGet();
     }
 
     public static int getCount() {
-        return count;
+        return count.get();
     }
 
     public String getProject() {
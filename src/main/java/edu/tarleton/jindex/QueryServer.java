@@ -0,0 +1,233 @@
+package edu.tarleton.jindex;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server that keeps the index open and answers queries. A query is a
+ * code snippet terminated by an empty line (or the end of input), so the
+ * snippet must not contain empty lines. The answer is the number of
+ * positions followed by the positions, one per line. The line :stats prints
+ * the latencies and :quit ends the session. Without serverPort, the server
+ * reads the standard input and writes to the standard output. Otherwise, it
+ * accepts connections on the loopback interface and serves every connection
+ * in its own thread until it is closed (or the JVM shuts down). When the
+ * server is closed, it stops accepting connections, ends the sessions after
+ * the queries in progress, and waits for them before the index is closed.
+ * When the JVM shuts down, it waits for the server at most STOP_SECONDS. The
+ * standard input cannot be ended, so the server that reads it is not waited
+ * for.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class QueryServer implements AutoCloseable {
+
+    public static final long STOP_SECONDS = 5L;
+    private final Engine engine;
+    private final String serverPort;
+    private final int serverThreads;
+    private final boolean verbose;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final Set<Socket> sessions = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile ServerSocket server;
+    private volatile boolean closed;
+
+    public QueryServer(Engine engine, Properties conf) {
+        this.engine = engine;
+        serverPort = conf.getProperty("serverPort");
+        serverThreads = Integer.parseInt(conf.getProperty("serverThreads", "4"));
+        verbose = Boolean.parseBoolean(conf.getProperty("verbose"));
+    }
+
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Returns the port the server listens on or -1 if it does not listen.
+     */
+    public int getLocalPort() {
+        ServerSocket s = server;
+        return (s == null) ? -1 : s.getLocalPort();
+    }
+
+    public void run() throws Exception {
+        Thread hook = new Thread(this::stop);
+        Runtime.getRuntime().addShutdownHook(hook);
+        try (Searcher searcher = engine.openSearcher()) {
+            if (serverPort == null) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+                serve(searcher, in, out);
+            } else {
+                listen(searcher, Integer.parseInt(serverPort));
+            }
+        } finally {
+            stopped.countDown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // the JVM is shutting down
+            }
+        }
+        if (verbose) {
+            System.err.println(latencies);
+        }
+    }
+
+    private void listen(Searcher searcher, int port) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(serverThreads);
+        try (ServerSocket ss = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            server = ss;
+            if (verbose) {
+                System.err.printf("listening on port %d%n", ss.getLocalPort());
+            }
+            while (!closed) {
+                Socket socket;
+                try {
+                    socket = ss.accept();
+                } catch (SocketException e) {
+                    if (closed) {
+                        break;
+                    }
+                    throw e;
+                }
+                sessions.add(socket);
+                if (closed) {
+                    endSessions();
+                }
+                executor.execute(() -> {
+                    try (Socket s = socket;
+                            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                            PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+                        serve(searcher, in, out);
+                    } catch (IOException e) {
+                        if (!closed) {
+                            e.printStackTrace();
+                        }
+                    } finally {
+                        sessions.remove(socket);
+                    }
+                });
+            }
+        } finally {
+            server = null;
+            // the searcher is closed after the queries in progress are answered
+            executor.shutdown();
+            endSessions();
+            while (!executor.awaitTermination(1L, TimeUnit.SECONDS)) {
+                endSessions();
+            }
+        }
+    }
+
+    /**
+     * Ends the input of the sessions, so that every session ends after the
+     * query in progress.
+     */
+    private void endSessions() {
+        for (Socket s : sessions) {
+            try {
+                s.shutdownInput();
+            } catch (IOException e) {
+                // the session has ended
+            }
+        }
+    }
+
+    /**
+     * Stops the server. The queries in progress are answered and the index
+     * is closed by run.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        ServerSocket s = server;
+        if (s != null) {
+            s.close();
+        }
+        endSessions();
+    }
+
+    /**
+     * Stops the server when the JVM shuts down. Returns after the server
+     * stops, after STOP_SECONDS, or at once if the server reads the standard
+     * input.
+     */
+    void stop() {
+        try {
+            close();
+            if (serverPort != null) {
+                stopped.await(STOP_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (IOException | InterruptedException e) {
+            // the JVM is shutting down
+        }
+    }
+
+    /**
+     * Answers the queries read from the reader until the end of input or
+     * :quit.
+     */
+    public void serve(Searcher searcher, BufferedReader in, PrintWriter out) throws IOException {
+        List<String> code = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (code.isEmpty()) {
+                if (line.equals(":quit")) {
+                    break;
+                }
+                if (line.equals(":stats")) {
+                    out.println(latencies);
+                    out.flush();
+                    continue;
+                }
+            }
+            if (!line.isEmpty()) {
+                code.add(line);
+            } else if (!code.isEmpty()) {
+                answer(searcher, String.join("\n", code), out);
+                code.clear();
+                out.flush();
+            }
+        }
+        if (!code.isEmpty()) {
+            answer(searcher, String.join("\n", code), out);
+        }
+        out.flush();
+    }
+
+    private void answer(Searcher searcher, String code, PrintWriter out) {
+        long start = System.nanoTime();
+        List<Pos> found;
+        try {
+            found = searcher.find(code);
+        } catch (Exception e) {
+            out.printf("error: %s%n", e.getMessage());
+            return;
+        }
+        latencies.record(System.nanoTime() - start);
+        out.println(found.size());
+        for (Pos pos : found) {
+            out.println(pos);
+        }
+    }
+}
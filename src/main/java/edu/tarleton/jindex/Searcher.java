@@ -0,0 +1,32 @@
+package edu.tarleton.jindex;
+
+import java.util.List;
+
+/**
+ * The searcher that finds code snippets in an open index. One searcher can
+ * be used by several threads at once.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public interface Searcher extends AutoCloseable {
+
+    List<Pos> find(String code) throws Exception;
+
+    /**
+     * Finds several code snippets at once. The results are in the order of
+     * the snippets.
+     */
+    List<List<Pos>> find(List<String> codes) throws Exception;
+
+    /**
+     * Returns the number of occurrences of the code snippet, including the
+     * positions that were not stored because of the ingestion policy.
+     */
+    long count(String code) throws Exception;
+
+    /**
+     * Returns the statement that follows the statement or null if there is no
+     * such statement.
+     */
+    Pos getNextStmt(Pos stmt) throws Exception;
+}
@@ -5,7 +5,8 @@ import java.util.List;
 
 /**
  * The class that stores the number of AST nodes, the number of nodes and edges
- * of the TRIE, and the number of positions.
+ * of the TRIE, the number of positions, the metrics of the indexing
+ * pipeline, and the sizes of the batches.
  *
  * @author Zdenek Tronicek, tronicek@tarleton.edu
  */
@@ -13,12 +14,33 @@ public class Statistics {
 
     private static final int THRESHOLD = 20000;
     private final List<Record> records = new ArrayList<>();
+    private final List<IndexPipeline.Stage> stages = new ArrayList<>();
+    private final List<IndexPipeline.Channel> queues = new ArrayList<>();
+    private BatchSizer batchSizer;
 
     public void store(long lines, long astNodes, long trieNodes, long trieEdges, long positions) {
         Record rec = new Record(lines, astNodes, trieNodes, trieEdges, positions);
         records.add(rec);
     }
 
+    /**
+     * Stores the metrics of the pipeline stages and queues.
+     */
+    public void storePipeline(List<IndexPipeline.Stage> stages, List<IndexPipeline.Channel> queues) {
+        this.stages.clear();
+        this.stages.addAll(stages);
+        this.queues.clear();
+        this.queues.addAll(queues);
+    }
+
+    /**
+     * Stores the sizer of the batches, which keeps the batches that were
+     * added to the index.
+     */
+    public void storeBatchSizer(BatchSizer batchSizer) {
+        this.batchSizer = batchSizer;
+    }
+
     public void print(boolean persistent) {
         long last = 0;
         System.out.println("lines, AST nodes, trie nodes, trie edges, positions");
@@ -32,6 +54,27 @@ public class Statistics {
         System.out.println(rec);
         String lab = persistent ? "the number of batches" : "the number of files";
         System.out.printf("%s: %d%n", lab, records.size());
+        if (!stages.isEmpty()) {
+            System.out.println("stage, threads, files, busy ms, starved ms, blocked ms, files/s");
+            for (IndexPipeline.Stage st : stages) {
+                System.out.println(st);
+            }
+            System.out.println("queue, capacity, average depth, max depth");
+            for (IndexPipeline.Channel q : queues) {
+                System.out.println(q);
+            }
+        }
+        if (batchSizer != null && batchSizer.isBudgeted()) {
+            System.out.printf("memory budget of the batches: %d KB%s, max reserved: %d KB%n",
+                    batchSizer.getMemoryBudget() >> 10, batchSizer.isAdaptive() ? " (adaptive)" : "",
+                    batchSizer.getMaxInFlight() >> 10);
+            System.out.println("files, source KB, estimated KB, merge ms, target KB");
+            for (BatchSizer.Record batch : batchSizer.getRecords()) {
+                System.out.println(batch);
+            }
+            System.out.printf("estimated bytes per source byte: %.1f, final target: %d KB%n",
+                    batchSizer.getRatio(), batchSizer.getTarget() >> 10);
+        }
     }
 
     static class Record {
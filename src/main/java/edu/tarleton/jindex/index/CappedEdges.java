@@ -0,0 +1,99 @@
+package edu.tarleton.jindex.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The class that counts the positions that were not stored because their edge
+ * reached the limit of the ingestion policy. The edges are identified by the
+ * ids of their destination nodes. The file consists of the magic number, the
+ * number of edges, and the node id and the number of dropped positions of
+ * each edge.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class CappedEdges {
+
+    private static final int MAGIC = 0xCAFE4345;
+    private final Map<Long, Long> dropped = new HashMap<>();
+    private boolean modified;
+
+    public static void initialize(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    public static CappedEdges load(File file) throws IOException {
+        CappedEdges ce = new CappedEdges();
+        if (!file.exists()) {
+            return ce;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("invalid capped edge file: " + file);
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                ce.dropped.put(in.readLong(), in.readLong());
+            }
+        }
+        return ce;
+    }
+
+    public synchronized boolean isCapped(long destId) {
+        return dropped.containsKey(destId);
+    }
+
+    /**
+     * Returns the number of positions of the edge that were not stored.
+     */
+    public synchronized long getDropped(long destId) {
+        Long n = dropped.get(destId);
+        return (n == null) ? 0L : n;
+    }
+
+    public synchronized void addDropped(long destId, long count) {
+        dropped.merge(destId, count, Long::sum);
+        modified = true;
+    }
+
+    public synchronized int getEdgeCount() {
+        return dropped.size();
+    }
+
+    public synchronized long getDroppedCount() {
+        long n = 0L;
+        for (long d : dropped.values()) {
+            n += d;
+        }
+        return n;
+    }
+
+    public synchronized void store(File file) throws IOException {
+        if (!modified) {
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(dropped.size());
+            for (Map.Entry<Long, Long> e : dropped.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        modified = false;
+    }
+}
@@ -0,0 +1,243 @@
+package edu.tarleton.jindex.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The class that represents the state of the indexed source files. It is
+ * stored alongside the file paths and it is used for incremental indexing.
+ * For each file, it records the modification time, the size, and the hash of
+ * the content. It also records the ids of the files whose positions are no
+ * longer valid (the tombstones) and the next ids of the blocks in the index
+ * files, so that the index can be appended to. The state of an added or
+ * changed file is pending until the file is added to the index, so that a
+ * file that was not indexed (e.g. because it cannot be parsed) is indexed in
+ * the next run.
+ *
+ * The file consists of the magic number, the number of block ids and the ids,
+ * the number of tombstones and the file ids, and the number of files and the
+ * path, modification time, size, and hash of each file.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class FileStates {
+
+    private static final int MAGIC = 0xCAFE4653;
+    private final Map<String, State> states = new HashMap<>();
+    private final Map<String, State> pending = new HashMap<>();
+    private final Set<Long> tombstones = new HashSet<>();
+    private long[] nextIds = new long[0];
+    private boolean loaded;
+
+    public static void initialize(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    public static FileStates load(File file) throws IOException {
+        FileStates fs = new FileStates();
+        if (!file.exists()) {
+            return fs;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("invalid file state file: " + file);
+            }
+            fs.nextIds = new long[in.readInt()];
+            for (int i = 0; i < fs.nextIds.length; i++) {
+                fs.nextIds[i] = in.readLong();
+            }
+            int tc = in.readInt();
+            for (int i = 0; i < tc; i++) {
+                fs.tombstones.add(in.readLong());
+            }
+            int fc = in.readInt();
+            for (int i = 0; i < fc; i++) {
+                String path = in.readUTF();
+                State st = new State(in.readLong(), in.readLong(), in.readLong());
+                fs.states.put(path, st);
+            }
+        }
+        fs.loaded = true;
+        return fs;
+    }
+
+    /**
+     * Returns true if the state was loaded from the file, i.e. the index can
+     * be updated incrementally.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public boolean isEmpty() {
+        return states.isEmpty() && tombstones.isEmpty();
+    }
+
+    public long[] getNextIds() {
+        return nextIds;
+    }
+
+    public void setNextIds(long... nextIds) {
+        this.nextIds = nextIds;
+    }
+
+    public Set<Long> getTombstones() {
+        return tombstones;
+    }
+
+    public boolean isTombstone(long fileId) {
+        return !tombstones.isEmpty() && tombstones.contains(fileId);
+    }
+
+    public void addTombstone(long fileId) {
+        tombstones.add(fileId);
+    }
+
+    /**
+     * Compares the files with the recorded state and returns the files that
+     * were added or changed. The paths (relative to the root) of the files
+     * that were changed or deleted are added to removed. The state of the
+     * added and changed files is pending until it is committed.
+     */
+    public List<Path> scan(Path root, List<Path> files, List<String> removed) throws IOException {
+        Path absRoot = root.toAbsolutePath();
+        Set<String> seen = new HashSet<>();
+        List<Path> modified = new ArrayList<>();
+        for (Path file : files) {
+            String path = absRoot.relativize(file.toAbsolutePath()).toString();
+            seen.add(path);
+            long mtime = Files.getLastModifiedTime(file).toMillis();
+            long size = Files.size(file);
+            State st = states.get(path);
+            if (st != null && st.mtime == mtime && st.size == size) {
+                continue;
+            }
+            long hash = hash(file);
+            if (st != null && st.size == size && st.hash == hash) {
+                st.mtime = mtime;
+                continue;
+            }
+            if (st != null) {
+                states.remove(path);
+                removed.add(path);
+            }
+            pending.put(path, new State(mtime, size, hash));
+            modified.add(file);
+        }
+        List<String> deleted = new ArrayList<>();
+        for (String path : states.keySet()) {
+            if (!seen.contains(path)) {
+                deleted.add(path);
+            }
+        }
+        for (String path : deleted) {
+            states.remove(path);
+            removed.add(path);
+        }
+        return modified;
+    }
+
+    /**
+     * Commits the pending state of the files that were added to the index.
+     */
+    public void commit(Path root, List<Path> files) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Path absRoot = root.toAbsolutePath();
+        for (Path file : files) {
+            String path = absRoot.relativize(file.toAbsolutePath()).toString();
+            State st = pending.remove(path);
+            if (st != null) {
+                states.put(path, st);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of files whose state is pending.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private static long hash(Path file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buf = new byte[8192];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+        }
+        byte[] digest = md.digest();
+        long hash = 0L;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+
+    public void store(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(nextIds.length);
+            for (long id : nextIds) {
+                out.writeLong(id);
+            }
+            out.writeInt(tombstones.size());
+            for (long fileId : tombstones) {
+                out.writeLong(fileId);
+            }
+            out.writeInt(states.size());
+            for (Map.Entry<String, State> e : states.entrySet()) {
+                State st = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(st.mtime);
+                out.writeLong(st.size);
+                out.writeLong(st.hash);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        loaded = true;
+    }
+
+    private static class State {
+
+        private long mtime;
+        private final long size;
+        private final long hash;
+
+        State(long mtime, long size, long hash) {
+            this.mtime = mtime;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+}
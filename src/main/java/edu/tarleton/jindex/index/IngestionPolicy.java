@@ -0,0 +1,86 @@
+package edu.tarleton.jindex.index;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The policy that decides which positions are stored when a batch is added to
+ * the persistent TRIE. The statements of the skipped kinds (see
+ * Index.STATEMENTS) and the statements with fewer than minStatementTokens
+ * tokens are not stored. An edge stores at most maxEdgePositions positions
+ * (the first ones, which make a sample); the positions over the limit are
+ * only counted (see CappedEdges).
+ *
+ * The policy is configured by the properties skipStatements (a comma
+ * separated list of statement kinds), minStatementTokens, and
+ * maxEdgePositions. By default, all positions are stored.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class IngestionPolicy {
+
+    private final Set<String> skippedStatements;
+    private final int minStatementTokens;
+    private final int maxEdgePositions;
+
+    public IngestionPolicy() {
+        this(Collections.<String>emptySet(), 0, Integer.MAX_VALUE);
+    }
+
+    public IngestionPolicy(Set<String> skippedStatements, int minStatementTokens,
+            int maxEdgePositions) {
+        List<String> statements = Arrays.asList(Index.STATEMENTS);
+        for (String s : skippedStatements) {
+            if (!statements.contains(s)) {
+                throw new IllegalArgumentException("unknown statement: " + s);
+            }
+        }
+        if (maxEdgePositions < 0) {
+            throw new IllegalArgumentException("invalid maxEdgePositions: " + maxEdgePositions);
+        }
+        this.skippedStatements = new HashSet<>(skippedStatements);
+        this.minStatementTokens = minStatementTokens;
+        this.maxEdgePositions = maxEdgePositions;
+    }
+
+    public static IngestionPolicy fromConf(Properties conf) {
+        Set<String> skipped = new HashSet<>();
+        String s = conf.getProperty("skipStatements", "");
+        for (String stmt : s.split(",")) {
+            if (!stmt.trim().isEmpty()) {
+                skipped.add(stmt.trim());
+            }
+        }
+        int minTokens = Integer.parseInt(conf.getProperty("minStatementTokens", "0"));
+        int maxPositions = Integer.parseInt(conf.getProperty("maxEdgePositions",
+                Integer.toString(Integer.MAX_VALUE)));
+        return new IngestionPolicy(skipped, minTokens, maxPositions);
+    }
+
+    /**
+     * Returns true if the statements that start with the label are skipped.
+     */
+    public boolean isSkipped(String label) {
+        return !skippedStatements.isEmpty() && skippedStatements.contains(label);
+    }
+
+    /**
+     * Returns true if the statements of the given number of tokens are
+     * stored.
+     */
+    public boolean isStored(int tokens) {
+        return tokens >= minStatementTokens;
+    }
+
+    public boolean isCapped() {
+        return maxEdgePositions < Integer.MAX_VALUE;
+    }
+
+    public int getMaxEdgePositions() {
+        return maxEdgePositions;
+    }
+}
@@ -0,0 +1,232 @@
+package edu.tarleton.jindex.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The class that represents the dictionary of labels. The labels are numbered
+ * from 0 and a label is mapped to its id by a hash table.
+ *
+ * The dictionary file is mapped into memory when the dictionary is loaded, so
+ * that the labels are not decoded. The file consists of the magic number, the
+ * number of labels, the size of the hash table, the offsets of the labels
+ * (number of labels + 1), the hash table (label id + 1, 0 for an empty slot),
+ * and the labels in UTF-8. The older format, i.e. the sequence of labels
+ * written by writeUTF, can be loaded as well. The mapping is released when
+ * the dictionary is closed.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class LabelDictionary implements AutoCloseable {
+
+    private static final int MAGIC = 0xCAFE4C44;
+    private static final int HEADER_LENGTH = 12;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> added = new ArrayList<>();
+    private MappedByteBuffer mapped;
+    private int mappedCount;
+    private int tableSize;
+    private int tableStart;
+    private int dataStart;
+    private boolean modified;
+
+    public static LabelDictionary load(File file) throws IOException {
+        LabelDictionary dict = new LabelDictionary();
+        if (!file.exists()) {
+            return dict;
+        }
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (ch.size() >= HEADER_LENGTH) {
+                MappedByteBuffer buf = MappedFile.map(ch, MapMode.READ_ONLY, 0L, ch.size());
+                if (buf.getInt(0) == MAGIC) {
+                    dict.map(buf);
+                    return dict;
+                }
+                MappedFile.release(buf);
+            }
+        }
+        dict.loadOldFormat(file);
+        return dict;
+    }
+
+    private void map(MappedByteBuffer buf) {
+        mapped = buf;
+        mappedCount = buf.getInt(4);
+        tableSize = buf.getInt(8);
+        tableStart = HEADER_LENGTH + 4 * (mappedCount + 1);
+        dataStart = tableStart + 4 * tableSize;
+    }
+
+    private void loadOldFormat(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            try {
+                while (true) {
+                    String label = in.readUTF();
+                    ids.put(label, added.size());
+                    added.add(label);
+                }
+            } catch (EOFException e) {
+                // okay
+            }
+        }
+        modified = true;
+    }
+
+    public synchronized int size() {
+        return mappedCount + added.size();
+    }
+
+    public synchronized int getId(String label) {
+        Integer id = ids.get(label);
+        if (id != null) {
+            return id;
+        }
+        if (mapped == null) {
+            return -1;
+        }
+        int mid = findMapped(label);
+        if (mid >= 0) {
+            ids.put(label, mid);
+        }
+        return mid;
+    }
+
+    public synchronized int toId(String label) {
+        int id = getId(label);
+        if (id >= 0) {
+            return id;
+        }
+        id = size();
+        ids.put(label, id);
+        added.add(label);
+        modified = true;
+        return id;
+    }
+
+    public synchronized String getLabel(int id) {
+        if (id < mappedCount) {
+            int start = labelOffset(id);
+            int len = labelOffset(id + 1) - start;
+            byte[] b = new byte[len];
+            for (int i = 0; i < len; i++) {
+                b[i] = mapped.get(start + i);
+            }
+            return new String(b, StandardCharsets.UTF_8);
+        }
+        return added.get(id - mappedCount);
+    }
+
+    private int labelOffset(int id) {
+        return dataStart + mapped.getInt(HEADER_LENGTH + 4 * id);
+    }
+
+    private int findMapped(String label) {
+        byte[] b = label.getBytes(StandardCharsets.UTF_8);
+        int mask = tableSize - 1;
+        int slot = hash(label) & mask;
+        while (true) {
+            int v = mapped.getInt(tableStart + 4 * slot);
+            if (v == 0) {
+                return -1;
+            }
+            if (equalsAt(v - 1, b)) {
+                return v - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean equalsAt(int id, byte[] b) {
+        int start = labelOffset(id);
+        if (labelOffset(id + 1) - start != b.length) {
+            return false;
+        }
+        for (int i = 0; i < b.length; i++) {
+            if (mapped.get(start + i) != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(String label) {
+        int h = label.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Stores the dictionary. The file is written under a temporary name and
+     * then renamed, so that the mapping of the old file stays valid.
+     */
+    public synchronized void store(File file) throws IOException {
+        if (!modified && file.exists()) {
+            return;
+        }
+        int n = size();
+        int ts = 2;
+        while (ts < 2 * n) {
+            ts *= 2;
+        }
+        byte[][] bytes = new byte[n][];
+        int[] table = new int[ts];
+        for (int i = 0; i < n; i++) {
+            String label = getLabel(i);
+            bytes[i] = label.getBytes(StandardCharsets.UTF_8);
+            int slot = hash(label) & (ts - 1);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (ts - 1);
+            }
+            table[slot] = i + 1;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(n);
+            out.writeInt(ts);
+            int offset = 0;
+            for (int i = 0; i < n; i++) {
+                out.writeInt(offset);
+                offset += bytes[i].length;
+            }
+            out.writeInt(offset);
+            for (int i = 0; i < ts; i++) {
+                out.writeInt(table[i]);
+            }
+            for (int i = 0; i < n; i++) {
+                out.write(bytes[i]);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        modified = false;
+    }
+
+    /**
+     * Releases the mapping of the dictionary file. The dictionary must not be
+     * used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        MappedFile.release(mapped);
+        mapped = null;
+    }
+}
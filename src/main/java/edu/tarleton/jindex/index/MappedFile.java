@@ -1,35 +1,65 @@
 package edu.tarleton.jindex.index;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The class that represents the memory mapped file.
  *
+ * The file is divided into pages of the given size, but a page is mapped only
+ * as far as it is used. In the read-write mode, the mapping of a page (and the
+ * file) grows geometrically in chunks of CHUNK_SIZE bytes up to the page size.
+ * In the read-only mode, only the existing part of the file is mapped and the
+ * file is never extended. The total size of the mappings of all files is
+ * limited by the address space limit. The mappings are released when the file
+ * is closed, so the file must not be used after it has been closed.
+ *
+ * The methods that take an offset do not use the position, so they can be
+ * called concurrently (unless the file is written at the same time). The
+ * other methods use the position and must be confined to one thread, see
+ * cursor().
+ *
  * @author Zdenek Tronicek, tronicek@tarleton.edu
  */
 public class MappedFile implements AutoCloseable {
 
+    public static final int CHUNK_SIZE = 1 << 16;
+    private static final AtomicLong mappedBytes = new AtomicLong();
+    public static final long DEFAULT_ADDRESS_SPACE_LIMIT = 1L << 40;
+    private static volatile long addressSpaceLimit = DEFAULT_ADDRESS_SPACE_LIMIT;
+    private static final Unmapper unmapper = Unmapper.instance();
     private final FileChannel.MapMode mode;
     private final int pageSize;
     private final FileChannel channel;
-    private MappedByteBuffer[] buffers;
+    private final MappedFile root;
+    private volatile MappedByteBuffer[] buffers = new MappedByteBuffer[0];
+    private final List<MappedByteBuffer> retired = new ArrayList<>();
+    private boolean closed;
     private long position;
 
     public static MappedFile open(String fileName, FileChannel.MapMode mode, int pageSize) throws IOException {
         MappedFile mf = new MappedFile(fileName, mode, pageSize);
-        mf.mapFile();
+        mf.mapFileOrClose();
         return mf;
     }
 
     public static MappedFile initialize(String fileName, FileChannel.MapMode mode, int pageSize) throws IOException {
         MappedFile mf = new MappedFile(fileName, mode, pageSize);
         mf.truncate();
-        mf.mapFile();
+        mf.mapFileOrClose();
         return mf;
     }
 
@@ -37,87 +67,357 @@ public class MappedFile implements AutoCloseable {
         this.mode = mode;
         this.pageSize = pageSize;
         Path path = Paths.get(fileName);
-        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        channel = (mode == FileChannel.MapMode.READ_ONLY)
+                ? FileChannel.open(path, StandardOpenOption.READ)
+                : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        root = this;
+    }
+
+    private MappedFile(MappedFile file) {
+        mode = file.mode;
+        pageSize = file.pageSize;
+        channel = file.channel;
+        root = file.root;
+    }
+
+    /**
+     * Sets the limit of the total size of the mappings of all files.
+     */
+    public static void setAddressSpaceLimit(long limit) {
+        addressSpaceLimit = limit;
+    }
+
+    /**
+     * Returns the total size of the mappings of all open files.
+     */
+    public static long getMappedBytes() {
+        return mappedBytes.get();
+    }
+
+    /**
+     * Returns a cursor over this file, i.e. a view that shares the mapped
+     * pages but has its own position. The cursor is meant to be confined to
+     * one thread. Closing the cursor does not close the file.
+     */
+    public MappedFile cursor() {
+        return new MappedFile(this);
     }
 
     private void truncate() throws IOException {
         channel.truncate(0L);
     }
 
+    private void mapFileOrClose() throws IOException {
+        try {
+            mapFile();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Maps the existing part of the file.
+     */
     private void mapFile() throws IOException {
-        int n = (int) (channel.size() / pageSize) + 1;
-        buffers = new MappedByteBuffer[n];
+        long size = channel.size();
+        int n = (int) ((size + pageSize - 1) / pageSize);
         for (int i = 0; i < n; i++) {
-            buffers[i] = channel.map(mode, (long) i * pageSize, pageSize);
+            long length = Math.min(pageSize, size - (long) i * pageSize);
+            map(i, (int) length);
         }
     }
 
-    private void mapIfNeeded(int page) throws IOException {
-        if (page < buffers.length) {
-            return;
+    /**
+     * Returns the page that is mapped at least up to the end index.
+     */
+    private MappedByteBuffer page(int page, int end) throws IOException {
+        MappedByteBuffer[] bb = root.buffers;
+        if (page < bb.length) {
+            MappedByteBuffer b = bb[page];
+            if (b != null && end <= b.capacity()) {
+                return b;
+            }
+        }
+        return root.map(page, end);
+    }
+
+    private synchronized MappedByteBuffer map(int page, int end) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        MappedByteBuffer[] bb = buffers;
+        MappedByteBuffer old = (page < bb.length) ? bb[page] : null;
+        if (old != null && end <= old.capacity()) {
+            return old;
         }
-        MappedByteBuffer[] nb = new MappedByteBuffer[page + 1];
-        System.arraycopy(buffers, 0, nb, 0, buffers.length);
-        for (int i = buffers.length; i <= page; i++) {
-            nb[i] = channel.map(mode, (long) i * pageSize, pageSize);
+        long start = (long) page * pageSize;
+        int length;
+        if (mode == FileChannel.MapMode.READ_ONLY) {
+            length = (int) Math.min(pageSize, Math.max(0L, channel.size() - start));
+            if (length < end) {
+                throw new EOFException("offset beyond the end of file: " + (start + end));
+            }
+        } else {
+            long grown = (old == null) ? end : Math.max(end, 2L * old.capacity());
+            grown = (grown + CHUNK_SIZE - 1) / CHUNK_SIZE * CHUNK_SIZE;
+            length = (int) Math.min(pageSize, grown);
         }
+        MappedByteBuffer b = map(channel, mode, start, length);
+        MappedByteBuffer[] nb = (page < bb.length) ? bb.clone() : Arrays.copyOf(bb, page + 1);
+        nb[page] = b;
         buffers = nb;
+        if (old != null) {
+            // the old mapping can still be read by other threads
+            retired.add(old);
+        }
+        return b;
+    }
+
+    /**
+     * Maps the region of the file. The mapping counts in the mapped bytes (and
+     * the address space limit) until it is released.
+     */
+    public static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode,
+            long start, long length) throws IOException {
+        if (mappedBytes.addAndGet(length) > addressSpaceLimit) {
+            mappedBytes.addAndGet(-length);
+            throw new IOException("address space limit exceeded: " + addressSpaceLimit);
+        }
+        try {
+            return channel.map(mode, start, length);
+        } catch (IOException | RuntimeException e) {
+            mappedBytes.addAndGet(-length);
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the mapping created by map. The buffer must not be used
+     * afterwards.
+     */
+    public static void release(MappedByteBuffer buffer) {
+        if (buffer != null) {
+            mappedBytes.addAndGet(-buffer.capacity());
+            unmap(buffer);
+        }
     }
 
     @Override
     public void close() throws IOException {
+        if (root != this) {
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            MappedByteBuffer[] bb = buffers;
+            buffers = new MappedByteBuffer[0];
+            retired.addAll(Arrays.asList(bb));
+            for (MappedByteBuffer b : retired) {
+                release(b);
+            }
+            retired.clear();
+        }
         channel.close();
     }
 
+    /**
+     * Releases the mapping of the buffer. The buffer must not be used
+     * afterwards. If the mapping cannot be released explicitly, it is
+     * released when the buffer is garbage collected.
+     */
+    public static void unmap(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect()) {
+            unmapper.unmap(buffer);
+        }
+    }
+
     public void seek(long position) {
         this.position = position;
     }
 
+    public int readByte() throws IOException {
+        int value = readByte(position);
+        position++;
+        return value;
+    }
+
+    public int readByte(long offset) throws IOException {
+        int page = (int) (offset / pageSize);
+        int index = (int) (offset % pageSize);
+        return page(page, index + 1).get(index);
+    }
+
+    public void read(byte[] b, int off, int len) throws IOException {
+        read(position, b, off, len);
+        position += len;
+    }
+
+    public void read(long offset, byte[] b, int off, int len) throws IOException {
+        for (int i = 0; i < len; i++) {
+            b[off + i] = (byte) readByte(offset + i);
+        }
+    }
+
     public int readShort() throws IOException {
-        int page = (int) (position / pageSize);
-        int index = (int) (position % pageSize);
-        mapIfNeeded(page);
+        int value = readShort(position);
         position += 2;
-        return buffers[page].getShort(index);
+        return value;
+    }
+
+    public int readShort(long offset) throws IOException {
+        int page = (int) (offset / pageSize);
+        int index = (int) (offset % pageSize);
+        if (index + 2 > pageSize) {
+            return (short) readSplit(offset, 2);
+        }
+        return page(page, index + 2).getShort(index);
     }
 
     public int readInt() throws IOException {
-        int page = (int) (position / pageSize);
-        int index = (int) (position % pageSize);
-        mapIfNeeded(page);
+        int value = readInt(position);
         position += 4;
-        return buffers[page].getInt(index);
+        return value;
+    }
+
+    public int readInt(long offset) throws IOException {
+        int page = (int) (offset / pageSize);
+        int index = (int) (offset % pageSize);
+        if (index + 4 > pageSize) {
+            return (int) readSplit(offset, 4);
+        }
+        return page(page, index + 4).getInt(index);
     }
 
     public long readLong() throws IOException {
+        long value = readLong(position);
+        position += 8;
+        return value;
+    }
+
+    public long readLong(long offset) throws IOException {
+        int page = (int) (offset / pageSize);
+        int index = (int) (offset % pageSize);
+        if (index + 8 > pageSize) {
+            return readSplit(offset, 8);
+        }
+        return page(page, index + 8).getLong(index);
+    }
+
+    public void writeByte(byte value) throws IOException {
         int page = (int) (position / pageSize);
         int index = (int) (position % pageSize);
-        mapIfNeeded(page);
-        position += 8;
-        return buffers[page].getLong(index);
+        position++;
+        page(page, index + 1).put(index, value);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (int i = 0; i < len; i++) {
+            writeByte(b[off + i]);
+        }
     }
 
     public void writeShort(short value) throws IOException {
         int page = (int) (position / pageSize);
         int index = (int) (position % pageSize);
-        mapIfNeeded(page);
+        if (index + 2 > pageSize) {
+            writeSplit(value, 2);
+            return;
+        }
         position += 2;
-        buffers[page].putShort(index, value);
+        page(page, index + 2).putShort(index, value);
     }
 
     public void writeInt(int value) throws IOException {
         int page = (int) (position / pageSize);
         int index = (int) (position % pageSize);
-        mapIfNeeded(page);
+        if (index + 4 > pageSize) {
+            writeSplit(value, 4);
+            return;
+        }
         position += 4;
-        buffers[page].putInt(index, value);
+        page(page, index + 4).putInt(index, value);
     }
 
     public void writeLong(long value) throws IOException {
         int page = (int) (position / pageSize);
         int index = (int) (position % pageSize);
-        mapIfNeeded(page);
+        if (index + 8 > pageSize) {
+            writeSplit(value, 8);
+            return;
+        }
         position += 8;
-        buffers[page].putLong(index, value);
+        page(page, index + 8).putLong(index, value);
+    }
+
+    /**
+     * Reads a big-endian value that crosses the page boundary.
+     */
+    private long readSplit(long offset, int length) throws IOException {
+        long value = 0L;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (readByte(offset + i) & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Writes a big-endian value that crosses the page boundary.
+     */
+    private void writeSplit(long value, int length) throws IOException {
+        for (int i = length - 1; i >= 0; i--) {
+            int page = (int) (position / pageSize);
+            int index = (int) (position % pageSize);
+            position++;
+            page(page, index + 1).put(index, (byte) (value >>> (8 * i)));
+        }
+    }
+
+    /**
+     * Releases the mappings through the cleaner of the buffer. This uses
+     * sun.misc.Unsafe.invokeCleaner (Java 9 and later) or the cleaner of
+     * sun.nio.ch.DirectBuffer (Java 8).
+     */
+    private static class Unmapper {
+
+        private final Object unsafe;
+        private final Method invokeCleaner;
+
+        private Unmapper(Object unsafe, Method invokeCleaner) {
+            this.unsafe = unsafe;
+            this.invokeCleaner = invokeCleaner;
+        }
+
+        static Unmapper instance() {
+            try {
+                Class<?> cl = Class.forName("sun.misc.Unsafe");
+                Field field = cl.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                Method m = cl.getMethod("invokeCleaner", ByteBuffer.class);
+                return new Unmapper(field.get(null), m);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return new Unmapper(null, null);
+            }
+        }
+
+        void unmap(ByteBuffer buffer) {
+            try {
+                if (invokeCleaner != null) {
+                    invokeCleaner.invoke(unsafe, buffer);
+                } else {
+                    Method m = buffer.getClass().getMethod("cleaner");
+                    m.setAccessible(true);
+                    Object cleaner = m.invoke(buffer);
+                    if (cleaner != null) {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // the mapping is released by the garbage collector
+            }
+        }
     }
 }
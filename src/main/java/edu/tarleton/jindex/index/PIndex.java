@@ -33,4 +33,10 @@ public interface PIndex {
     void print() throws Exception;
     
     List<Pos> find(List<String> tokens) throws Exception;
+
+    /**
+     * Finds the positions of several token sequences. The results are in the
+     * order of the sequences.
+     */
+    List<List<Pos>> findAll(List<List<String>> tokenLists) throws Exception;
 }
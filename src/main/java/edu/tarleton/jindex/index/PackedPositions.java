@@ -0,0 +1,347 @@
+package edu.tarleton.jindex.index;
+
+/**
+ * The class that represents a sequence of positions packed into a byte array.
+ * A position is stored as the delta of the file id (a change of the project
+ * is flagged and followed by the project id), the begin line as the delta
+ * from the previous position in the same file, the begin column, the end line
+ * as the delta from the begin line, the end column, and the method. The
+ * methods are kept in a small table per file and a method that is already in
+ * the table is stored as its index. All numbers are varints, signed numbers
+ * are zigzag encoded. The positions are decoded by the cursor, which does not
+ * allocate any objects.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class PackedPositions {
+
+    private static final int MAX_POSITION_LENGTH = 64;
+    private final State tail = new State();
+    private final byte[] scratch = new byte[MAX_POSITION_LENGTH];
+    private byte[] bytes;
+    private int size;
+    private int count;
+
+    public PackedPositions(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return bytes.length;
+    }
+
+    public void setCapacity(int capacity) {
+        byte[] nb = new byte[capacity];
+        System.arraycopy(bytes, 0, nb, 0, size);
+        bytes = nb;
+    }
+
+    /**
+     * Sets the content that has been read from the file.
+     */
+    public void load(byte[] bytes, int size, int count) {
+        this.bytes = bytes;
+        this.size = size;
+        this.count = count;
+        Cursor c = cursor();
+        while (c.next()) {
+            // restores the state after the last position
+        }
+        tail.copyFrom(c);
+    }
+
+    /**
+     * Appends the position. Returns false if the position does not fit.
+     */
+    public boolean add(int projectId, long fileId,
+            int beginLine, int beginColumn, int endLine, int endColumn,
+            int methodBeginLine, int methodBeginColumn, int methodEndLine, int methodEndColumn) {
+        int n = 0;
+        long fileDelta = fileId - tail.fileId;
+        boolean newProject = (projectId != tail.projectId);
+        n = writeVarLong(scratch, n, (zigzag(fileDelta) << 1) | (newProject ? 1 : 0));
+        if (newProject) {
+            n = writeVarLong(scratch, n, zigzag(projectId));
+        }
+        int prevLine = (fileDelta != 0 || newProject) ? 0 : tail.beginLine;
+        n = writeVarLong(scratch, n, zigzag(beginLine - prevLine));
+        n = writeVarLong(scratch, n, zigzag(beginColumn));
+        n = writeVarLong(scratch, n, zigzag(endLine - beginLine));
+        n = writeVarLong(scratch, n, zigzag(endColumn));
+        int k = (fileDelta != 0 || newProject) ? -1
+                : tail.findMethod(methodBeginLine, methodBeginColumn, methodEndLine, methodEndColumn);
+        n = writeVarLong(scratch, n, k + 1);
+        if (k < 0) {
+            n = writeVarLong(scratch, n, zigzag(methodBeginLine - beginLine));
+            n = writeVarLong(scratch, n, zigzag(methodBeginColumn));
+            n = writeVarLong(scratch, n, zigzag(methodEndLine - methodBeginLine));
+            n = writeVarLong(scratch, n, zigzag(methodEndColumn));
+        }
+        if (size + n > bytes.length) {
+            return false;
+        }
+        System.arraycopy(scratch, 0, bytes, size, n);
+        size += n;
+        count++;
+        tail.update(projectId, fileId, beginLine, beginColumn, endLine, endColumn,
+                methodBeginLine, methodBeginColumn, methodEndLine, methodEndColumn, k);
+        return true;
+    }
+
+    public Cursor cursor() {
+        Cursor c = new Cursor();
+        c.reset(bytes, size);
+        return c;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int writeVarLong(byte[] b, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            b[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        b[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * The state after a position, i.e. the position and the method table.
+     */
+    static class State {
+
+        private static final int METHOD_TABLE_SIZE = 16;
+        protected int projectId;
+        protected long fileId;
+        protected int beginLine;
+        protected int beginColumn;
+        protected int endLine;
+        protected int endColumn;
+        protected int methodBeginLine;
+        protected int methodBeginColumn;
+        protected int methodEndLine;
+        protected int methodEndColumn;
+        private final int[] methods = new int[4 * METHOD_TABLE_SIZE];
+        private int methodCount;
+        private int nextMethod;
+
+        void clear() {
+            projectId = 0;
+            fileId = 0L;
+            beginLine = 0;
+            methodCount = 0;
+            nextMethod = 0;
+        }
+
+        int findMethod(int mbl, int mbc, int mel, int mec) {
+            for (int i = 0; i < methodCount; i++) {
+                int j = 4 * i;
+                if (methods[j] == mbl && methods[j + 1] == mbc
+                        && methods[j + 2] == mel && methods[j + 3] == mec) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void update(int projectId, long fileId, int bl, int bc, int el, int ec,
+                int mbl, int mbc, int mel, int mec, int methodIndex) {
+            if (fileId != this.fileId || projectId != this.projectId) {
+                methodCount = 0;
+                nextMethod = 0;
+            }
+            this.projectId = projectId;
+            this.fileId = fileId;
+            beginLine = bl;
+            beginColumn = bc;
+            endLine = el;
+            endColumn = ec;
+            methodBeginLine = mbl;
+            methodBeginColumn = mbc;
+            methodEndLine = mel;
+            methodEndColumn = mec;
+            if (methodIndex < 0) {
+                int j = 4 * nextMethod;
+                methods[j] = mbl;
+                methods[j + 1] = mbc;
+                methods[j + 2] = mel;
+                methods[j + 3] = mec;
+                nextMethod = (nextMethod + 1) % METHOD_TABLE_SIZE;
+                methodCount = Math.min(methodCount + 1, METHOD_TABLE_SIZE);
+            }
+        }
+
+        int getMethod(int index, int field) {
+            return methods[4 * index + field];
+        }
+
+        void copyFrom(State s) {
+            projectId = s.projectId;
+            fileId = s.fileId;
+            beginLine = s.beginLine;
+            beginColumn = s.beginColumn;
+            endLine = s.endLine;
+            endColumn = s.endColumn;
+            methodBeginLine = s.methodBeginLine;
+            methodBeginColumn = s.methodBeginColumn;
+            methodEndLine = s.methodEndLine;
+            methodEndColumn = s.methodEndColumn;
+            System.arraycopy(s.methods, 0, methods, 0, methods.length);
+            methodCount = s.methodCount;
+            nextMethod = s.nextMethod;
+        }
+    }
+
+    /**
+     * The cursor over the packed positions. The cursor can be reset and
+     * reused.
+     */
+    public static class Cursor extends State {
+
+        private byte[] bytes;
+        private int size;
+        private int pos;
+
+        public void reset(byte[] bytes, int size) {
+            reset(bytes, 0, size);
+        }
+
+        /**
+         * Resets the cursor to the positions packed in the bytes from start
+         * (inclusive) to end (exclusive).
+         */
+        public void reset(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.size = end;
+            pos = start;
+            clear();
+        }
+
+        public boolean next() {
+            if (pos >= size) {
+                return false;
+            }
+            long h = readVarLong();
+            long fid = fileId + unzigzag(h >>> 1);
+            int pid = ((h & 1) != 0) ? (int) unzigzag(readVarLong()) : projectId;
+            boolean newFile = (fid != fileId || pid != projectId);
+            int prevLine = newFile ? 0 : beginLine;
+            int bl = prevLine + (int) unzigzag(readVarLong());
+            int bc = (int) unzigzag(readVarLong());
+            int el = bl + (int) unzigzag(readVarLong());
+            int ec = (int) unzigzag(readVarLong());
+            int k = (int) readVarLong() - 1;
+            int mbl;
+            int mbc;
+            int mel;
+            int mec;
+            if (k < 0) {
+                mbl = bl + (int) unzigzag(readVarLong());
+                mbc = (int) unzigzag(readVarLong());
+                mel = mbl + (int) unzigzag(readVarLong());
+                mec = (int) unzigzag(readVarLong());
+            } else {
+                mbl = getMethod(k, 0);
+                mbc = getMethod(k, 1);
+                mel = getMethod(k, 2);
+                mec = getMethod(k, 3);
+            }
+            update(pid, fid, bl, bc, el, ec, mbl, mbc, mel, mec, k);
+            return true;
+        }
+
+        private long readVarLong() {
+            long value = 0L;
+            int shift = 0;
+            while (true) {
+                byte b = bytes[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public int getProjectId() {
+            return projectId;
+        }
+
+        public long getFileId() {
+            return fileId;
+        }
+
+        public int getBeginLine() {
+            return beginLine;
+        }
+
+        public int getBeginColumn() {
+            return beginColumn;
+        }
+
+        public int getEndLine() {
+            return endLine;
+        }
+
+        public int getEndColumn() {
+            return endColumn;
+        }
+
+        public int getMethodBeginLine() {
+            return methodBeginLine;
+        }
+
+        public int getMethodBeginColumn() {
+            return methodBeginColumn;
+        }
+
+        public int getMethodEndLine() {
+            return methodEndLine;
+        }
+
+        public int getMethodEndColumn() {
+            return methodEndColumn;
+        }
+
+        public int getLines() {
+            if (beginLine < 0 || endLine < 0) {
+                return 0;
+            }
+            return endLine - beginLine + 1;
+        }
+
+        /**
+         * Returns the number of the remaining positions whose size (in lines)
+         * is between minSize and maxSize. The positions are decoded but not
+         * created, and the cursor is at the end afterwards.
+         */
+        public int count(int minSize, int maxSize) {
+            int n = 0;
+            while (next()) {
+                int size = getLines();
+                if (minSize <= size && size <= maxSize) {
+                    n++;
+                }
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package edu.tarleton.jindex.index;
+
+import com.github.javaparser.Position;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The class that finds the sequences of consecutive statements that are
+ * cloned statement by statement (block clones). The positions of the clone
+ * classes are added first. They are kept in primitive arrays indexed by a hash
+ * table on (file id, start, end), so that the class of a statement is found
+ * without creating objects. Then the members of every class are extended
+ * together along the next-statement map. A group of fragments is reported
+ * when its members stop following the same classes, and it is split into the
+ * subgroups that continue.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class SequenceClones {
+
+    /**
+     * The next-statement map. The key consists of the start line, start
+     * column, end line, and end column of the statement.
+     */
+    public interface NextStmts {
+
+        /**
+         * Returns the key of the statement that follows the statement or null
+         * if there is no such statement.
+         */
+        int[] getNextKey(long fileId, int[] key);
+    }
+
+    private final NextStmts nextStmts;
+    private int count;
+    private long[] fileIds = new long[1024];
+    private int[] keys = new int[4 * 1024];
+    private int[] methods = new int[4 * 1024];
+    private int[] projectIds = new int[1024];
+    private int[] classIds = new int[1024];
+    private int[] slots = new int[2048];
+    private int classCount;
+
+    public SequenceClones(NextStmts nextStmts) {
+        this.nextStmts = nextStmts;
+    }
+
+    /**
+     * Returns the id of a new clone class.
+     */
+    public synchronized int addClass() {
+        return classCount++;
+    }
+
+    /**
+     * Adds the position to the clone class. A position that has been added
+     * before is ignored.
+     */
+    public synchronized void add(int classId, int projectId, long fileId,
+            Position begin, Position end, Position methodBegin, Position methodEnd) {
+        int[] key = {begin.line, begin.column, end.line, end.column};
+        int slot = findSlot(fileId, key);
+        if (slots[slot] != 0) {
+            return;
+        }
+        if (count == fileIds.length) {
+            int n = 2 * count;
+            fileIds = Arrays.copyOf(fileIds, n);
+            keys = Arrays.copyOf(keys, 4 * n);
+            methods = Arrays.copyOf(methods, 4 * n);
+            projectIds = Arrays.copyOf(projectIds, n);
+            classIds = Arrays.copyOf(classIds, n);
+        }
+        fileIds[count] = fileId;
+        System.arraycopy(key, 0, keys, 4 * count, 4);
+        methods[4 * count] = methodBegin.line;
+        methods[4 * count + 1] = methodBegin.column;
+        methods[4 * count + 2] = methodEnd.line;
+        methods[4 * count + 3] = methodEnd.column;
+        projectIds[count] = projectId;
+        classIds[count] = classId;
+        slots[slot] = ++count;
+        if (2 * count > slots.length) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        slots = new int[2 * slots.length];
+        int[] key = new int[4];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(keys, 4 * i, key, 0, 4);
+            slots[findSlot(fileIds[i], key)] = i + 1;
+        }
+    }
+
+    /**
+     * Returns the slot of the hash table that holds the position or the empty
+     * slot where the position belongs.
+     */
+    private int findSlot(long fileId, int[] key) {
+        int h = Long.hashCode(fileId);
+        for (int k : key) {
+            h = 31 * h + k;
+        }
+        int mask = slots.length - 1;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (true) {
+            int v = slots[slot];
+            if (v == 0 || matches(v - 1, fileId, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean matches(int i, long fileId, int[] key) {
+        return fileIds[i] == fileId
+                && keys[4 * i] == key[0] && keys[4 * i + 1] == key[1]
+                && keys[4 * i + 2] == key[2] && keys[4 * i + 3] == key[3];
+    }
+
+    /**
+     * Finds the sequences of two or more statements and passes every clone
+     * class to the consumer. Only the fragments whose size (in lines) is
+     * between minSize and maxSize are considered. Returns the number of clone
+     * classes.
+     */
+    public synchronized long detect(int minSize, int maxSize, Consumer<List<Fragment>> consumer) {
+        int[] next = new int[count];
+        int[] predClass = new int[count];
+        Arrays.fill(predClass, -1);
+        int[] key = new int[4];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(keys, 4 * i, key, 0, 4);
+            int[] nk = nextStmts.getNextKey(fileIds[i], key);
+            int j = (nk == null) ? -1 : slots[findSlot(fileIds[i], nk)] - 1;
+            next[i] = j;
+            if (j >= 0) {
+                predClass[j] = classIds[i];
+            }
+        }
+        int[] heads = new int[classCount];
+        Arrays.fill(heads, -1);
+        int[] chain = new int[count];
+        for (int i = count - 1; i >= 0; i--) {
+            chain[i] = heads[classIds[i]];
+            heads[classIds[i]] = i;
+        }
+        long classes = 0L;
+        Deque<Group> groups = new ArrayDeque<>();
+        for (int c = 0; c < classCount; c++) {
+            List<Integer> members = new ArrayList<>();
+            for (int i = heads[c]; i >= 0; i = chain[i]) {
+                members.add(i);
+            }
+            if (members.size() < 2) {
+                continue;
+            }
+            int[] mm = new int[members.size()];
+            for (int k = 0; k < mm.length; k++) {
+                mm[k] = members.get(k);
+            }
+            groups.push(new Group(mm, mm.clone(), 1));
+            while (!groups.isEmpty()) {
+                Group g = groups.pop();
+                Map<Integer, List<Integer>> parts = g.extend(next);
+                if (parts.size() == 1 && parts.values().iterator().next().size() == g.size()) {
+                    g.advance(next);
+                    groups.push(g);
+                    continue;
+                }
+                if (g.depth >= 2 && !g.isLeftExtendable(predClass)
+                        && report(g, minSize, maxSize, consumer)) {
+                    classes++;
+                }
+                for (List<Integer> part : parts.values()) {
+                    if (part.size() >= 2) {
+                        groups.push(g.subgroup(part, next));
+                    }
+                }
+            }
+        }
+        return classes;
+    }
+
+    private boolean report(Group g, int minSize, int maxSize, Consumer<List<Fragment>> consumer) {
+        List<Fragment> fragments = new ArrayList<>();
+        for (int k = 0; k < g.size(); k++) {
+            int s = g.starts[k];
+            int e = g.ends[k];
+            int lines = keys[4 * e + 2] - keys[4 * s] + 1;
+            if (lines >= minSize && lines <= maxSize) {
+                fragments.add(new Fragment(projectIds[s], fileIds[s],
+                        new Position(keys[4 * s], keys[4 * s + 1]),
+                        new Position(keys[4 * e + 2], keys[4 * e + 3]),
+                        new Position(methods[4 * s], methods[4 * s + 1]),
+                        new Position(methods[4 * s + 2], methods[4 * s + 3])));
+            }
+        }
+        if (fragments.size() < 2) {
+            return false;
+        }
+        consumer.accept(fragments);
+        return true;
+    }
+
+    /**
+     * The group of fragments that consist of the statements of the same
+     * classes. The fragments start at the starts and end at the ends.
+     */
+    private class Group {
+
+        final int[] starts;
+        final int[] ends;
+        int depth;
+
+        Group(int[] starts, int[] ends, int depth) {
+            this.starts = starts;
+            this.ends = ends;
+            this.depth = depth;
+        }
+
+        int size() {
+            return starts.length;
+        }
+
+        /**
+         * Partitions the fragments by the class of the next statement. The
+         * fragments without a cloned next statement are left out.
+         */
+        Map<Integer, List<Integer>> extend(int[] next) {
+            Map<Integer, List<Integer>> parts = new HashMap<>();
+            for (int k = 0; k < ends.length; k++) {
+                int j = next[ends[k]];
+                if (j >= 0) {
+                    parts.computeIfAbsent(classIds[j], x -> new ArrayList<>()).add(k);
+                }
+            }
+            return parts;
+        }
+
+        void advance(int[] next) {
+            for (int k = 0; k < ends.length; k++) {
+                ends[k] = next[ends[k]];
+            }
+            depth++;
+        }
+
+        Group subgroup(List<Integer> part, int[] next) {
+            int[] ss = new int[part.size()];
+            int[] ee = new int[part.size()];
+            for (int k = 0; k < ss.length; k++) {
+                ss[k] = starts[part.get(k)];
+                ee[k] = next[ends[part.get(k)]];
+            }
+            return new Group(ss, ee, depth + 1);
+        }
+
+        /**
+         * Returns true if all fragments are preceded by the statements of the
+         * same class. Such a group is a part of a longer group.
+         */
+        boolean isLeftExtendable(int[] predClass) {
+            int c = predClass[starts[0]];
+            if (c < 0) {
+                return false;
+            }
+            for (int s : starts) {
+                if (predClass[s] != c) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The fragment of a sequence clone.
+     */
+    public static class Fragment {
+
+        private final int projectId;
+        private final long fileId;
+        private final Position begin;
+        private final Position end;
+        private final Position methodBegin;
+        private final Position methodEnd;
+
+        Fragment(int projectId, long fileId, Position begin, Position end,
+                Position methodBegin, Position methodEnd) {
+            this.projectId = projectId;
+            this.fileId = fileId;
+            this.begin = begin;
+            this.end = end;
+            this.methodBegin = methodBegin;
+            this.methodEnd = methodEnd;
+        }
+
+        public int getProjectId() {
+            return projectId;
+        }
+
+        public long getFileId() {
+            return fileId;
+        }
+
+        public Position getBegin() {
+            return begin;
+        }
+
+        public Position getEnd() {
+            return end;
+        }
+
+        public Position getMethodBegin() {
+            return methodBegin;
+        }
+
+        public Position getMethodEnd() {
+            return methodEnd;
+        }
+    }
+}
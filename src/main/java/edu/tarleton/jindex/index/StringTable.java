@@ -0,0 +1,346 @@
+package edu.tarleton.jindex.index;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The class that represents the table of strings (e.g. file paths). The
+ * strings are numbered from 0 in the order in which they are added and the
+ * same string can be added more than once. A lookup returns the last id of
+ * the string.
+ *
+ * The table file is the sequence of strings written by writeUTF, i.e. the
+ * older format of the path and project files. New strings are appended
+ * through one buffered channel. The index file (the table file name + ".idx")
+ * consists of the magic number, the number of strings, the length of the table
+ * file, the size of the hash table, the offsets of the strings, and the hash
+ * table (string id + 1, 0 for an empty slot). Both files are mapped into
+ * memory when the table is loaded. If the index does not match the table file
+ * (e.g. the older format), it is rebuilt.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class StringTable implements AutoCloseable {
+
+    private static final int MAGIC = 0xCAFE5354;
+    private static final int HEADER_LENGTH = 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private final File file;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<byte[]> added = new ArrayList<>();
+    private ByteBuffer data;
+    private ByteBuffer index;
+    private int mappedCount;
+    private int tableSize;
+    private int tableStart;
+    private long length;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private boolean modified;
+
+    private StringTable(File file) {
+        this.file = file;
+    }
+
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + ".idx");
+    }
+
+    public static void initialize(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ch.truncate(0);
+        }
+        Files.deleteIfExists(getIndexFile(file).toPath());
+    }
+
+    public static StringTable load(File file) throws IOException {
+        StringTable table = new StringTable(file);
+        if (!file.exists()) {
+            return table;
+        }
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            table.length = ch.size();
+            if (table.length > Integer.MAX_VALUE) {
+                throw new IOException("string table too large: " + file);
+            }
+            table.data = ch.map(MapMode.READ_ONLY, 0L, table.length);
+        }
+        File indexFile = getIndexFile(file);
+        if (indexFile.exists()) {
+            try (FileChannel ch = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                if (ch.size() >= HEADER_LENGTH) {
+                    ByteBuffer buf = ch.map(MapMode.READ_ONLY, 0L, ch.size());
+                    if (buf.getInt(0) == MAGIC && buf.getLong(8) == table.length) {
+                        table.mapIndex(buf);
+                        return table;
+                    }
+                }
+            }
+        }
+        table.rebuildIndex();
+        return table;
+    }
+
+    private void mapIndex(ByteBuffer buf) {
+        index = buf;
+        mappedCount = buf.getInt(4);
+        tableSize = buf.getInt(16);
+        tableStart = HEADER_LENGTH + 4 * mappedCount;
+    }
+
+    /**
+     * Builds the index of the table file in memory. It is written when the
+     * table is stored.
+     */
+    private void rebuildIndex() {
+        List<Integer> offsets = new ArrayList<>();
+        int offset = 0;
+        while (offset + 2 <= length) {
+            int next = offset + 2 + (data.getShort(offset) & 0xFFFF);
+            if (next > length) {
+                break;
+            }
+            offsets.add(offset);
+            offset = next;
+        }
+        // an incomplete string at the end of the file is overwritten
+        length = offset;
+        buildIndex(offsets.size(), offsets);
+        modified = true;
+    }
+
+    private void buildIndex(int count, List<Integer> offsets) {
+        int ts = 2;
+        while (ts < 2 * count) {
+            ts *= 2;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + 4 * count + 4 * ts);
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, count);
+        buf.putLong(8, length);
+        buf.putInt(16, ts);
+        for (int i = 0; i < count; i++) {
+            buf.putInt(HEADER_LENGTH + 4 * i, offsets.get(i));
+        }
+        index = buf;
+        mappedCount = count;
+        tableSize = ts;
+        tableStart = HEADER_LENGTH + 4 * count;
+        for (int i = 0; i < count; i++) {
+            byte[] b = getRecord(i);
+            int slot = findSlot(b);
+            buf.putInt(tableStart + 4 * slot, i + 1);
+        }
+    }
+
+    public synchronized int size() {
+        return mappedCount + added.size();
+    }
+
+    /**
+     * Returns the last id of the string or -1 if the table does not contain
+     * the string.
+     */
+    public synchronized int getId(String s) {
+        Integer id = ids.get(s);
+        if (id != null) {
+            return id;
+        }
+        if (mappedCount == 0) {
+            return -1;
+        }
+        int v = index.getInt(tableStart + 4 * findSlot(encode(s)));
+        return v - 1;
+    }
+
+    /**
+     * Appends the string and returns its id.
+     */
+    public synchronized int add(String s) throws IOException {
+        byte[] b = encode(s);
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            channel.truncate(length);
+            channel.position(length);
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        if (buffer.remaining() < b.length) {
+            flush();
+        }
+        if (b.length > buffer.capacity()) {
+            channel.write(ByteBuffer.wrap(b));
+        } else {
+            buffer.put(b);
+        }
+        length += b.length;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("string table too large: " + file);
+        }
+        int id = size();
+        ids.put(s, id);
+        added.add(b);
+        modified = true;
+        return id;
+    }
+
+    public synchronized String get(int id) {
+        byte[] b = getRecord(id);
+        try {
+            return new DataInputStream(new ByteArrayInputStream(b)).readUTF();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] getRecord(int id) {
+        if (id >= mappedCount) {
+            return added.get(id - mappedCount);
+        }
+        int offset = index.getInt(HEADER_LENGTH + 4 * id);
+        byte[] b = new byte[2 + (data.getShort(offset) & 0xFFFF)];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = data.get(offset + i);
+        }
+        return b;
+    }
+
+    /**
+     * Returns the slot of the hash table that holds the string or the empty
+     * slot where the string belongs.
+     */
+    private int findSlot(byte[] b) {
+        int mask = tableSize - 1;
+        int slot = hash(b) & mask;
+        while (true) {
+            int v = index.getInt(tableStart + 4 * slot);
+            if (v == 0 || equalsAt(v - 1, b)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean equalsAt(int id, byte[] b) {
+        int offset = index.getInt(HEADER_LENGTH + 4 * id);
+        if ((data.getShort(offset) & 0xFFFF) != b.length - 2) {
+            return false;
+        }
+        for (int i = 2; i < b.length; i++) {
+            if (data.get(offset + i) != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] b) {
+        int h = 0x811C9DC5;
+        for (byte x : b) {
+            h = (h ^ (x & 0xFF)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static byte[] encode(String s) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(s.length() + 2);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(s);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public synchronized void flush() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Flushes the appended strings and writes the index. The index is written
+     * under a temporary name and then renamed, so that the mapping of the old
+     * index stays valid.
+     */
+    public synchronized void store() throws IOException {
+        flush();
+        if (!modified && getIndexFile(file).exists()) {
+            return;
+        }
+        int count = size();
+        List<Integer> offsets = new ArrayList<>(count);
+        for (int i = 0; i < mappedCount; i++) {
+            offsets.add(index.getInt(HEADER_LENGTH + 4 * i));
+        }
+        int offset = (int) (length - addedLength());
+        for (byte[] b : added) {
+            offsets.add(offset);
+            offset += b.length;
+        }
+        if (channel == null) {
+            Files.write(file.toPath(), new byte[0], StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            data = ch.map(MapMode.READ_ONLY, 0L, length);
+        }
+        added.clear();
+        ids.clear();
+        buildIndex(count, offsets);
+        File indexFile = getIndexFile(file);
+        File temp = new File(indexFile.getPath() + ".tmp");
+        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+            out.write(index.array());
+        }
+        Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        modified = false;
+    }
+
+    private long addedLength() {
+        long n = 0L;
+        for (byte[] b : added) {
+            n += b.length;
+        }
+        return n;
+    }
+
+    /**
+     * Closes the table and releases the mappings. The table must not be used
+     * afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            flush();
+            channel.close();
+            channel = null;
+        }
+        MappedFile.unmap(data);
+        MappedFile.unmap(index);
+        data = null;
+        index = null;
+    }
+}
@@ -1,12 +1,18 @@
 package edu.tarleton.jindex.index.compressed;
 
+import edu.tarleton.jindex.BatchSizer;
 import edu.tarleton.jindex.Pos;
 import edu.tarleton.jindex.index.Index;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * The implementation of the compressed TRIE.
@@ -93,6 +99,27 @@ public class CTrie implements Index, Serializable {
         }
     }
 
+    /**
+     * Returns the estimated size (in bytes) of the TRIE, its linearization,
+     * and the next-statement map in the heap.
+     */
+    public long estimateBytes() {
+        long bytes = nextStmtMap.size() * (BatchSizer.MAP_ENTRY_BYTES + BatchSizer.POS_BYTES);
+        bytes += BatchSizer.arrayBytes(buffer.size());
+        Set<String> labels = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (String lab : buffer) {
+            if (labels.add(lab)) {
+                bytes += BatchSizer.stringBytes(lab);
+            }
+        }
+        Deque<CTrieNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            bytes += pending.pop().estimateBytes(pending);
+        }
+        return bytes;
+    }
+
     @Override
     public void print() {
         root.print();
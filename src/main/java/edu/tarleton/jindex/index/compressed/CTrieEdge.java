@@ -1,8 +1,10 @@
 package edu.tarleton.jindex.index.compressed;
 
+import edu.tarleton.jindex.BatchSizer;
 import edu.tarleton.jindex.Pos;
 import java.io.Serializable;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The edge of the compressed TRIE.
@@ -12,7 +14,7 @@ import java.util.List;
 public class CTrieEdge implements Serializable {
 
     private static final long serialVersionUID = 1L;
-    private static int count;
+    private static final AtomicInteger count = new AtomicInteger();
     private final List<String> linearization;
     private int start;
     private int end;
@@ -25,13 +27,13 @@ public class CTrieEdge implements Serializable {
         this.start = start;
         this.end = end;
         this.destination = destination;
-        count++;
+        count.incrementAndGet();
         assert start >= 0;
         assert start < end;
     }
 
     public static int getCount() {
-        return count;
+        return count.get();
     }
 
     public List<String> getLinearization() {
@@ -99,6 +101,16 @@ public class CTrieEdge implements Serializable {
         positionsCount++;
     }
 
+    /**
+     * Returns the estimated size of the edge and its positions. The labels
+     * are in the linearization.
+     */
+    long estimateBytes() {
+        return BatchSizer.objectBytes(3 * BatchSizer.REFERENCE + 3 * 4)
+                + BatchSizer.arrayBytes(positions.length)
+                + positionsCount * BatchSizer.POS_BYTES;
+    }
+
     public CTrieEdge makeClone() {
         CTrieEdge p = new CTrieEdge(linearization, start, end, destination);
         for (int i = 0; i < positionsCount; i++) {
@@ -1,7 +1,10 @@
 package edu.tarleton.jindex.index.compressed;
 
+import edu.tarleton.jindex.BatchSizer;
 import java.io.Serializable;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The node of the compressed TRIE.
@@ -11,17 +14,17 @@ import java.util.List;
 public class CTrieNode implements Serializable {
 
     private static final long serialVersionUID = 1L;
-    private static int count;
+    private static final AtomicInteger count = new AtomicInteger();
     private final int num;
     private CTrieEdge[] edges = new CTrieEdge[1];
     private int edgesCount;
 
     public CTrieNode() {
-        num = count++;
+        num = count.getAndIncrement();
     }
 
     public static int getCount() {
-        return count;
+        return count.get();
     }
 
     public boolean isLeaf() {
@@ -76,6 +79,20 @@ public class CTrieNode implements Serializable {
         return num;
     }
 
+    /**
+     * Returns the estimated size of the node, its edges, and their positions
+     * and pushes the destinations of the edges on the stack.
+     */
+    long estimateBytes(Deque<CTrieNode> pending) {
+        long bytes = BatchSizer.objectBytes(4 + BatchSizer.REFERENCE + 4)
+                + BatchSizer.arrayBytes(edges.length);
+        for (int i = 0; i < edgesCount; i++) {
+            bytes += edges[i].estimateBytes();
+            pending.push(edges[i].getDestination());
+        }
+        return bytes;
+    }
+
     public void print(String label) {
         System.out.printf("node %d%n", num);
         for (int i = 0; i < edgesCount; i++) {
@@ -4,6 +4,7 @@ import edu.tarleton.jindex.index.MappedFile;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The edge of the compressed persistent TRIE.
@@ -13,26 +14,27 @@ import java.util.List;
 public class CPEdge {
 
     public static final int LENGTH = 24;
-    private static long count;
+    private static final AtomicLong count = new AtomicLong();
     private int start;
     private int end;
     private Long destId;
+    private long posBlockId = -1L;
     private CPPosBlock posBlock;
 
     public static long getCount() {
-        return count;
+        return count.get();
     }
 
     public CPEdge(int start, int end, Long destId) {
         this.start = start;
         this.end = end;
         this.destId = destId;
-        count++;
+        count.incrementAndGet();
     }
 
-    private CPEdge(int start, int end, Long destId, CPPosBlock posBlock) {
+    private CPEdge(int start, int end, Long destId, long posBlockId) {
         this(start, end, destId);
-        this.posBlock = posBlock;
+        this.posBlockId = posBlockId;
     }
 
     public int getStart() {
@@ -59,19 +61,37 @@ public class CPEdge {
         this.destId = destId;
     }
 
-    public CPPosBlock getPosBlock() {
+    public long getPosBlockId() {
+        return posBlockId;
+    }
+
+    public CPPosBlock getPosBlock(Storage storage) throws IOException {
+        if (posBlock == null && posBlockId >= 0) {
+            posBlock = CPPosBlock.read(posBlockId, storage);
+        }
+        return posBlock;
+    }
+
+    /**
+     * Returns the position block without keeping it in this edge.
+     */
+    public CPPosBlock readPosBlock(Storage storage) throws IOException {
+        if (posBlock == null && posBlockId >= 0) {
+            return CPPosBlock.read(posBlockId, storage);
+        }
         return posBlock;
     }
 
-    public void addPos(CPPos pos) {
+    public void addPos(Storage storage, CPPos pos) throws IOException {
+        getPosBlock(storage);
         if (posBlock == null) {
-            posBlock = new CPPosBlockDirect();
+            posBlock = new CPPosBlockPacked();
         }
-        if (posBlock.addPos(pos)) {
-            return;
+        if (!posBlock.addPos(pos)) {
+            posBlock = posBlock.toUpperLevelPosBlock(posBlock);
+            posBlock.addPos(pos);
         }
-        posBlock = posBlock.toUpperLevelPosBlock(posBlock);
-        posBlock.addPos(pos);
+        posBlockId = posBlock.getId();
     }
 
     public static CPEdge readFrom(Storage storage) throws IOException {
@@ -80,8 +100,16 @@ public class CPEdge {
         int end = edgeFile.readInt();
         long destId = edgeFile.readLong();
         long posBlockId = edgeFile.readLong();
-        CPPosBlock posBlock = (posBlockId < 0) ? null : CPPosBlock.read(posBlockId, storage);
-        return new CPEdge(start, end, destId, posBlock);
+        return new CPEdge(start, end, destId, posBlockId);
+    }
+
+    public static CPEdge readFrom(Storage storage, long offset) throws IOException {
+        MappedFile edgeFile = storage.getEdgeFile();
+        int start = edgeFile.readInt(offset);
+        int end = edgeFile.readInt(offset + 4);
+        long destId = edgeFile.readLong(offset + 8);
+        long posBlockId = edgeFile.readLong(offset + 16);
+        return new CPEdge(start, end, destId, posBlockId);
     }
 
     public void writeTo(Storage storage) throws IOException {
@@ -89,23 +117,28 @@ public class CPEdge {
         edgeFile.writeInt(start);
         edgeFile.writeInt(end);
         edgeFile.writeLong(destId);
-        if (posBlock == null) {
-            edgeFile.writeLong(-1);
-        } else {
-            edgeFile.writeLong(posBlock.getId());
+        edgeFile.writeLong(posBlockId);
+        if (posBlock != null) {
             posBlock.writeTo(storage);
+            posBlock = null;
         }
     }
 
-    public CPEdge makeClone() {
-        CPEdge p = new CPEdge(start, end, destId);
-        if (posBlock != null) {
-            p.posBlock = posBlock.makeClone();
-        }
+    /**
+     * Splits this edge at the given index into the linearization buffer. The
+     * returned edge takes the suffix and the positions; this edge keeps the
+     * prefix.
+     */
+    public CPEdge split(int at) {
+        CPEdge p = new CPEdge(at, end, destId, posBlockId);
+        p.posBlock = posBlock;
+        end = at;
+        posBlockId = -1L;
+        posBlock = null;
         return p;
     }
 
-    public void print(CPLinearizations linearizations) throws IOException {
+    public void print(Storage storage, CPLinearizations linearizations) throws IOException {
         List<String> str = new ArrayList<>();
         for (int i = start; i < end; i++) {
             Integer j = linearizations.getBufferAt(i);
@@ -113,8 +146,9 @@ public class CPEdge {
             str.add(lab);
         }
         System.out.printf("  %s -> %d%n", str, destId);
-        if (posBlock != null) {
-            posBlock.print();
+        CPPosBlock pb = getPosBlock(storage);
+        if (pb != null) {
+            pb.print();
         }
     }
 }
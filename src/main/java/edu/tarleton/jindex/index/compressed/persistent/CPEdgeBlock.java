@@ -2,30 +2,50 @@ package edu.tarleton.jindex.index.compressed.persistent;
 
 import edu.tarleton.jindex.index.MappedFile;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The block of edges of the compressed persistent TRIE.
  *
+ * Nodes with a small fanout keep their edges in a chain of blocks with
+ * BLOCK_SIZE edges each. When the fanout exceeds the threshold, the edges are
+ * moved to a sorted block, i.e. an extent of consecutive block slots that
+ * holds the edges sorted by their first label. The extent is reallocated with
+ * doubled capacity when it gets full.
+ *
  * @author Zdenek Tronicek, tronicek@tarleton.edu
  */
 public class CPEdgeBlock {
 
     public static final int BLOCK_SIZE = 4;
     public static final int LENGTH = 8 + 4 + BLOCK_SIZE * CPEdge.LENGTH + 8;
-    private static long edgeBlockCount;
-    private final long id;
+    public static final int DEFAULT_SORTED_THRESHOLD = 4 * BLOCK_SIZE;
+    private static final long SORTED = -2L;
+    private static final int SORTED_HEADER_LENGTH = 8 + 8 + 4 + 4;
+    private static final AtomicLong edgeBlockCount = new AtomicLong();
+    private long id;
     private int edgeCount;
-    private final CPEdge[] edges = new CPEdge[BLOCK_SIZE];
+    private CPEdge[] edges = new CPEdge[BLOCK_SIZE];
     private CPEdgeBlock next;
+    private boolean sorted;
 
     public static void reset() {
-        edgeBlockCount = 0;
+        edgeBlockCount.set(0L);
+    }
+
+    public static void reset(long nextId) {
+        edgeBlockCount.set(nextId);
+    }
+
+    public static long getNextId() {
+        return edgeBlockCount.get();
     }
 
     public CPEdgeBlock() {
-        id = edgeBlockCount;
-        edgeBlockCount++;
+        id = edgeBlockCount.getAndIncrement();
     }
 
     public CPEdgeBlock(Long id) {
@@ -44,7 +64,32 @@ public class CPEdgeBlock {
         return edges;
     }
 
-    public void addEdge(CPEdge edge) {
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * Returns the id that follows the last block slot occupied by this block
+     * and its successors.
+     */
+    public long getEndId() {
+        long end = sorted ? id + slotCount(edges.length) : id + 1;
+        if (next != null) {
+            end = Math.max(end, next.getEndId());
+        }
+        return end;
+    }
+
+    public void addEdge(Storage storage, CPEdge edge, List<Integer> buffer) {
+        if (sorted) {
+            insertSorted(edge, buffer);
+            return;
+        }
+        append(edge);
+        relayout(storage, buffer);
+    }
+
+    private void append(CPEdge edge) {
         if (edgeCount < edges.length) {
             edges[edgeCount] = edge;
             edgeCount++;
@@ -52,11 +97,88 @@ public class CPEdgeBlock {
             if (next == null) {
                 next = new CPEdgeBlock();
             }
-            next.addEdge(edge);
+            next.append(edge);
+        }
+    }
+
+    private void insertSorted(CPEdge edge, List<Integer> buffer) {
+        if (edgeCount == edges.length) {
+            allocateSorted(edges, edgeCount, 2 * edgeCount);
+        }
+        int first = buffer.get(edge.getStart());
+        int i = edgeCount;
+        while (i > 0 && buffer.get(edges[i - 1].getStart()) > first) {
+            edges[i] = edges[i - 1];
+            i--;
+        }
+        edges[i] = edge;
+        edgeCount++;
+    }
+
+    /**
+     * Moves a chain of blocks whose fanout exceeds the threshold to a sorted
+     * block. Returns true if the block has been moved.
+     */
+    public boolean relayout(Storage storage, List<Integer> buffer) {
+        if (sorted) {
+            return false;
+        }
+        int total = countEdges();
+        if (total <= storage.getSortedEdgeThreshold()) {
+            return false;
+        }
+        CPEdge[] all = new CPEdge[total];
+        int n = 0;
+        for (CPEdgeBlock b = this; b != null; b = b.next) {
+            for (int i = 0; i < b.edgeCount; i++) {
+                all[n++] = b.edges[i];
+            }
         }
+        Arrays.sort(all, Comparator.comparingInt(e -> buffer.get(e.getStart())));
+        allocateSorted(all, total, 2 * total);
+        next = null;
+        sorted = true;
+        return true;
+    }
+
+    private int countEdges() {
+        int n = 0;
+        for (CPEdgeBlock b = this; b != null; b = b.next) {
+            n += b.edgeCount;
+        }
+        return n;
+    }
+
+    private void allocateSorted(CPEdge[] ee, int count, int capacity) {
+        int slots = slotCount(capacity);
+        id = edgeBlockCount.getAndAdd(slots);
+        edges = Arrays.copyOf(ee, (slots * LENGTH - SORTED_HEADER_LENGTH) / CPEdge.LENGTH);
+        edgeCount = count;
+    }
+
+    private static int slotCount(int capacity) {
+        int bytes = SORTED_HEADER_LENGTH + capacity * CPEdge.LENGTH;
+        return (bytes + LENGTH - 1) / LENGTH;
     }
 
     public CPEdge findEdge(Integer label, List<Integer> buffer) {
+        if (sorted) {
+            int low = 0;
+            int high = edgeCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                CPEdge e = edges[mid];
+                int first = buffer.get(e.getStart());
+                if (first < label) {
+                    low = mid + 1;
+                } else if (first > label) {
+                    high = mid - 1;
+                } else {
+                    return e;
+                }
+            }
+            return null;
+        }
         for (int i = 0; i < edgeCount; i++) {
             CPEdge e = edges[i];
             Integer first = buffer.get(e.getStart());
@@ -70,6 +192,47 @@ public class CPEdgeBlock {
         return null;
     }
 
+    /**
+     * Finds the edge directly in the edge file. Only the start of the visited
+     * edges is read, the matching edge is decoded. The position of the file
+     * is not used.
+     */
+    public static CPEdge findEdge(Storage storage, long id, int label, List<Integer> buffer) throws IOException {
+        MappedFile edgeFile = storage.getEdgeFile();
+        long offset = id * LENGTH;
+        long nextId = edgeFile.readLong(offset + 8);
+        int count = edgeFile.readInt(offset + 16);
+        if (nextId == SORTED) {
+            long base = offset + SORTED_HEADER_LENGTH;
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long edgeOffset = base + (long) mid * CPEdge.LENGTH;
+                int first = buffer.get(edgeFile.readInt(edgeOffset));
+                if (first < label) {
+                    low = mid + 1;
+                } else if (first > label) {
+                    high = mid - 1;
+                } else {
+                    return CPEdge.readFrom(storage, edgeOffset);
+                }
+            }
+            return null;
+        }
+        long base = offset + 8 + 8 + 4;
+        for (int i = 0; i < count; i++) {
+            long edgeOffset = base + (long) i * CPEdge.LENGTH;
+            if (buffer.get(edgeFile.readInt(edgeOffset)) == label) {
+                return CPEdge.readFrom(storage, edgeOffset);
+            }
+        }
+        if (nextId >= 0) {
+            return findEdge(storage, nextId, label, buffer);
+        }
+        return null;
+    }
+
     public CPEdgeBlock getNext() {
         return next;
     }
@@ -82,6 +245,11 @@ public class CPEdgeBlock {
         assert eid == id;
         long nextId = edgeFile.readLong();
         edgeCount = edgeFile.readInt();
+        if (nextId == SORTED) {
+            int capacity = edgeFile.readInt();
+            sorted = true;
+            edges = new CPEdge[capacity];
+        }
         for (int i = 0; i < edgeCount; i++) {
             edges[i] = CPEdge.readFrom(storage);
         }
@@ -96,9 +264,15 @@ public class CPEdgeBlock {
         long offset = id * LENGTH;
         edgeFile.seek(offset);
         edgeFile.writeLong(id);
-        long nextId = (next == null) ? -1L : next.id;
-        edgeFile.writeLong(nextId);
-        edgeFile.writeInt(edgeCount);
+        if (sorted) {
+            edgeFile.writeLong(SORTED);
+            edgeFile.writeInt(edgeCount);
+            edgeFile.writeInt(edges.length);
+        } else {
+            long nextId = (next == null) ? -1L : next.id;
+            edgeFile.writeLong(nextId);
+            edgeFile.writeInt(edgeCount);
+        }
         for (int i = 0; i < edgeCount; i++) {
             CPEdge e = edges[i];
             e.writeTo(storage);
@@ -108,12 +282,12 @@ public class CPEdgeBlock {
         }
     }
 
-    public void print(CPLinearizations linearizations) throws IOException {
+    public void print(Storage storage, CPLinearizations linearizations) throws IOException {
         for (int i = 0; i < edgeCount; i++) {
-            edges[i].print(linearizations);
+            edges[i].print(storage, linearizations);
         }
         if (next != null) {
-            next.print(linearizations);
+            next.print(storage, linearizations);
         }
     }
 }
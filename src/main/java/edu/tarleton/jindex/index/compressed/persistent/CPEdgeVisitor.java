@@ -0,0 +1,15 @@
+package edu.tarleton.jindex.index.compressed.persistent;
+
+import java.io.IOException;
+
+/**
+ * The visitor of the edges of the compressed persistent TRIE.
+ * In a parallel traversal, the visitor is called from several threads and
+ * each thread passes its own storage.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public interface CPEdgeVisitor {
+
+    void visit(CPEdge edge, Storage storage) throws IOException;
+}
@@ -1,11 +1,16 @@
 package edu.tarleton.jindex.index.compressed.persistent;
 
 import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.utils.SourceRoot;
+import edu.tarleton.jindex.CountingVisitor;
 import edu.tarleton.jindex.Engine;
-import edu.tarleton.jindex.NormalizingVisitor;
+import edu.tarleton.jindex.IndexPipeline;
+import edu.tarleton.jindex.IndexPipeline.SourceFile;
 import edu.tarleton.jindex.Pos;
+import edu.tarleton.jindex.QueryServer;
+import edu.tarleton.jindex.Searcher;
+import edu.tarleton.jindex.index.CappedEdges;
 import edu.tarleton.jindex.index.CompressedIndexBuilder;
+import edu.tarleton.jindex.index.IngestionPolicy;
 import edu.tarleton.jindex.index.compressed.CTrie;
 import edu.tarleton.jindex.index.compressed.naive.SimplifiedCompressedIndexStmtBuilderNaive;
 import edu.tarleton.jindex.index.compressed.persistent.CPTrie.Mode;
@@ -13,12 +18,14 @@ import edu.tarleton.jindex.index.plain.persistent.PEdgeBlock;
 import edu.tarleton.jindex.index.plain.persistent.PNode;
 import edu.tarleton.jindex.index.plain.persistent.PPos;
 import edu.tarleton.jindex.search.Parser;
+import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 /**
@@ -43,7 +50,13 @@ public class CPEngine extends Engine {
     private final String labelFileName;
     private final String linearizationFileName;
     private final String nextStmtMapFileName;
-    private final int batchFileSize;
+    private final int indexThreads;
+    private final int traversalThreads;
+    private final int sortedEdgeThreshold;
+    private final boolean rebuildEdges;
+    private final boolean incremental;
+    private final int nodeCacheSize;
+    private final IngestionPolicy ingestionPolicy;
 
     public CPEngine(Properties conf) {
         super(conf);
@@ -62,7 +75,13 @@ public class CPEngine extends Engine {
         labelFileName = dataPath + conf.getProperty("labelFile");
         linearizationFileName = dataPath + conf.getProperty("linearizationFile");
         nextStmtMapFileName = dataPath + conf.getProperty("nextStmtMapFile");
-        batchFileSize = Integer.parseInt(conf.getProperty("batchFileSize", "1000"));
+        indexThreads = Integer.parseInt(conf.getProperty("indexThreads", "1"));
+        traversalThreads = Integer.parseInt(conf.getProperty("traversalThreads", "1"));
+        sortedEdgeThreshold = getIntProperty(conf, "sortedEdgeThreshold", CPEdgeBlock.DEFAULT_SORTED_THRESHOLD);
+        rebuildEdges = Boolean.parseBoolean(conf.getProperty("rebuildEdges"));
+        incremental = Boolean.parseBoolean(conf.getProperty("incremental"));
+        nodeCacheSize = getIntProperty(conf, "nodeCacheSize", CPNodeCache.DEFAULT_CAPACITY);
+        ingestionPolicy = IngestionPolicy.fromConf(conf);
     }
 
     private int getIntProperty(Properties conf, String name, int defaultValue) {
@@ -75,30 +94,103 @@ public class CPEngine extends Engine {
 
     @Override
     public void perform() throws Exception {
-        CompressedIndexBuilder builder = createBuilder();
+        if (rebuildEdges) {
+            rebuildEdges();
+            return;
+        }
+        if (detectClones) {
+            printClones();
+            return;
+        }
+        if (serve) {
+            new QueryServer(this, conf).run();
+            return;
+        }
+        if (incremental && update()) {
+            return;
+        }
         try (CPTrie trie = CPTrie.initialize(nodeFileName, nodeFilePageSize,
                 edgeFileName, edgeFilePageSize,
                 posFileName, posFilePageSize,
                 projectFileName, pathFileName,
                 labelFileName, linearizationFileName,
                 nextStmtMapFileName)) {
-            processDir(builder, sourceDir, trie);
-            if (fileCount > 0) {
-                CTrie t = builder.getTrie();
-                trie.addTrie(t);
-                if (printStatistics) {
-                    statistics.store(countingVisitor.getLines(),
-                            countingVisitor.getNodes(),
-                            CPNode.getCount(),
-                            CPEdge.getCount(),
-                            CPPos.getCount());
-                }
+            trie.getNodeCache().setCapacity(nodeCacheSize);
+            trie.setSortedEdgeThreshold(sortedEdgeThreshold);
+            trie.setIngestionPolicy(ingestionPolicy);
+            if (incremental) {
+                List<Path> files = listSourceFiles(sourceDir);
+                trie.getFileStates().scan(Paths.get(sourceDir), files, new ArrayList<>());
+                processFiles(sourceDir, files.stream(), trie);
+            } else {
+                processFiles(sourceDir, walkSourceFiles(sourceDir), trie);
+            }
+            printResults(trie);
+        }
+    }
+
+    /**
+     * Updates the index with the files that were added, changed, or deleted
+     * since the last run. Returns false if the index cannot be updated.
+     */
+    private boolean update() throws Exception {
+        if (!new File(nodeFileName).exists()) {
+            return false;
+        }
+        try (CPTrie trie = CPTrie.fromFiles(Mode.READ_WRITE,
+                nodeFileName, nodeFilePageSize,
+                edgeFileName, edgeFilePageSize,
+                posFileName, posFilePageSize,
+                projectFileName, pathFileName,
+                labelFileName, linearizationFileName,
+                nextStmtMapFileName)) {
+            if (!trie.isUpdatable()) {
+                return false;
             }
-            if (printStatistics) {
-                statistics.print(true);
+            trie.getNodeCache().setCapacity(nodeCacheSize);
+            trie.setSortedEdgeThreshold(sortedEdgeThreshold);
+            trie.setIngestionPolicy(ingestionPolicy);
+            List<String> removed = new ArrayList<>();
+            List<Path> files = trie.getFileStates().scan(Paths.get(sourceDir),
+                    listSourceFiles(sourceDir), removed);
+            for (String path : removed) {
+                trie.removeFile(path);
             }
-            if (printTrie) {
-                trie.print();
+            processFiles(sourceDir, files.stream(), trie);
+            if (verbose) {
+                System.out.printf("%d files indexed, %d files removed%n", files.size(), removed.size());
+            }
+            printResults(trie);
+        }
+        return true;
+    }
+
+    private void printResults(CPTrie trie) throws IOException {
+        if (printStatistics) {
+            statistics.print(true);
+            CPNodeCache cache = trie.getNodeCache();
+            System.out.printf("node cache: %d hits, %d misses%n", cache.getHits(), cache.getMisses());
+            CappedEdges capped = trie.getCappedEdges();
+            System.out.printf("capped edges: %d, dropped positions: %d%n",
+                    capped.getEdgeCount(), capped.getDroppedCount());
+        }
+        if (printTrie) {
+            trie.print();
+        }
+    }
+
+    private void rebuildEdges() throws Exception {
+        try (CPTrie trie = CPTrie.fromFiles(Mode.READ_WRITE,
+                nodeFileName, nodeFilePageSize,
+                edgeFileName, edgeFilePageSize,
+                posFileName, posFilePageSize,
+                projectFileName, pathFileName,
+                labelFileName, linearizationFileName,
+                nextStmtMapFileName)) {
+            trie.setSortedEdgeThreshold(sortedEdgeThreshold);
+            int converted = trie.rebuildEdges();
+            if (verbose) {
+                System.out.printf("converted %d nodes to sorted edge blocks%n", converted);
             }
         }
     }
@@ -108,56 +200,118 @@ public class CPEngine extends Engine {
         return new SimplifiedCompressedIndexStmtBuilderNaive(conf, dir);
     }
 
-    private void processDir(CompressedIndexBuilder builder, String srcDir, CPTrie trie) throws IOException {
-        Path path = Paths.get(srcDir);
-        try (Stream<Path> paths = Files.walk(path)) {
-            paths.filter(Files::isRegularFile)
-                    .filter(p -> p.toString().endsWith(".java"))
-                    .forEach(p -> {
-                        processFile(builder, srcDir, p, trie);
-                    });
+    /**
+     * Indexes the files in a pipeline of batches. The batches are parsed by
+     * indexThreads threads and added to the index in the order of the files.
+     */
+    private void processFiles(String srcDir, Stream<Path> files, CPTrie trie) throws Exception {
+        IndexPipeline<Batch> pipeline = createPipeline(indexThreads);
+        pipeline.run(files, sources -> processBatch(srcDir, sources),
+                batch -> batch.trie.estimateBytes(), batch -> addBatch(trie, batch));
+        if (printStatistics) {
+            statistics.storePipeline(pipeline.getStages(), pipeline.getQueues());
+            statistics.storeBatchSizer(pipeline.getBatchSizer());
+        }
+    }
+
+    private Batch processBatch(String srcDir, List<SourceFile> files) {
+        CompressedIndexBuilder builder = createBuilder();
+        CountingVisitor counter = printStatistics ? new CountingVisitor() : null;
+        List<Path> parsed = new ArrayList<>();
+        for (SourceFile file : files) {
+            CompilationUnit cu = parseFile(srcDir, file, counter);
+            if (cu == null) {
+                continue;
+            }
+            try {
+                cu.accept(builder, null);
+                parsed.add(file.getPath());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return new Batch(builder.getTrie(), counter, parsed);
+    }
+
+    /**
+     * Adds the batch to the index and commits the state of its files.
+     */
+    private void addBatch(CPTrie trie, Batch batch) throws IOException {
+        if (batch.files.isEmpty()) {
+            return;
+        }
+        trie.addTrie(batch.trie);
+        trie.getFileStates().commit(Paths.get(sourceDir), batch.files);
+        fileCount += batch.files.size();
+        if (printStatistics) {
+            countingVisitor.add(batch.counter);
+            statistics.store(countingVisitor.getLines(),
+                    countingVisitor.getNodes(), CPNode.getCount(),
+                    CPEdge.getCount(), CPPos.getCount());
         }
     }
 
-    private void processFile(CompressedIndexBuilder builder, String srcDir, Path path, CPTrie trie) {
-        String fn = path.toString().substring(srcDir.length());
-        if (fn.startsWith("/") || fn.startsWith("\\")) {
-            fn = fn.substring(1);
-        }
-        if (verbose) {
-            System.out.printf("processing %s...%n", fn);
-        }
-        NormalizingVisitor normVisitor = new NormalizingVisitor(conf);
-        Path root = Paths.get(srcDir);
-        SourceRoot sourceRoot = new SourceRoot(root, parserConfiguration);
-        try {
-            CompilationUnit cu = sourceRoot.parse("", fn);
-            if (printStatistics) {
-                cu.accept(countingVisitor, null);
+    @Override
+    public Searcher openSearcher() throws Exception {
+        CPTrie trie = CPTrie.fromFiles(Mode.READ_ONLY,
+                nodeFileName, nodeFilePageSize,
+                edgeFileName, edgeFilePageSize,
+                posFileName, posFilePageSize,
+                projectFileName, pathFileName,
+                labelFileName, linearizationFileName,
+                nextStmtMapFileName);
+        ThreadLocal<Parser> parsers = ThreadLocal.withInitial(() -> Parser.instantiate(conf));
+        return new Searcher() {
+
+            @Override
+            public List<Pos> find(String code) throws Exception {
+                List<String> tokens = parsers.get().parseRename(code, true);
+                return trie.find(tokens);
             }
-            cu.accept(normVisitor, null);
-            cu.accept(builder, null);
-            fileCount++;
-            if (fileCount == batchFileSize) {
-                CTrie t = builder.getTrie();
-                trie.addTrie(t);
-                if (printStatistics) {
-                    statistics.store(countingVisitor.getLines(),
-                            countingVisitor.getNodes(), CPNode.getCount(),
-                            CPEdge.getCount(), CPPos.getCount());
+
+            @Override
+            public List<List<Pos>> find(List<String> codes) throws Exception {
+                Parser parser = parsers.get();
+                List<List<String>> tokenLists = new ArrayList<>();
+                for (String code : codes) {
+                    tokenLists.add(parser.parseRename(code, true));
                 }
-                builder.reset();
-                fileCount = 0;
+                return trie.findAll(tokenLists);
+            }
+
+            @Override
+            public long count(String code) throws Exception {
+                List<String> tokens = parsers.get().parseRename(code, true);
+                return trie.countPositions(tokens);
+            }
+
+            @Override
+            public Pos getNextStmt(Pos stmt) {
+                return trie.getNextStmt(stmt);
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } catch (Exception e) {
-            e.printStackTrace();
+
+            @Override
+            public void close() throws Exception {
+                trie.close();
+            }
+        };
+    }
+
+    @Override
+    public long detectClones(int minSize, int maxSize, Consumer<List<Pos>> consumer) throws Exception {
+        try (CPTrie trie = CPTrie.fromFiles(Mode.READ_ONLY,
+                nodeFileName, nodeFilePageSize,
+                edgeFileName, edgeFilePageSize,
+                posFileName, posFilePageSize,
+                projectFileName, pathFileName,
+                labelFileName, linearizationFileName,
+                nextStmtMapFileName)) {
+            return trie.detectClones(minSize, maxSize, traversalThreads, consumer);
         }
     }
 
     @Override
-    public List<Pos> find(String code) throws Exception {
+    public long detectSequenceClones(int minSize, int maxSize, Consumer<List<Pos>> consumer) throws Exception {
         try (CPTrie trie = CPTrie.fromFiles(Mode.READ_ONLY,
                 nodeFileName, nodeFilePageSize,
                 edgeFileName, edgeFilePageSize,
@@ -165,9 +319,20 @@ public class CPEngine extends Engine {
                 projectFileName, pathFileName,
                 labelFileName, linearizationFileName,
                 nextStmtMapFileName)) {
-            Parser parser = Parser.instantiate(conf);
-            List<String> tokens = parser.parseRename(code, true);
-            return trie.find(tokens);
+            return trie.detectSequenceClones(minSize, maxSize, traversalThreads, consumer);
+        }
+    }
+
+    private static class Batch {
+
+        final CTrie trie;
+        final CountingVisitor counter;
+        final List<Path> files;
+
+        Batch(CTrie trie, CountingVisitor counter, List<Path> files) {
+            this.trie = trie;
+            this.counter = counter;
+            this.files = files;
         }
     }
 }
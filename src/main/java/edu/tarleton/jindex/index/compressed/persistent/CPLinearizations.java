@@ -1,5 +1,6 @@
 package edu.tarleton.jindex.index.compressed.persistent;
 
+import edu.tarleton.jindex.index.LabelDictionary;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -19,10 +20,10 @@ import java.util.List;
  */
 public class CPLinearizations {
 
-    private final List<String> labels;
+    private final LabelDictionary labels;
     private final List<Integer> buffer;
 
-    private CPLinearizations(List<String> labels, List<Integer> buffer) {
+    private CPLinearizations(LabelDictionary labels, List<Integer> buffer) {
         this.labels = labels;
         this.buffer = buffer;
     }
@@ -41,16 +42,17 @@ public class CPLinearizations {
     }
 
     public static CPLinearizations load(Storage storage) throws IOException {
-        List<String> labels = loadLabels(storage);
+        LabelDictionary labels = LabelDictionary.load(storage.getLabelFile());
         List<Integer> linearizations = new ArrayList<>();
         File linFile = storage.getLinearizationFile();
         if (!linFile.exists()) {
             return new CPLinearizations(labels, linearizations);
         }
+        boolean shortIds = (storage.getFormatVersion() == 1);
         try (DataInputStream in = new DataInputStream(new FileInputStream(linFile))) {
             try {
                 while (true) {
-                    int lab = in.readUnsignedShort();
+                    int lab = shortIds ? in.readUnsignedShort() : in.readInt();
                     linearizations.add(lab);
                 }
             } catch (EOFException e) {
@@ -60,25 +62,6 @@ public class CPLinearizations {
         return new CPLinearizations(labels, linearizations);
     }
 
-    private static List<String> loadLabels(Storage storage) throws IOException {
-        List<String> labels = new ArrayList<>();
-        File labelFile = storage.getLabelFile();
-        if (!labelFile.exists()) {
-            return labels;
-        }
-        try (DataInputStream in = new DataInputStream(new FileInputStream(labelFile))) {
-            try {
-                while (true) {
-                    String label = in.readUTF();
-                    labels.add(label);
-                }
-            } catch (EOFException e) {
-                // okay
-            }
-        }
-        return labels;
-    }
-
     private static String toString(List<String> linearization) {
         StringBuilder sb = new StringBuilder();
         for (String lab : linearization) {
@@ -90,26 +73,16 @@ public class CPLinearizations {
         return sb.toString();
     }
 
-    public List<String> getLabels() {
-        return labels;
-    }
-
     public String getLabel(Integer i) {
-        return labels.get(i);
+        return labels.getLabel(i);
     }
 
     private int toLabelId(String label) {
-        int index = labels.indexOf(label);
-        if (index >= 0) {
-            return index;
-        }
-        labels.add(label);
-        assert labels.size() <= Short.MAX_VALUE;
-        return labels.size() - 1;
+        return labels.toId(label);
     }
 
     public int findLabel(String label) {
-        return labels.indexOf(label);
+        return labels.getId(label);
     }
 
     public List<Integer> getBuffer() {
@@ -136,17 +109,23 @@ public class CPLinearizations {
         }
     }
 
+    public void close() {
+        labels.close();
+    }
+
     public void store(Storage storage) throws IOException {
-        try (DataOutputStream out = new DataOutputStream(
-                new FileOutputStream(storage.getLabelFile()))) {
-            for (String lab : labels) {
-                out.writeUTF(lab);
-            }
-        }
+        labels.store(storage.getLabelFile());
         try (DataOutputStream out = new DataOutputStream(
                 new FileOutputStream(storage.getLinearizationFile()))) {
+            boolean shortIds = (storage.getFormatVersion() == 1);
             for (Integer i : buffer) {
-                out.writeShort(i);
+                if (!shortIds) {
+                    out.writeInt(i);
+                } else if (i <= 0xFFFF) {
+                    out.writeShort(i);
+                } else {
+                    throw new IOException("label id does not fit in the index format 1: " + i);
+                }
             }
         }
     }
@@ -161,7 +140,7 @@ public class CPLinearizations {
                     List<String> linear = new ArrayList<>();
                     for (int i = 0; i < len; i++) {
                         int lab = in.readUnsignedShort();
-                        String slab = labels.get(lab);
+                        String slab = labels.getLabel(lab);
                         linear.add(slab);
                     }
                     String str = toString(linear);
@@ -2,6 +2,8 @@ package edu.tarleton.jindex.index.compressed.persistent;
 
 import edu.tarleton.jindex.index.MappedFile;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The node of the compressed persistent TRIE.
@@ -11,21 +13,24 @@ import java.io.IOException;
 public class CPNode {
 
     public static final int LENGTH = 16;
-    private static long count;
+    private static final AtomicLong count = new AtomicLong();
     private final long id;
     private CPEdgeBlock edgeBlock;
 
     public static long getCount() {
-        return count;
+        return count.get();
     }
 
     public static void reset() {
-        count = 0;
+        count.set(0L);
+    }
+
+    public static void reset(long nextId) {
+        count.set(nextId);
     }
 
     public CPNode() {
-        id = count;
-        count++;
+        id = count.getAndIncrement();
         edgeBlock = new CPEdgeBlock();
     }
 
@@ -51,17 +56,26 @@ public class CPNode {
         edgeBlock.readFrom(storage);
     }
 
+    /**
+     * Finds the edge directly in the files. This does not use the position
+     * of the files, so it can be called concurrently.
+     */
+    public static CPEdge findEdge(Storage storage, long id, int label, List<Integer> buffer) throws IOException {
+        long ebId = storage.getNodeFile().readLong(id * LENGTH + 8);
+        return CPEdgeBlock.findEdge(storage, ebId, label, buffer);
+    }
+
     public void writeTo(Storage storage) throws IOException {
         MappedFile nodeFile = storage.getNodeFile();
         long offset = id * LENGTH;
         nodeFile.seek(offset);
-        nodeFile.writeLong(id);
+        nodeFile.writeLong((id == 0L) ? storage.getFormatVersion() : id);
         nodeFile.writeLong(edgeBlock.getId());
         edgeBlock.writeTo(storage);
     }
 
-    public void print(CPLinearizations linearizations) throws IOException {
+    public void print(Storage storage, CPLinearizations linearizations) throws IOException {
         System.out.printf("node: %d%n", id);
-        edgeBlock.print(linearizations);
+        edgeBlock.print(storage, linearizations);
     }
 }
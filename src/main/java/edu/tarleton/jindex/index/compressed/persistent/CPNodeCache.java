@@ -0,0 +1,97 @@
+package edu.tarleton.jindex.index.compressed.persistent;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The LRU cache of decoded nodes (with their edge blocks) of the compressed
+ * persistent TRIE. Modified nodes are written back when they are evicted or
+ * when the cache is flushed. The capacity 0 disables the cache.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class CPNodeCache {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    private final Storage storage;
+    private final LinkedHashMap<Long, CPNode> nodes = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<Long> dirty = new HashSet<>();
+    private int capacity;
+    private long hits;
+    private long misses;
+
+    public CPNodeCache(Storage storage, int capacity) {
+        this.storage = storage;
+        this.capacity = capacity;
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized void setCapacity(int capacity) throws IOException {
+        this.capacity = capacity;
+        evict();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized CPNode get(long id) throws IOException {
+        CPNode p = nodes.get(id);
+        if (p != null) {
+            hits++;
+            return p;
+        }
+        misses++;
+        p = new CPNode(id);
+        p.readFrom(storage);
+        if (capacity > 0) {
+            nodes.put(id, p);
+            evict();
+        }
+        return p;
+    }
+
+    public synchronized void put(CPNode p) throws IOException {
+        if (capacity <= 0) {
+            p.writeTo(storage);
+            return;
+        }
+        nodes.put(p.getId(), p);
+        dirty.add(p.getId());
+        evict();
+    }
+
+    public synchronized void flush() throws IOException {
+        for (Long id : dirty) {
+            nodes.get(id).writeTo(storage);
+        }
+        dirty.clear();
+    }
+
+    public synchronized void clear() throws IOException {
+        flush();
+        nodes.clear();
+    }
+
+    private void evict() throws IOException {
+        Iterator<Map.Entry<Long, CPNode>> it = nodes.entrySet().iterator();
+        while (nodes.size() > capacity) {
+            Map.Entry<Long, CPNode> e = it.next();
+            it.remove();
+            if (dirty.remove(e.getKey())) {
+                e.getValue().writeTo(storage);
+            }
+        }
+    }
+}
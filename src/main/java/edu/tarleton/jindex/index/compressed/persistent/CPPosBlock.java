@@ -3,6 +3,10 @@ package edu.tarleton.jindex.index.compressed.persistent;
 import edu.tarleton.jindex.index.MappedFile;
 import edu.tarleton.jindex.index.plain.persistent.PBlockType;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * The block of positions in the compressed persistent TRIE.
@@ -11,17 +15,30 @@ import java.io.IOException;
  */
 public abstract class CPPosBlock {
 
-    private static long posBlockCount;
-    protected final long id;
+    /**
+     * The unit of allocation in the position file. A block occupies one or
+     * more consecutive units and its id is the index of its first unit.
+     */
+    public static final int UNIT = 32;
+    public static final int INDIRECT_UNITS = (CPPosBlockDirect.LENGTH + UNIT - 1) / UNIT;
+    private static final AtomicLong posBlockCount = new AtomicLong();
+    protected long id;
     protected final PBlockType type;
 
     public static void reset() {
-        posBlockCount = 0;
+        posBlockCount.set(0L);
     }
 
-    public CPPosBlock(PBlockType type) {
-        this(posBlockCount, type);
-        posBlockCount++;
+    public static void reset(long nextId) {
+        posBlockCount.set(nextId);
+    }
+
+    public static long getNextId() {
+        return posBlockCount.get();
+    }
+
+    public CPPosBlock(PBlockType type, int units) {
+        this(allocate(units), type);
     }
 
     public CPPosBlock(long id, PBlockType type) {
@@ -29,9 +46,13 @@ public abstract class CPPosBlock {
         this.type = type;
     }
 
+    protected static long allocate(int units) {
+        return posBlockCount.getAndAdd(units);
+    }
+
     public static CPPosBlock read(long id, Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        long offset = id * CPPosBlockDirect.LENGTH;
+        long offset = id * storage.getPosBlockUnit();
         posFile.seek(offset);
         long pid = posFile.readLong();
         assert pid == id;
@@ -54,6 +75,10 @@ public abstract class CPPosBlock {
                 return new CPPosBlockIndirect3(id);
             case INDIRECT4:
                 return new CPPosBlockIndirect4(id);
+            case PACKED:
+                return new CPPosBlockPacked(id);
+            case EXTENT:
+                return new CPPosBlockExtent(id);
             default:
                 throw new AssertionError("invalid type");
         }
@@ -67,9 +92,27 @@ public abstract class CPPosBlock {
 
     public abstract int countPositions();
 
-    public abstract CPPos[] getPositions();
+    /**
+     * Returns the number of positions whose size (in lines) is between
+     * minSize and maxSize. The positions are not created.
+     */
+    public abstract int countPositions(int minSize, int maxSize);
 
-    public abstract CPPos[] getPositions(int minSize, int maxSize);
+    /**
+     * Passes the positions whose size (in lines) is between minSize and
+     * maxSize to the action in the order in which they were added.
+     */
+    public abstract void forEachPosition(int minSize, int maxSize, Consumer<CPPos> action);
+
+    public CPPos[] getPositions() {
+        return getPositions(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    public CPPos[] getPositions(int minSize, int maxSize) {
+        List<CPPos> pp = new ArrayList<>();
+        forEachPosition(minSize, maxSize, pp::add);
+        return pp.toArray(new CPPos[pp.size()]);
+    }
 
     public abstract void readFrom(Storage storage) throws IOException;
 
@@ -77,12 +120,11 @@ public abstract class CPPosBlock {
 
     public abstract CPPosBlock toUpperLevelPosBlock(CPPosBlock pblock);
     
-    public abstract CPPosBlock makeClone();
-    
     public abstract void print();
 
-    protected void readHeaderFrom(MappedFile posFile) throws IOException {
-        long offset = id * CPPosBlockDirect.LENGTH;
+    protected void readHeaderFrom(Storage storage) throws IOException {
+        MappedFile posFile = storage.getPosFile();
+        long offset = id * storage.getPosBlockUnit();
         posFile.seek(offset);
         long pid = posFile.readLong();
         assert pid == id;
@@ -91,8 +133,9 @@ public abstract class CPPosBlock {
         assert ptype == type;
     }
 
-    protected void writeHeaderTo(MappedFile posFile) throws IOException {
-        long offset = id * CPPosBlockDirect.LENGTH;
+    protected void writeHeaderTo(Storage storage) throws IOException {
+        MappedFile posFile = storage.getPosFile();
+        long offset = id * storage.getPosBlockUnit();
         posFile.seek(offset);
         posFile.writeLong(id);
         posFile.writeShort((short) type.ordinal());
@@ -3,9 +3,11 @@ package edu.tarleton.jindex.index.compressed.persistent;
 import edu.tarleton.jindex.index.MappedFile;
 import edu.tarleton.jindex.index.plain.persistent.PBlockType;
 import java.io.IOException;
+import java.util.function.Consumer;
 
 /**
- * The direct block of positions in the compressed persistent TRIE.
+ * The direct block of positions in the compressed persistent TRIE. Direct
+ * blocks are used by indexes of format version 1 and 2.
  *
  * @author Zdenek Tronicek, tronicek@tarleton.edu
  */
@@ -16,10 +18,6 @@ public class CPPosBlockDirect extends CPPosBlock {
     private int posCount;
     private final CPPos[] positions = new CPPos[BLOCK_SIZE];
 
-    public CPPosBlockDirect() {
-        super(PBlockType.DIRECT);
-    }
-
     public CPPosBlockDirect(long id) {
         super(id, PBlockType.DIRECT);
     }
@@ -40,14 +38,7 @@ public class CPPosBlockDirect extends CPPosBlock {
     }
 
     @Override
-    public CPPos[] getPositions() {
-        CPPos[] pp = new CPPos[posCount];
-        System.arraycopy(positions, 0, pp, 0, pp.length);
-        return pp;
-    }
-
-    @Override
-    public CPPos[] getPositions(int minSize, int maxSize) {
+    public int countPositions(int minSize, int maxSize) {
         int c = 0;
         for (int i = 0; i < posCount; i++) {
             int size = positions[i].getLines();
@@ -55,21 +46,23 @@ public class CPPosBlockDirect extends CPPosBlock {
                 c++;
             }
         }
-        CPPos[] pp = new CPPos[c];
-        for (int i = 0, j = 0; i < posCount; i++) {
+        return c;
+    }
+
+    @Override
+    public void forEachPosition(int minSize, int maxSize, Consumer<CPPos> action) {
+        for (int i = 0; i < posCount; i++) {
             int size = positions[i].getLines();
             if (minSize <= size && size <= maxSize) {
-                pp[j] = positions[i];
-                j++;
+                action.accept(positions[i]);
             }
         }
-        return pp;
     }
 
     @Override
     public void readFrom(Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        readHeaderFrom(posFile);
+        readHeaderFrom(storage);
         posCount = posFile.readShort();
         for (int i = 0; i < posCount; i++) {
             positions[i] = CPPos.readFrom(storage);
@@ -79,7 +72,7 @@ public class CPPosBlockDirect extends CPPosBlock {
     @Override
     public void writeTo(Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        super.writeHeaderTo(posFile);
+        super.writeHeaderTo(storage);
         posFile.writeShort((short) posCount);
         for (int i = 0; i < posCount; i++) {
             CPPos p = positions[i];
@@ -92,16 +85,6 @@ public class CPPosBlockDirect extends CPPosBlock {
         return new CPPosBlockIndirect(pblock);
     }
 
-    @Override
-    public CPPosBlockDirect makeClone() {
-        CPPosBlockDirect p = new CPPosBlockDirect();
-        p.posCount = posCount;
-        for (int i = 0; i < posCount; i++) {
-            p.positions[i] = positions[i];
-        }
-        return p;
-    }
-
     @Override
     public void print() {
         System.out.printf("    posBlockId: %d (direct)%n", id);
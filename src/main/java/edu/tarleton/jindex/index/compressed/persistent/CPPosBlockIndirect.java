@@ -3,6 +3,7 @@ package edu.tarleton.jindex.index.compressed.persistent;
 import edu.tarleton.jindex.index.MappedFile;
 import edu.tarleton.jindex.index.plain.persistent.PBlockType;
 import java.io.IOException;
+import java.util.function.Consumer;
 
 /**
  * The indirect block of positions in the compressed persistent TRIE.
@@ -16,7 +17,7 @@ public class CPPosBlockIndirect extends CPPosBlock {
     private final CPPosBlock[] posBlock = new CPPosBlock[BLOCK_SIZE];
 
     public CPPosBlockIndirect() {
-        super(PBlockType.INDIRECT);
+        super(PBlockType.INDIRECT, INDIRECT_UNITS);
     }
 
     public CPPosBlockIndirect(long id) {
@@ -24,7 +25,7 @@ public class CPPosBlockIndirect extends CPPosBlock {
     }
 
     public CPPosBlockIndirect(CPPosBlock pb) {
-        super(PBlockType.INDIRECT);
+        super(PBlockType.INDIRECT, INDIRECT_UNITS);
         posBlock[0] = pb;
         posBlockCount++;
     }
@@ -32,7 +33,7 @@ public class CPPosBlockIndirect extends CPPosBlock {
     @Override
     public boolean addPos(CPPos pos) {
         if (posBlockCount == 0) {
-            posBlock[0] = new CPPosBlockDirect();
+            posBlock[0] = new CPPosBlockPacked();
             posBlock[0].addPos(pos);
             posBlockCount++;
             return true;
@@ -43,7 +44,7 @@ public class CPPosBlockIndirect extends CPPosBlock {
         if (posBlock[posBlockCount - 1].addPos(pos)) {
             return true;
         }
-        posBlock[posBlockCount] = new CPPosBlockDirect();
+        posBlock[posBlockCount] = new CPPosBlockPacked();
         posBlock[posBlockCount].addPos(pos);
         posBlockCount++;
         return true;
@@ -59,50 +60,39 @@ public class CPPosBlockIndirect extends CPPosBlock {
     }
 
     @Override
-    public CPPos[] getPositions() {
-        CPPos[] pp = new CPPos[0];
+    public int countPositions(int minSize, int maxSize) {
+        int posCount = 0;
         for (int i = 0; i < posBlockCount; i++) {
-            CPPos[] pp2 = posBlock[i].getPositions();
-            pp = merge(pp, pp2);
+            posCount += posBlock[i].countPositions(minSize, maxSize);
         }
-        return pp;
+        return posCount;
     }
 
     @Override
-    public CPPos[] getPositions(int minSize, int maxSize) {
-        CPPos[] pp = new CPPos[0];
+    public void forEachPosition(int minSize, int maxSize, Consumer<CPPos> action) {
         for (int i = 0; i < posBlockCount; i++) {
-            CPPos[] pp2 = posBlock[i].getPositions(minSize, maxSize);
-            pp = merge(pp, pp2);
+            posBlock[i].forEachPosition(minSize, maxSize, action);
         }
-        return pp;
-    }
-
-    private CPPos[] merge(CPPos[] pp1, CPPos[] pp2) {
-        CPPos[] pp = new CPPos[pp1.length + pp2.length];
-        System.arraycopy(pp1, 0, pp, 0, pp1.length);
-        System.arraycopy(pp2, 0, pp, pp1.length, pp2.length);
-        return pp;
     }
 
     @Override
     public void readFrom(Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        readHeaderFrom(posFile);
+        readHeaderFrom(storage);
         posBlockCount = posFile.readShort();
+        long[] pbIds = new long[posBlockCount];
         for (int i = 0; i < posBlockCount; i++) {
-            long pbId = posFile.readLong();
-            posBlock[i] = new CPPosBlockDirect(pbId);
+            pbIds[i] = posFile.readLong();
         }
         for (int i = 0; i < posBlockCount; i++) {
-            posBlock[i].readFrom(storage);
+            posBlock[i] = CPPosBlock.read(pbIds[i], storage);
         }
     }
 
     @Override
     public void writeTo(Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        super.writeHeaderTo(posFile);
+        super.writeHeaderTo(storage);
         posFile.writeShort((short) posBlockCount);
         for (int i = 0; i < posBlockCount; i++) {
             long pbId = posBlock[i].getId();
@@ -115,17 +105,7 @@ public class CPPosBlockIndirect extends CPPosBlock {
 
     @Override
     public CPPosBlock toUpperLevelPosBlock(CPPosBlock pblock) {
-        return new CPPosBlockIndirect2(pblock);
-    }
-
-    @Override
-    public CPPosBlockIndirect makeClone() {
-        CPPosBlockIndirect p = new CPPosBlockIndirect();
-        p.posBlockCount = posBlockCount;
-        for (int i = 0; i < posBlockCount; i++) {
-            p.posBlock[i] = posBlock[i].makeClone();
-        }
-        return p;
+        return new CPPosBlockExtent(pblock);
     }
 
     @Override
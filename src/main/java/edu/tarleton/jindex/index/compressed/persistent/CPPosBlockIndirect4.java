@@ -3,6 +3,7 @@ package edu.tarleton.jindex.index.compressed.persistent;
 import edu.tarleton.jindex.index.MappedFile;
 import edu.tarleton.jindex.index.plain.persistent.PBlockType;
 import java.io.IOException;
+import java.util.function.Consumer;
 
 /**
  * The fourth-level indirect block of positions in the compressed persistent
@@ -17,7 +18,7 @@ public class CPPosBlockIndirect4 extends CPPosBlock {
     private final CPPosBlock[] posBlock = new CPPosBlock[BLOCK_SIZE];
 
     public CPPosBlockIndirect4() {
-        super(PBlockType.INDIRECT4);
+        super(PBlockType.INDIRECT4, INDIRECT_UNITS);
     }
 
     public CPPosBlockIndirect4(long id) {
@@ -25,7 +26,7 @@ public class CPPosBlockIndirect4 extends CPPosBlock {
     }
 
     public CPPosBlockIndirect4(CPPosBlock pb) {
-        super(PBlockType.INDIRECT4);
+        super(PBlockType.INDIRECT4, INDIRECT_UNITS);
         posBlock[0] = pb;
         posBlockCount++;
     }
@@ -60,36 +61,25 @@ public class CPPosBlockIndirect4 extends CPPosBlock {
     }
 
     @Override
-    public CPPos[] getPositions() {
-        CPPos[] pp = new CPPos[0];
+    public int countPositions(int minSize, int maxSize) {
+        int posCount = 0;
         for (int i = 0; i < posBlockCount; i++) {
-            CPPos[] pp2 = posBlock[i].getPositions();
-            pp = merge(pp, pp2);
+            posCount += posBlock[i].countPositions(minSize, maxSize);
         }
-        return pp;
+        return posCount;
     }
 
     @Override
-    public CPPos[] getPositions(int minSize, int maxSize) {
-        CPPos[] pp = new CPPos[0];
+    public void forEachPosition(int minSize, int maxSize, Consumer<CPPos> action) {
         for (int i = 0; i < posBlockCount; i++) {
-            CPPos[] pp2 = posBlock[i].getPositions(minSize, maxSize);
-            pp = merge(pp, pp2);
+            posBlock[i].forEachPosition(minSize, maxSize, action);
         }
-        return pp;
-    }
-
-    private CPPos[] merge(CPPos[] pp1, CPPos[] pp2) {
-        CPPos[] pp = new CPPos[pp1.length + pp2.length];
-        System.arraycopy(pp1, 0, pp, 0, pp1.length);
-        System.arraycopy(pp2, 0, pp, pp1.length, pp2.length);
-        return pp;
     }
 
     @Override
     public void readFrom(Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        readHeaderFrom(posFile);
+        readHeaderFrom(storage);
         posBlockCount = posFile.readShort();
         for (int i = 0; i < posBlockCount; i++) {
             long pbId = posFile.readLong();
@@ -103,7 +93,7 @@ public class CPPosBlockIndirect4 extends CPPosBlock {
     @Override
     public void writeTo(Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        super.writeHeaderTo(posFile);
+        super.writeHeaderTo(storage);
         posFile.writeShort((short) posBlockCount);
         for (int i = 0; i < posBlockCount; i++) {
             long pbId = posBlock[i].getId();
@@ -116,17 +106,7 @@ public class CPPosBlockIndirect4 extends CPPosBlock {
 
     @Override
     public CPPosBlock toUpperLevelPosBlock(CPPosBlock pblock) {
-        throw new RuntimeException("too many positions");
-    }
-
-    @Override
-    public CPPosBlockIndirect4 makeClone() {
-        CPPosBlockIndirect4 p = new CPPosBlockIndirect4();
-        p.posBlockCount = posBlockCount;
-        for (int i = 0; i < posBlockCount; i++) {
-            p.posBlock[i] = posBlock[i].makeClone();
-        }
-        return p;
+        return new CPPosBlockExtent(pblock);
     }
 
     @Override
@@ -0,0 +1,106 @@
+package edu.tarleton.jindex.index.compressed.persistent;
+
+import edu.tarleton.jindex.index.MappedFile;
+import edu.tarleton.jindex.index.PackedPositions;
+import edu.tarleton.jindex.index.plain.persistent.PBlockType;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * The packed block of positions in the compressed persistent TRIE. The
+ * positions are delta and varint encoded. The block starts in one
+ * unit and doubles its length (in a new place of the file) when it is full.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class CPPosBlockPacked extends CPPosBlock {
+
+    public static final int HEADER_LENGTH = 8 + 2 + 2 + 2 + 1;
+    public static final int MAX_UNITS = 16;
+    private int units;
+    private final PackedPositions packed;
+
+    public CPPosBlockPacked() {
+        super(PBlockType.PACKED, 1);
+        units = 1;
+        packed = new PackedPositions(UNIT - HEADER_LENGTH);
+    }
+
+    public CPPosBlockPacked(long id) {
+        super(id, PBlockType.PACKED);
+        packed = new PackedPositions(0);
+    }
+
+    @Override
+    public boolean addPos(CPPos pos) {
+        if (pos.writeTo(packed)) {
+            return true;
+        }
+        while (units < MAX_UNITS) {
+            units *= 2;
+            id = allocate(units);
+            packed.setCapacity(units * UNIT - HEADER_LENGTH);
+            if (pos.writeTo(packed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int countPositions() {
+        return packed.getCount();
+    }
+
+    @Override
+    public int countPositions(int minSize, int maxSize) {
+        return packed.cursor().count(minSize, maxSize);
+    }
+
+    @Override
+    public void forEachPosition(int minSize, int maxSize, Consumer<CPPos> action) {
+        PackedPositions.Cursor c = packed.cursor();
+        while (c.next()) {
+            int size = c.getLines();
+            if (minSize <= size && size <= maxSize) {
+                action.accept(CPPos.readFrom(c));
+            }
+        }
+    }
+
+    @Override
+    public void readFrom(Storage storage) throws IOException {
+        MappedFile posFile = storage.getPosFile();
+        readHeaderFrom(storage);
+        int count = posFile.readShort();
+        int size = posFile.readShort();
+        units = posFile.readByte();
+        byte[] bytes = new byte[units * UNIT - HEADER_LENGTH];
+        posFile.read(bytes, 0, size);
+        packed.load(bytes, size, count);
+    }
+
+    @Override
+    public void writeTo(Storage storage) throws IOException {
+        MappedFile posFile = storage.getPosFile();
+        super.writeHeaderTo(storage);
+        posFile.writeShort((short) packed.getCount());
+        posFile.writeShort((short) packed.getSize());
+        posFile.writeByte((byte) units);
+        posFile.write(packed.getBytes(), 0, packed.getSize());
+    }
+
+    @Override
+    public CPPosBlock toUpperLevelPosBlock(CPPosBlock pblock) {
+        return new CPPosBlockExtent(pblock);
+    }
+
+    @Override
+    public void print() {
+        System.out.printf("    posBlockId: %d (packed)%n", id);
+        PackedPositions.Cursor c = packed.cursor();
+        while (c.next()) {
+            CPPos.readFrom(c).print();
+        }
+    }
+}
@@ -1,16 +1,7 @@
 package edu.tarleton.jindex.index.compressed.persistent;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import edu.tarleton.jindex.index.StringTable;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
-import java.nio.file.StandardOpenOption;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * The class that represents the persistent project names.
@@ -19,83 +10,50 @@ import java.util.Map;
  */
 public class CPProjects {
 
-    private final Map<String, Integer> map;
-    private int nextProjectId;
+    private final StringTable projects;
 
-    private CPProjects(Map<String, Integer> map, int nextProjectId) {
-        this.map = map;
-        this.nextProjectId = nextProjectId;
+    private CPProjects(StringTable projects) {
+        this.projects = projects;
     }
 
     public static void initialize(Storage storage) throws IOException {
-        File pathFile = storage.getPathFile();
-        try (FileChannel ch = FileChannel.open(pathFile.toPath(),
-                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
-            ch.truncate(0);
-        }
+        StringTable.initialize(storage.getProjectFile());
     }
 
     public static CPProjects load(Storage storage) throws IOException {
-        Map<String, Integer> map = new HashMap<>();
-        int projectId = 0;
-        File projFile = storage.getProjectFile();
-        if (!projFile.exists()) {
-            return new CPProjects(map, projectId);
-        }
-        try (DataInputStream in = new DataInputStream(new FileInputStream(projFile))) {
-            try {
-                while (true) {
-                    String path = in.readUTF();
-                    map.put(path, projectId);
-                    projectId++;
-                }
-            } catch (EOFException e) {
-                // okay
-            }
-        }
-        return new CPProjects(map, projectId);
+        return new CPProjects(StringTable.load(storage.getProjectFile()));
     }
 
-    public void append(Storage storage, String path) throws IOException {
-        try (DataOutputStream out = new DataOutputStream(
-                new FileOutputStream(storage.getPathFile(), true))) {
-            out.writeUTF(path);
-        }
+    public void store(Storage storage) throws IOException {
+        projects.store();
     }
 
-    public int toProjectId(Storage storage, String project) throws IOException {
-        Integer pid = map.get(project);
-        if (pid != null) {
+    public void close() throws IOException {
+        projects.close();
+    }
+
+    public synchronized int toProjectId(Storage storage, String project) throws IOException {
+        int pid = projects.getId(project);
+        if (pid >= 0) {
             return pid;
         }
-        append(storage, project);
-        map.put(project, nextProjectId);
-        nextProjectId++;
-        return nextProjectId - 1;
+        return projects.add(project);
     }
 
-    public Map<Integer, String> getInverseMap() {
-        Map<Integer, String> imap = new HashMap<>();
-        for (String fn : map.keySet()) {
-            Integer projId = map.get(fn);
-            imap.put(projId, fn);
-        }
-        return imap;
+    /**
+     * Returns the id of the project or -1 if there is no such project.
+     */
+    public int getProjectId(String project) {
+        return projects.getId(project);
+    }
+
+    public String getProject(int projectId) {
+        return (projectId < projects.size()) ? projects.get(projectId) : null;
     }
 
     public void print(Storage storage) throws IOException {
-        int projId = 0;
-        try (DataInputStream in = new DataInputStream(
-                new FileInputStream(storage.getProjectFile()))) {
-            try {
-                while (true) {
-                    String project = in.readUTF();
-                    System.out.printf("%d %s%n", projId, project);
-                    projId++;
-                }
-            } catch (EOFException e) {
-                // okay
-            }
+        for (int i = 0; i < projects.size(); i++) {
+            System.out.printf("%d %s%n", i, projects.get(i));
         }
     }
 }
@@ -0,0 +1,99 @@
+package edu.tarleton.jindex.index.compressed.persistent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The parallel traversal of the compressed persistent TRIE. The nodes in the
+ * first SPLIT_DEPTH levels are split into fork/join tasks, one per subtree,
+ * and the subtrees below are traversed depth-first. Each worker thread reads
+ * the trie through its own storage cursor.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+class CPTraversal {
+
+    static final int SPLIT_DEPTH = 2;
+    private final CPEdgeVisitor visitor;
+    private final ThreadLocal<Storage> cursors;
+
+    CPTraversal(Storage storage, CPEdgeVisitor visitor) {
+        this.visitor = visitor;
+        cursors = ThreadLocal.withInitial(() -> {
+            try {
+                return storage.cursor();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    void run(int threads) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new SubtreeTask(0L, 0));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void traverse(long nodeId, Storage storage) throws IOException {
+        Deque<Long> stack = new ArrayDeque<>();
+        stack.push(nodeId);
+        while (!stack.isEmpty()) {
+            CPNode p = new CPNode(stack.pop());
+            p.readFrom(storage);
+            for (CPEdgeBlock eb = p.getEdgeBlock(); eb != null; eb = eb.getNext()) {
+                CPEdge[] ee = eb.getEdges();
+                for (int i = 0; i < eb.getEdgeCount(); i++) {
+                    visitor.visit(ee[i], storage);
+                    stack.push(ee[i].getDestId());
+                }
+            }
+        }
+    }
+
+    private class SubtreeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final long nodeId;
+        private final int depth;
+
+        SubtreeTask(long nodeId, int depth) {
+            this.nodeId = nodeId;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            Storage storage = cursors.get();
+            try {
+                if (depth >= SPLIT_DEPTH) {
+                    traverse(nodeId, storage);
+                    return;
+                }
+                CPNode p = new CPNode(nodeId);
+                p.readFrom(storage);
+                List<SubtreeTask> tasks = new ArrayList<>();
+                for (CPEdgeBlock eb = p.getEdgeBlock(); eb != null; eb = eb.getNext()) {
+                    CPEdge[] ee = eb.getEdges();
+                    for (int i = 0; i < eb.getEdgeCount(); i++) {
+                        visitor.visit(ee[i], storage);
+                        tasks.add(new SubtreeTask(ee[i].getDestId(), depth + 1));
+                    }
+                }
+                invokeAll(tasks);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package edu.tarleton.jindex.index.compressed.persistent;
 
 import edu.tarleton.jindex.Pos;
+import edu.tarleton.jindex.index.CappedEdges;
+import edu.tarleton.jindex.index.FileStates;
+import edu.tarleton.jindex.index.IngestionPolicy;
 import edu.tarleton.jindex.index.PIndex;
+import edu.tarleton.jindex.index.SequenceClones.Fragment;
+import edu.tarleton.jindex.index.SequenceClones;
 import edu.tarleton.jindex.index.compressed.CTrie;
 import edu.tarleton.jindex.index.compressed.CTrieEdge;
 import edu.tarleton.jindex.index.compressed.CTrieNode;
@@ -9,9 +14,12 @@ import java.io.IOException;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * The representation of the compressed persistent TRIE.
@@ -26,6 +34,10 @@ public class CPTrie implements AutoCloseable, PIndex {
     private final CPFilePaths filePaths;
     private final CPLinearizations linearizations;
     private final CPNextStmtMap nextStmtMap;
+    private final CPNodeCache nodeCache;
+    private final FileStates fileStates;
+    private final CappedEdges cappedEdges;
+    private IngestionPolicy policy = new IngestionPolicy();
 
     public enum Mode {
         READ_WRITE, READ_ONLY
@@ -37,7 +49,17 @@ public class CPTrie implements AutoCloseable, PIndex {
         projects = CPProjects.load(storage);
         filePaths = CPFilePaths.load(storage);
         linearizations = CPLinearizations.load(storage);
-        nextStmtMap = CPNextStmtMap.load(storage);
+        nodeCache = new CPNodeCache(storage, CPNodeCache.DEFAULT_CAPACITY);
+        fileStates = FileStates.load(storage.getFileStateFile());
+        cappedEdges = CappedEdges.load(storage.getCappedEdgeFile());
+        filePaths.removeFileIds(fileStates.getTombstones());
+        nextStmtMap = CPNextStmtMap.load(storage, projects, filePaths);
+        if (mode == Mode.READ_WRITE && fileStates.isLoaded()) {
+            long[] nextIds = fileStates.getNextIds();
+            CPNode.reset(nextIds[0]);
+            CPEdgeBlock.reset(nextIds[1]);
+            CPPosBlock.reset(nextIds[2]);
+        }
     }
 
     public static CPTrie initialize(String nodeFileName, int nodeFilePageSize,
@@ -55,11 +77,14 @@ public class CPTrie implements AutoCloseable, PIndex {
         CPNode.reset();
         CPEdgeBlock.reset();
         CPPosBlock.reset();
+        FileStates.initialize(st.getFileStateFile());
+        CappedEdges.initialize(st.getCappedEdgeFile());
         CPNode root = new CPNode();
         root.writeTo(st);
         CPProjects.initialize(st);
         CPFilePaths.initialize(st);
         CPLinearizations.initialize(st);
+        CPNextStmtMap.initialize(st);
         return new CPTrie(Mode.READ_WRITE, st);
     }
 
@@ -81,14 +106,74 @@ public class CPTrie implements AutoCloseable, PIndex {
     @Override
     public void close() throws Exception {
         if (mode == Mode.READ_WRITE) {
+            nodeCache.flush();
             linearizations.store(storage);
-            if (nextStmtMap != null) {
-                nextStmtMap.store(storage);
+            projects.store(storage);
+            filePaths.store(storage);
+            if (fileStates.isLoaded() || !fileStates.isEmpty()) {
+                fileStates.setNextIds(CPNode.getCount(), CPEdgeBlock.getNextId(), CPPosBlock.getNextId());
+                fileStates.store(storage.getFileStateFile());
             }
+            cappedEdges.store(storage.getCappedEdgeFile());
+        }
+        linearizations.close();
+        projects.close();
+        filePaths.close();
+        if (nextStmtMap != null) {
+            nextStmtMap.close();
         }
         storage.close();
     }
 
+    public CPNodeCache getNodeCache() {
+        return nodeCache;
+    }
+
+    public FileStates getFileStates() {
+        return fileStates;
+    }
+
+    public CappedEdges getCappedEdges() {
+        return cappedEdges;
+    }
+
+    /**
+     * Sets the fanout above which the edges of a node are moved to a sorted
+     * edge block.
+     */
+    public void setSortedEdgeThreshold(int threshold) {
+        storage.setSortedEdgeThreshold(threshold);
+    }
+
+    /**
+     * Sets the policy that decides which positions are stored by addTrie.
+     */
+    public void setIngestionPolicy(IngestionPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Returns true if the index can be updated incrementally.
+     */
+    public boolean isUpdatable() {
+        return fileStates.isLoaded() && storage.getFormatVersion() == Storage.FORMAT_VERSION;
+    }
+
+    /**
+     * Removes the file from the index. The positions in the file become
+     * tombstones and the file gets a new id if it is added again.
+     */
+    public void removeFile(String path) {
+        Long fileId = filePaths.remove(path);
+        if (fileId != null) {
+            fileStates.addTombstone(fileId);
+        }
+    }
+
+    /**
+     * Adds the batch to the TRIE. The positions are stored according to the
+     * ingestion policy.
+     */
     public void addTrie(CTrie trie) throws IOException {
         int shift = linearizations.getBufferSize();
         linearizations.extendBuffer(trie.getBuffer());
@@ -97,42 +182,47 @@ public class CPTrie implements AutoCloseable, PIndex {
         queue.add(root);
         Deque<Long> queue2 = new ArrayDeque<>();
         queue2.add(0L);
+        Deque<Integer> depths = new ArrayDeque<>();
+        depths.add(0);
         while (!queue.isEmpty()) {
             CTrieNode n = queue.remove();
             Long nodeId = queue2.remove();
-            CPNode p = new CPNode(nodeId);
-            p.readFrom(storage);
+            int depth = depths.remove();
+            CPNode p = nodeCache.get(nodeId);
             CPEdgeBlock eb = p.getEdgeBlock();
             for (CTrieEdge e : n.getEdges()) {
+                if (depth == 0 && policy.isSkipped(e.getLabel().get(0))) {
+                    continue;
+                }
                 List<Integer> plin = linearizations.getBuffer();
                 Integer first = plin.get(e.getStart() + shift);
                 CPEdge pe = eb.findEdge(first, linearizations.getBuffer());
+                boolean tail = false;
                 if (pe == null) {
                     CPNode dest = new CPNode();
-                    dest.writeTo(storage);
+                    nodeCache.put(dest);
                     pe = new CPEdge(e.getStart() + shift, e.getEnd() + shift, dest.getId());
-                    eb.addEdge(pe);
+                    eb.addEdge(storage, pe, linearizations.getBuffer());
                     queue.add(e.getDestination());
                     queue2.add(dest.getId());
+                    depths.add(depth + e.getEnd() - e.getStart());
                 } else {
                     List<Integer> curLab = linearizations.getBuffer(pe.getStart(), pe.getEnd());
                     List<Integer> newLab = plin.subList(e.getStart() + shift, e.getEnd() + shift);
                     int pref = commonPrefix(curLab, newLab);
                     CPNode dest;
                     if (pref == curLab.size()) {
-                        dest = new CPNode(pe.getDestId());
-                        dest.readFrom(storage);
+                        dest = nodeCache.get(pe.getDestId());
                     } else {
-                        CPEdge pe2 = pe.makeClone();
-                        pe2.setStart(pe.getStart() + pref);
+                        CPEdge pe2 = pe.split(pe.getStart() + pref);
                         dest = new CPNode();
                         CPEdgeBlock eb2 = dest.getEdgeBlock();
-                        eb2.addEdge(pe2);
-                        pe.setEnd(pe.getStart() + pref);
+                        eb2.addEdge(storage, pe2, linearizations.getBuffer());
                         pe.setDestId(dest.getId());
-                        dest.writeTo(storage);
+                        nodeCache.put(dest);
                     }
                     CTrieNode temp;
+                    int tempDepth = depth + pref;
                     if (pref == newLab.size()) {
                         temp = e.getDestination();
                     } else {
@@ -140,25 +230,56 @@ public class CPTrie implements AutoCloseable, PIndex {
                         CTrieEdge tempEdge = e.makeClone();
                         tempEdge.setStart(e.getStart() + pref);
                         temp.addEdge(tempEdge);
+                        // the positions go with the rest of the label
+                        tail = true;
                     }
                     queue.add(temp);
                     queue2.add(dest.getId());
+                    depths.add(tempDepth);
                 }
-                for (Pos pos : e.getPositions()) {
-                    int projId = projects.toProjectId(storage, pos.getProject());
-                    long fileId = filePaths.toFileId(storage, pos.getFile());
-                    CPPos pp = new CPPos(projId, fileId, pos.getStart(), pos.getEnd(),
-                            pos.getMethodStart(), pos.getMethodEnd());
-                    pe.addPos(pp);
+                if (tail) {
+                    continue;
+                }
+                if (policy.isStored(depth + e.getEnd() - e.getStart())) {
+                    storePositions(pe, e.getPositions());
                 }
-                p.writeTo(storage);
             }
+            nodeCache.put(p);
         }
+        nodeCache.flush();
         if (nextStmtMap != null) {
             nextStmtMap.addNextStmtMap(storage, trie.getNextStmtMap());
         }
     }
 
+    /**
+     * Adds the positions to the edge. If the edge reaches the limit of the
+     * ingestion policy, the remaining positions are only counted.
+     */
+    private void storePositions(CPEdge pe, Pos[] positions) throws IOException {
+        int n = positions.length;
+        if (policy.isCapped()) {
+            int stored = policy.getMaxEdgePositions();
+            if (!cappedEdges.isCapped(pe.getDestId())) {
+                CPPosBlock pb = pe.getPosBlock(storage);
+                stored = (pb == null) ? 0 : pb.countPositions();
+            }
+            int room = Math.max(0, policy.getMaxEdgePositions() - stored);
+            if (room < n) {
+                cappedEdges.addDropped(pe.getDestId(), n - room);
+                n = room;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            Pos pos = positions[i];
+            int projId = projects.toProjectId(storage, pos.getProject());
+            long fileId = filePaths.toFileId(storage, pos.getFile());
+            CPPos pp = new CPPos(projId, fileId, pos.getStart(), pos.getEnd(),
+                    pos.getMethodStart(), pos.getMethodEnd());
+            pe.addPos(storage, pp);
+        }
+    }
+
     private int commonPrefix(List<Integer> lab1, List<Integer> lab2) {
         int n = Math.min(lab1.size(), lab2.size());
         int i = 0;
@@ -173,6 +294,50 @@ public class CPTrie implements AutoCloseable, PIndex {
         return i;
     }
 
+    /**
+     * Moves the edges of the nodes whose fanout exceeds the threshold to
+     * sorted edge blocks. This converts an index built with chained edge
+     * blocks only. Returns the number of converted nodes.
+     */
+    public int rebuildEdges() throws IOException {
+        nodeCache.clear();
+        List<Integer> plin = linearizations.getBuffer();
+        long endId = 0L;
+        Deque<Long> queue = new ArrayDeque<>();
+        queue.add(0L);
+        while (!queue.isEmpty()) {
+            CPNode p = new CPNode(queue.remove());
+            p.readFrom(storage);
+            CPEdgeBlock eb = p.getEdgeBlock();
+            endId = Math.max(endId, eb.getEndId());
+            addDestinations(eb, queue);
+        }
+        CPEdgeBlock.reset(endId);
+        int converted = 0;
+        queue.add(0L);
+        while (!queue.isEmpty()) {
+            CPNode p = new CPNode(queue.remove());
+            p.readFrom(storage);
+            CPEdgeBlock eb = p.getEdgeBlock();
+            if (eb.relayout(storage, plin)) {
+                p.writeTo(storage);
+                converted++;
+            }
+            addDestinations(eb, queue);
+        }
+        return converted;
+    }
+
+    private void addDestinations(CPEdgeBlock eb, Deque<Long> queue) {
+        while (eb != null) {
+            CPEdge[] ee = eb.getEdges();
+            for (int i = 0; i < eb.getEdgeCount(); i++) {
+                queue.add(ee[i].getDestId());
+            }
+            eb = eb.getNext();
+        }
+    }
+
     @Override
     public void print() throws IOException {
         CPNode n = new CPNode(0L);
@@ -181,7 +346,7 @@ public class CPTrie implements AutoCloseable, PIndex {
         queue.add(n);
         while (!queue.isEmpty()) {
             CPNode p = queue.remove();
-            p.print(linearizations);
+            p.print(storage, linearizations);
             CPEdgeBlock eb = p.getEdgeBlock();
             while (eb != null) {
                 CPEdge[] ee = eb.getEdges();
@@ -203,20 +368,63 @@ public class CPTrie implements AutoCloseable, PIndex {
         }
     }
 
+    /**
+     * Returns the statement that follows the statement or null if there is no
+     * such statement or the next-statement map is not available.
+     */
+    public Pos getNextStmt(Pos stmt) {
+        return (nextStmtMap == null) ? null : nextStmtMap.getNext(stmt);
+    }
+
+    /**
+     * Finds the positions of the tokens. In the read-only mode, this can be
+     * called by several threads at once.
+     */
     @Override
     public List<Pos> find(List<String> tokens) throws Exception {
         List<Pos> found = new ArrayList<>();
-        CPNode p = new CPNode(0L);
-        p.readFrom(storage);
+        CPEdge edge = findEdge(tokens);
+        if (edge == null) {
+            return found;
+        }
+        CPPosBlock pb = edge.readPosBlock(storage.cursor());
+        if (pb == null) {
+            return found;
+        }
+        addPositions(pb, found);
+        return found;
+    }
+
+    /**
+     * Returns the number of positions of the tokens, including the positions
+     * that were not stored because the edge reached the limit of the
+     * ingestion policy.
+     */
+    public long countPositions(List<String> tokens) throws Exception {
+        CPEdge edge = findEdge(tokens);
+        if (edge == null) {
+            return 0L;
+        }
+        CPPosBlock pb = edge.readPosBlock(storage.cursor());
+        long stored = (pb == null) ? 0L : pb.countPositions();
+        return stored + cappedEdges.getDropped(edge.getDestId());
+    }
+
+    /**
+     * Returns the edge that ends the path of the tokens or null if there is
+     * no such edge.
+     */
+    private CPEdge findEdge(List<String> tokens) throws IOException {
+        long nodeId = 0L;
         CPEdge edge = null;
         List<Integer> plin = linearizations.getBuffer();
         int i = 0;
         while (i < tokens.size()) {
             String token = tokens.get(i);
             Integer first = linearizations.findLabel(token);
-            edge = p.getEdgeBlock().findEdge(first, plin);
+            edge = findEdge(nodeId, first, plin);
             if (edge == null) {
-                return found;
+                return null;
             }
             int j = edge.getStart();
             while (i < tokens.size() && j < edge.getEnd()) {
@@ -224,32 +432,233 @@ public class CPTrie implements AutoCloseable, PIndex {
                 Integer tokId = linearizations.findLabel(token);
                 Integer bufTokId = linearizations.getBufferAt(j);
                 if (!tokId.equals(bufTokId)) {
-                    return found;
+                    return null;
                 }
                 i++;
                 j++;
             }
             if (j < edge.getEnd()) {
-                return found;
+                return null;
             }
-            long destId = edge.getDestId();
-            p = new CPNode(destId);
-            p.readFrom(storage);
+            nodeId = edge.getDestId();
         }
-        if (edge == null) {
-            return found;
+        return edge;
+    }
+
+    /**
+     * Finds the positions of several token sequences. The sequences are
+     * looked up in the lexicographic order of their label ids, so the walk
+     * along the common prefix of consecutive sequences is shared and the
+     * positions of equal sequences are decoded once. In the read-only mode,
+     * this can be called by several threads at once.
+     */
+    @Override
+    public List<List<Pos>> findAll(List<List<String>> tokenLists) throws Exception {
+        int n = tokenLists.size();
+        int[][] seqs = new int[n][];
+        int maxLength = 0;
+        for (int i = 0; i < n; i++) {
+            List<String> tokens = tokenLists.get(i);
+            seqs[i] = new int[tokens.size()];
+            for (int j = 0; j < tokens.size(); j++) {
+                seqs[i][j] = linearizations.findLabel(tokens.get(j));
+            }
+            maxLength = Math.max(maxLength, tokens.size());
+        }
+        List<List<Pos>> results = new ArrayList<>(Collections.nCopies(n, null));
+        List<Integer> plin = linearizations.getBuffer();
+        Storage st = storage.cursor();
+        // the edge that holds the k-th token and the buffer index after it
+        CPEdge[] path = new CPEdge[maxLength];
+        int[] next = new int[maxLength];
+        int reached = 0;
+        int[] prev = null;
+        List<Pos> prevFound = null;
+        for (int i : sortedOrder(seqs)) {
+            int[] seq = seqs[i];
+            if (prev != null && Arrays.equals(prev, seq)) {
+                results.set(i, new ArrayList<>(prevFound));
+                continue;
+            }
+            int k = Math.min(commonPrefix(prev, seq), reached);
+            while (k < seq.length) {
+                CPEdge edge;
+                int j;
+                if (k == 0 || next[k - 1] == path[k - 1].getEnd()) {
+                    long nodeId = (k == 0) ? 0L : path[k - 1].getDestId();
+                    edge = findEdge(nodeId, seq[k], plin);
+                    if (edge == null) {
+                        break;
+                    }
+                    j = edge.getStart();
+                } else {
+                    edge = path[k - 1];
+                    j = next[k - 1];
+                }
+                if (plin.get(j) != seq[k]) {
+                    break;
+                }
+                path[k] = edge;
+                next[k] = j + 1;
+                k++;
+            }
+            reached = k;
+            List<Pos> found = new ArrayList<>();
+            if (k > 0 && k == seq.length && next[k - 1] == path[k - 1].getEnd()) {
+                CPPosBlock pb = path[k - 1].readPosBlock(st);
+                if (pb != null) {
+                    addPositions(pb, found);
+                }
+            }
+            results.set(i, found);
+            prev = seq;
+            prevFound = found;
+        }
+        return results;
+    }
+
+    private static Integer[] sortedOrder(int[][] seqs) {
+        Integer[] order = new Integer[seqs.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> compareSequences(seqs[a], seqs[b]));
+        return order;
+    }
+
+    private static int compareSequences(int[] seq1, int[] seq2) {
+        int n = Math.min(seq1.length, seq2.length);
+        for (int i = 0; i < n; i++) {
+            if (seq1[i] != seq2[i]) {
+                return Integer.compare(seq1[i], seq2[i]);
+            }
+        }
+        return Integer.compare(seq1.length, seq2.length);
+    }
+
+    private static int commonPrefix(int[] seq1, int[] seq2) {
+        if (seq1 == null) {
+            return 0;
+        }
+        int n = Math.min(seq1.length, seq2.length);
+        int i = 0;
+        while (i < n && seq1[i] == seq2[i]) {
+            i++;
         }
-        CPPosBlock pb = edge.getPosBlock();
-        Map<Integer, String> pmap = projects.getInverseMap();
-        Map<Long, String> fmap = filePaths.getInverseMap();
-        for (CPPos pp : pb.getPositions()) {
-            String project = pmap.get(pp.getProjectId());
-            String file = fmap.get(pp.getFileId());
+        return i;
+    }
+
+    private void addPositions(CPPosBlock pb, List<Pos> found) {
+        addPositions(pb, Integer.MIN_VALUE, Integer.MAX_VALUE, found);
+    }
+
+    /**
+     * Adds the positions whose size (in lines) is between minSize and maxSize
+     * to the list. The positions are streamed from the block, so the block is
+     * not copied into an array.
+     */
+    private void addPositions(CPPosBlock pb, int minSize, int maxSize, List<Pos> found) {
+        pb.forEachPosition(minSize, maxSize, p -> {
+            if (fileStates.isTombstone(p.getFileId())) {
+                return;
+            }
+            String project = projects.getProject(p.getProjectId());
+            String file = filePaths.getPath(p.getFileId());
             Pos pos = new Pos(project, file,
-                    pp.getBegin(), pp.getEnd(),
-                    pp.getMethodBegin(), pp.getMethodEnd());
+                    p.getBegin(), p.getEnd(),
+                    p.getMethodBegin(), p.getMethodEnd());
             found.add(pos);
+        });
+    }
+
+    /**
+     * Visits all edges of the trie using the given number of threads. With
+     * more than one thread, the visitor is called concurrently.
+     */
+    public void traverse(int threads, CPEdgeVisitor visitor) throws IOException {
+        new CPTraversal(storage, visitor).run(threads);
+    }
+
+    /**
+     * Finds the clone classes, i.e. the edges with two or more positions
+     * whose size (in lines) is between minSize and maxSize. The subtrees are
+     * traversed depth-first and every clone class is passed to the consumer
+     * as soon as it is found, so only the pending edges on the current paths
+     * are kept in memory. The consumer is called by one thread at a time.
+     * Returns the number of clone classes.
+     */
+    public long detectClones(int minSize, int maxSize, int threads,
+            Consumer<List<Pos>> consumer) throws IOException {
+        LongAdder classes = new LongAdder();
+        traverse(threads, (e, st) -> {
+            CPPosBlock pb = e.readPosBlock(st);
+            if (pb == null || pb.countPositions() < 2) {
+                return;
+            }
+            List<Pos> clones = new ArrayList<>();
+            addPositions(pb, minSize, maxSize, clones);
+            if (clones.size() >= 2) {
+                synchronized (consumer) {
+                    consumer.accept(clones);
+                }
+                classes.increment();
+            }
+        });
+        return classes.sum();
+    }
+
+    /**
+     * Finds the clone classes of sequences of two or more consecutive
+     * statements. The clone classes of all positions are collected in one
+     * traversal and then extended along the next-statement map. Only the
+     * fragments whose size (in lines) is between minSize and maxSize are
+     * passed to the consumer. Returns the number of clone classes.
+     */
+    public long detectSequenceClones(int minSize, int maxSize, int threads,
+            Consumer<List<Pos>> consumer) throws IOException {
+        if (nextStmtMap == null) {
+            return 0L;
         }
-        return found;
+        SequenceClones clones = new SequenceClones(nextStmtMap::getNextKey);
+        traverse(threads, (e, st) -> {
+            CPPosBlock pb = e.readPosBlock(st);
+            if (pb == null || pb.countPositions() < 2) {
+                return;
+            }
+            List<CPPos> pp = new ArrayList<>();
+            pb.forEachPosition(Integer.MIN_VALUE, Integer.MAX_VALUE, p -> {
+                if (!fileStates.isTombstone(p.getFileId())) {
+                    pp.add(p);
+                }
+            });
+            if (pp.size() >= 2) {
+                int classId = clones.addClass();
+                for (CPPos p : pp) {
+                    clones.add(classId, p.getProjectId(), p.getFileId(),
+                            p.getBegin(), p.getEnd(), p.getMethodBegin(), p.getMethodEnd());
+                }
+            }
+        });
+        return clones.detect(minSize, maxSize, fragments -> {
+            List<Pos> found = new ArrayList<>();
+            for (Fragment f : fragments) {
+                found.add(new Pos(projects.getProject(f.getProjectId()),
+                        filePaths.getPath(f.getFileId()), f.getBegin(), f.getEnd(),
+                        f.getMethodBegin(), f.getMethodEnd()));
+            }
+            consumer.accept(found);
+        });
+    }
+
+    /**
+     * Finds the edge of the node. In the read-only mode, the node cache is not
+     * used, so that the threads that search at once do not wait for its lock.
+     */
+    private CPEdge findEdge(long nodeId, int label, List<Integer> buffer) throws IOException {
+        if (mode == Mode.READ_WRITE && nodeCache.getCapacity() > 0) {
+            CPNode p = nodeCache.get(nodeId);
+            return p.getEdgeBlock().findEdge(label, buffer);
+        }
+        return CPNode.findEdge(storage, nodeId, label, buffer);
     }
 }
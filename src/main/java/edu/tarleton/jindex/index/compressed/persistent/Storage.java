@@ -14,6 +14,14 @@ import java.nio.channels.FileChannel.MapMode;
  */
 public class Storage {
 
+    /**
+     * The version of the index format. It is stored in the id field of the
+     * root node. Indexes of version 1 (stored as 0) use 16-bit label ids.
+     * Indexes of version 1 and 2 use direct position blocks of fixed length.
+     * Indexes of version 1 to 3 do not contain position extents.
+     */
+    public static final int FORMAT_VERSION = 4;
+
     private final MappedFile nodeFile;
     private final MappedFile edgeFile;
     private final MappedFile posFile;
@@ -22,6 +30,8 @@ public class Storage {
     private final File labelFile;
     private final File linearizationFile;
     private final File nextStmtMapFile;
+    private int formatVersion = FORMAT_VERSION;
+    private int sortedEdgeThreshold = CPEdgeBlock.DEFAULT_SORTED_THRESHOLD;
 
     private Storage(MappedFile nodeFile, MappedFile edgeFile, MappedFile posFile,
             File projectFile, File pathFile, File labelFile,
@@ -69,8 +79,30 @@ public class Storage {
         File labelFile = new File(labelFileName);
         File linearizationFile = new File(linearizationFileName);
         File nextStmtFile = (nextStmtMapFileName == null) ? null : new File(nextStmtMapFileName);
-        return new Storage(nodeFile, edgeFile, posFile, projectFile,
+        Storage st = new Storage(nodeFile, edgeFile, posFile, projectFile,
                 pathFile, labelFile, linearizationFile, nextStmtFile);
+        st.readFormatVersion();
+        return st;
+    }
+
+    private void readFormatVersion() throws IOException {
+        nodeFile.seek(0L);
+        long version = nodeFile.readLong();
+        if (version > FORMAT_VERSION) {
+            throw new IOException("unsupported index format: " + version);
+        }
+        formatVersion = (version == 0L) ? 1 : (int) version;
+    }
+
+    /**
+     * Returns a storage that reads the same files through its own cursors.
+     * It can be used by another thread while this storage is used.
+     */
+    public Storage cursor() throws IOException {
+        Storage st = new Storage(nodeFile.cursor(), edgeFile.cursor(), posFile.cursor(),
+                projectFile, pathFile, labelFile, linearizationFile, nextStmtMapFile);
+        st.formatVersion = formatVersion;
+        return st;
     }
 
     public void close() throws IOException {
@@ -79,6 +111,26 @@ public class Storage {
         posFile.close();
     }
 
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    /**
+     * Returns the fanout above which the edges of a node are moved to a
+     * sorted edge block.
+     */
+    public int getSortedEdgeThreshold() {
+        return sortedEdgeThreshold;
+    }
+
+    public void setSortedEdgeThreshold(int sortedEdgeThreshold) {
+        this.sortedEdgeThreshold = sortedEdgeThreshold;
+    }
+
+    public int getPosBlockUnit() {
+        return (formatVersion < 3) ? CPPosBlockDirect.LENGTH : CPPosBlock.UNIT;
+    }
+
     public MappedFile getNodeFile() {
         return nodeFile;
     }
@@ -99,6 +151,14 @@ public class Storage {
         return pathFile;
     }
 
+    public File getFileStateFile() {
+        return new File(pathFile.getPath() + ".state");
+    }
+
+    public File getCappedEdgeFile() {
+        return new File(pathFile.getPath() + ".capped");
+    }
+
     public File getLabelFile() {
         return labelFile;
     }
@@ -5,6 +5,7 @@ import com.github.javaparser.utils.SourceRoot;
 import edu.tarleton.jindex.Engine;
 import edu.tarleton.jindex.NormalizingVisitor;
 import edu.tarleton.jindex.Pos;
+import edu.tarleton.jindex.Searcher;
 import edu.tarleton.jindex.index.IndexBuilder;
 import edu.tarleton.jindex.index.plain.naive.SimplifiedIndexStmtBuilderNaive;
 import java.io.IOException;
@@ -13,6 +14,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.Properties;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 /**
@@ -85,7 +87,17 @@ public class MemoryPlainEngine extends Engine {
     }
 
     @Override
-    public List<Pos> find(String code) throws Exception {
+    public Searcher openSearcher() throws Exception {
+        throw new AssertionError();
+    }
+
+    @Override
+    public long detectClones(int minSize, int maxSize, Consumer<List<Pos>> consumer) throws Exception {
+        throw new AssertionError();
+    }
+
+    @Override
+    public long detectSequenceClones(int minSize, int maxSize, Consumer<List<Pos>> consumer) throws Exception {
         throw new AssertionError();
     }
 }
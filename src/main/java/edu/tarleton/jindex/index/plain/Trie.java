@@ -1,11 +1,17 @@
 package edu.tarleton.jindex.index.plain;
 
+import edu.tarleton.jindex.BatchSizer;
 import edu.tarleton.jindex.Pos;
 import edu.tarleton.jindex.index.Index;
 import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * The class that represents the TRIE.
@@ -42,6 +48,21 @@ public class Trie implements Index, Serializable {
         p.addChild(labels.get(lastIndex), pos);
     }
 
+    /**
+     * Returns the estimated size (in bytes) of the TRIE and the
+     * next-statement map in the heap.
+     */
+    public long estimateBytes() {
+        long bytes = nextStmtMap.size() * (BatchSizer.MAP_ENTRY_BYTES + BatchSizer.POS_BYTES);
+        Set<String> labels = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<TrieNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            bytes += pending.pop().estimateBytes(pending, labels);
+        }
+        return bytes;
+    }
+
     @Override
     public void print() {
         root.print();
@@ -1,7 +1,10 @@
 package edu.tarleton.jindex.index.plain;
 
+import edu.tarleton.jindex.BatchSizer;
 import edu.tarleton.jindex.Pos;
 import java.io.Serializable;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The class that represents the TRIE edge.
@@ -11,7 +14,7 @@ import java.io.Serializable;
 public class TrieEdge implements Comparable<TrieEdge>, Serializable {
 
     private static final long serialVersionUID = 1L;
-    private static int count;
+    private static final AtomicInteger count = new AtomicInteger();
     private final String label;
     private final TrieNode destination;
     private Pos[] positions = new Pos[1];
@@ -20,11 +23,11 @@ public class TrieEdge implements Comparable<TrieEdge>, Serializable {
     public TrieEdge(String label, TrieNode destination) {
         this.label = label;
         this.destination = destination;
-        count++;
+        count.incrementAndGet();
     }
 
     public static int getCount() {
-        return count;
+        return count.get();
     }
 
     public String getLabel() {
@@ -54,6 +57,17 @@ public class TrieEdge implements Comparable<TrieEdge>, Serializable {
         positionsCount++;
     }
 
+    /**
+     * Returns the estimated size of the edge and its positions. The label is
+     * counted if it is not in the set (the labels are shared by the edges).
+     */
+    long estimateBytes(Set<String> labels) {
+        return BatchSizer.objectBytes(3 * BatchSizer.REFERENCE + 4)
+                + (labels.add(label) ? BatchSizer.stringBytes(label) : 0L)
+                + BatchSizer.arrayBytes(positions.length)
+                + positionsCount * BatchSizer.POS_BYTES;
+    }
+
     @Override
     public int compareTo(TrieEdge that) {
         return label.compareTo(that.label);
@@ -1,7 +1,11 @@
 package edu.tarleton.jindex.index.plain;
 
+import edu.tarleton.jindex.BatchSizer;
 import edu.tarleton.jindex.Pos;
 import java.io.Serializable;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The class that represents the TRIE node.
@@ -11,18 +15,18 @@ import java.io.Serializable;
 public class TrieNode implements Serializable {
 
     private static final long serialVersionUID = 1L;
-    private static int count;
+    private static final AtomicInteger count = new AtomicInteger();
     private final int num;
     private TrieEdge[] edges = new TrieEdge[1];
     private int edgesCount;
     private long persistentId;
 
     public TrieNode() {
-        num = count++;
+        num = count.getAndIncrement();
     }
 
     public static int getCount() {
-        return count;
+        return count.get();
     }
 
     public boolean isLeaf() {
@@ -75,6 +79,21 @@ public class TrieNode implements Serializable {
         return num;
     }
 
+    /**
+     * Returns the estimated size of the node, its edges, and their positions
+     * and pushes the destinations of the edges on the stack. The labels that
+     * are not in the set are counted and added to the set.
+     */
+    long estimateBytes(Deque<TrieNode> pending, Set<String> labels) {
+        long bytes = BatchSizer.objectBytes(4 + BatchSizer.REFERENCE + 4 + 8)
+                + BatchSizer.arrayBytes(edges.length);
+        for (int i = 0; i < edgesCount; i++) {
+            bytes += edges[i].estimateBytes(labels);
+            pending.push(edges[i].getDestination());
+        }
+        return bytes;
+    }
+
     public long getPersistentId() {
         return persistentId;
     }
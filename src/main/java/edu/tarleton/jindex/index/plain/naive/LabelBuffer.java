@@ -0,0 +1,73 @@
+package edu.tarleton.jindex.index.plain.naive;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * The buffer of label ids shared by all open statements. A statement holds
+ * the offset where its labels start. Renamed identifiers differ from
+ * statement to statement, so the buffer holds a placeholder and the
+ * statements hold the renamed identifiers.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class LabelBuffer {
+
+    public static final int RENAMED = -1;
+    private final LabelTable table;
+    private int[] tokens = new int[1024];
+    private int size;
+    private int[] resolved = new int[1024];
+    private int resolvedSize;
+    private final List<String> view = new AbstractList<String>() {
+
+        @Override
+        public String get(int index) {
+            return table.getLabel(resolved[index]);
+        }
+
+        @Override
+        public int size() {
+            return resolvedSize;
+        }
+    };
+
+    public LabelBuffer(LabelTable table) {
+        this.table = table;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(int id) {
+        if (size == tokens.length) {
+            int[] nt = new int[2 * tokens.length];
+            System.arraycopy(tokens, 0, nt, 0, size);
+            tokens = nt;
+        }
+        tokens[size++] = id;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns the labels of the statement. The returned list is reused by the
+     * next call.
+     */
+    public List<String> labels(StackNode node) {
+        int start = node.getStart();
+        int len = size - start;
+        if (resolved.length < len) {
+            resolved = new int[Math.max(len, 2 * resolved.length)];
+        }
+        for (int i = 0, j = 0; i < len; i++) {
+            int t = tokens[start + i];
+            resolved[i] = (t == RENAMED) ? node.getRenamed(j++) : t;
+        }
+        resolvedSize = len;
+        return view;
+    }
+}
@@ -0,0 +1,96 @@
+package edu.tarleton.jindex.index.plain.naive;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The table of labels used by the builder. Each label has an integer id and
+ * the ids of node classes, operators, identifiers and end labels are cached
+ * so that labels are not built again.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class LabelTable {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> labels = new ArrayList<>();
+    private final Map<Class<?>, Integer> classIds = new IdentityHashMap<>();
+    private final Map<String, Map<Enum<?>, Integer>> enumIds = new HashMap<>();
+    private final Map<String, Integer> identIds = new HashMap<>();
+    private int[] endIds = new int[256];
+    private int[] normIds = new int[64];
+
+    public int toId(String label) {
+        Integer id = ids.get(label);
+        if (id == null) {
+            id = labels.size();
+            ids.put(label, id);
+            labels.add(label);
+        }
+        return id;
+    }
+
+    public String getLabel(int id) {
+        return labels.get(id);
+    }
+
+    public int classId(Class<?> cls) {
+        Integer id = classIds.get(cls);
+        if (id == null) {
+            id = toId(cls.getSimpleName());
+            classIds.put(cls, id);
+        }
+        return id;
+    }
+
+    public int enumId(String prefix, Enum<?> e) {
+        Map<Enum<?>, Integer> cache = enumIds.computeIfAbsent(prefix, p -> new IdentityHashMap<>());
+        Integer id = cache.get(e);
+        if (id == null) {
+            id = toId(prefix + e);
+            cache.put(e, id);
+        }
+        return id;
+    }
+
+    public int identId(String ident) {
+        Integer id = identIds.get(ident);
+        if (id == null) {
+            id = toId("id:" + ident);
+            identIds.put(ident, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of the label of the renamed identifier with the given
+     * number.
+     */
+    public int normId(int count) {
+        if (count >= normIds.length) {
+            int[] nn = new int[Math.max(count + 1, 2 * normIds.length)];
+            System.arraycopy(normIds, 0, nn, 0, normIds.length);
+            normIds = nn;
+        }
+        if (normIds[count] == 0) {
+            normIds[count] = identId("i" + count) + 1;
+        }
+        return normIds[count] - 1;
+    }
+
+    public int endId(int id) {
+        if (id >= endIds.length || endIds[id] == 0) {
+            int eid = toId(labels.get(id) + "_end");
+            if (labels.size() > endIds.length) {
+                int[] ne = new int[Math.max(labels.size(), 2 * endIds.length)];
+                System.arraycopy(endIds, 0, ne, 0, endIds.length);
+                endIds = ne;
+            }
+            endIds[id] = eid + 1;
+        }
+        return endIds[id] - 1;
+    }
+}
@@ -81,11 +81,10 @@ import com.github.javaparser.ast.type.WildcardType;
 import edu.tarleton.jindex.Pos;
 import edu.tarleton.jindex.index.IndexBuilder;
 import edu.tarleton.jindex.index.plain.Trie;
-import edu.tarleton.jindex.rename.RenameStrategy;
+import edu.tarleton.jindex.rename.SharedRenameStrategy;
 import java.nio.file.Path;
 import java.util.ArrayDeque;
 import java.util.Deque;
-import java.util.List;
 import java.util.Properties;
 
 /**
@@ -97,6 +96,10 @@ import java.util.Properties;
 public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
 
     private final Stack stack;
+    private final LabelTable labels = new LabelTable();
+    private final LabelBuffer buffer = new LabelBuffer(labels);
+    private final SharedRenameStrategy renamer = new SharedRenameStrategy();
+    private int[] counts = new int[16];
     private Trie trie = new Trie();
     private String srcFile;
     private int inMethod;
@@ -119,73 +122,79 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
     }
 
     private void declareVar(String name, String type) {
-        for (StackNode node : stack) {
-            RenameStrategy rs = node.getRenameStrategy();
-            rs.declareVar(name, type);
-        }
+        renamer.declareVar(name);
     }
 
     private void enterBlock() {
-        for (StackNode node : stack) {
-            RenameStrategy rs = node.getRenameStrategy();
-            rs.enterBlock();
-        }
+        renamer.enterBlock();
     }
 
     private void exitBlock() {
-        for (StackNode node : stack) {
-            RenameStrategy rs = node.getRenameStrategy();
-            rs.exitBlock();
+        renamer.exitBlock();
+    }
+
+    private void push() {
+        if (stack.size() == 0) {
+            buffer.clear();
         }
+        stack.push(buffer.size());
+        renamer.push();
+    }
+
+    private void pop() {
+        stack.pop();
+        renamer.pop();
     }
 
     private void append(Node n) {
-        String lab = n.getClass().getSimpleName();
-        append(lab);
+        append(labels.classId(n.getClass()));
     }
 
     private void append(String lab) {
-        for (StackNode node : stack) {
-            List<String> labs = node.getLabels();
-            labs.add(lab);
+        append(labels.toId(lab));
+    }
+
+    private void append(int id) {
+        if (stack.size() > 0) {
+            buffer.add(id);
         }
     }
 
     private void appendEnd(Node n) {
-        String lab = n.getClass().getSimpleName() + "_end";
-        append(lab);
+        appendEnd(labels.classId(n.getClass()));
     }
 
     private void appendEndWithPos(Node n) {
-        String lab = n.getClass().getSimpleName() + "_end";
-        append(lab);
+        appendEnd(n);
         StackNode node = stack.peek();
-        List<String> labs = node.getLabels();
-        trie.add(labs, pos(n));
+        trie.add(buffer.labels(node), pos(n));
     }
 
     private void appendEnd(String lab) {
-        append(lab + "_end");
+        appendEnd(labels.toId(lab));
+    }
+
+    private void appendEnd(int id) {
+        append(labels.endId(id));
     }
 
     private void appendId(String id) {
-        for (StackNode node : stack) {
-            List<String> labs = node.getLabels();
-            labs.add("id:" + id);
-        }
+        append(labels.identId(id));
     }
 
     private void renameAppendId(String id) {
-        for (StackNode node : stack) {
-            RenameStrategy rs = node.getRenameStrategy();
-            String rid = rs.rename(id);
-            if (rid == null) {
-                rid = rs.declareGlobal(id);
-            }
-            List<String> labs = node.getLabels();
-            labs.add("id:" + rid);
-//            System.out.printf("-- renamed: %s -> %s%n", id, rid);
+        int size = stack.size();
+        if (size == 0) {
+            return;
+        }
+        if (counts.length < size) {
+            counts = new int[2 * size];
+        }
+        renamer.rename(id, counts);
+        for (int i = 0; i < size; i++) {
+            stack.get(i).addRenamed(labels.normId(counts[i]));
         }
+        buffer.add(LabelBuffer.RENAMED);
     }
 
     private Pos pos(Node n) {
@@ -260,7 +269,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
             return;
         }
         append(n);
-        append("ATYPE_" + n.getOrigin());
+        append(labels.enumId("ATYPE_", n.getOrigin()));
         n.getAnnotations().forEach(p -> p.accept(this, arg));
         n.getComponentType().accept(this, arg);
         appendEnd(n);
@@ -271,12 +280,12 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         n.getCheck().accept(this, arg);
         n.getMessage().ifPresent(p -> p.accept(this, arg));
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -284,7 +293,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        String lab = "ASSIGN_" + n.getOperator();
+        int lab = labels.enumId("ASSIGN_", n.getOperator());
         append(lab);
         n.getTarget().accept(this, arg);
         n.getValue().accept(this, arg);
@@ -296,7 +305,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        String lab = "BIN_" + n.getOperator();
+        int lab = labels.enumId("BIN_", n.getOperator());
         append(lab);
         n.getLeft().accept(this, arg);
         n.getRight().accept(this, arg);
@@ -308,7 +317,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         enterBlock();
         append(n);
         n.getStatements().forEach(p -> nextStmt(p));
@@ -316,7 +325,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         n.getStatements().forEach(p -> p.accept(this, arg));
         appendEndWithPos(n);
         exitBlock();
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -325,7 +334,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
             return;
         }
         append("BOOLEAN");
-        append("" + n.getValue());
+        append(n.getValue() ? "true" : "false");
         appendEnd("BOOLEAN");
     }
 
@@ -334,11 +343,11 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         n.getLabel().ifPresent(p -> p.accept(this, arg));
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -482,11 +491,11 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         n.getLabel().ifPresent(p -> p.accept(this, arg));
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -494,12 +503,12 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         n.getBody().accept(this, arg);
         n.getCondition().accept(this, arg);
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -517,10 +526,10 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -535,7 +544,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
 
     @Override
     public void visit(ExplicitConstructorInvocationStmt n, Void arg) {
-        stack.push();
+        push();
         append(n);
         String ref = n.isThis() ? "this" : "super";
         append(ref);
@@ -550,7 +559,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         append("ARGS_END");
         appendEnd(ref);
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -558,11 +567,11 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         n.getExpression().accept(this, arg);
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -586,7 +595,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         enterBlock();
         append(n);
         n.getVariable().accept(this, arg);
@@ -594,7 +603,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         n.getBody().accept(this, arg);
         appendEndWithPos(n);
         exitBlock();
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -602,7 +611,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         enterBlock();
         append(n);
         append("INIT");
@@ -615,7 +624,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         n.getBody().accept(this, arg);
         appendEndWithPos(n);
         exitBlock();
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -623,13 +632,13 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         n.getCondition().accept(this, arg);
         n.getThenStmt().accept(this, arg);
         n.getElseStmt().ifPresent(p -> p.accept(this, arg));
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -683,12 +692,12 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         n.getLabel().accept(this, arg);
         n.getStatement().accept(this, arg);
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -714,11 +723,11 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         n.getClassDeclaration().accept(this, arg);
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -835,8 +844,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        String mod = n.getKeyword().asString().toUpperCase();
-        append(mod);
+        append(labels.enumId("", n.getKeyword()));
     }
 
     @Override
@@ -942,11 +950,11 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         n.getExpression().ifPresent(p -> p.accept(this, arg));
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -1022,12 +1030,12 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         n.getSelector().accept(this, arg);
         n.getEntries().forEach(p -> p.accept(this, arg));
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -1035,12 +1043,12 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         n.getExpression().accept(this, arg);
         n.getBody().accept(this, arg);
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -1058,11 +1066,11 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         n.getExpression().accept(this, arg);
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -1070,7 +1078,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         enterBlock();
         append(n);
         n.getResources().forEach(p -> p.accept(this, arg));
@@ -1079,7 +1087,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         n.getFinallyBlock().ifPresent(p -> p.accept(this, arg));
         appendEndWithPos(n);
         exitBlock();
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -1109,7 +1117,7 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        String lab = "UNARY_" + n.getOperator();
+        int lab = labels.enumId("UNARY_", n.getOperator());
         append(lab);
         n.getExpression().accept(this, arg);
         appendEnd(lab);
@@ -1175,12 +1183,12 @@ public class SimplifiedIndexStmtBuilderNaive extends IndexBuilder {
         if (inMethod == 0) {
             return;
         }
-        stack.push();
+        push();
         append(n);
         n.getCondition().accept(this, arg);
         n.getBody().accept(this, arg);
         appendEndWithPos(n);
-        stack.pop();
+        pop();
     }
 
     @Override
@@ -1,35 +1,40 @@
 package edu.tarleton.jindex.index.plain.naive;
 
-import edu.tarleton.jindex.rename.RenameStrategy;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * The implementation of stack.
+ * The implementation of stack. The stack nodes are reused.
  *
  * @author Zdenek Tronicek, tronicek@tarleton.edu
  */
-public class Stack implements Iterable<StackNode> {
+public class Stack {
 
-    private final Deque<StackNode> nodes = new ArrayDeque<>();
+    private final List<StackNode> nodes = new ArrayList<>();
+    private int size;
 
-    public void push() {
-        RenameStrategy rs = new RenameStrategy();
-        StackNode p = new StackNode(rs);
-        nodes.addLast(p);
+    public void push(int start) {
+        if (size == nodes.size()) {
+            nodes.add(new StackNode());
+        }
+        nodes.get(size).reset(start);
+        size++;
     }
 
     public StackNode peek() {
-        return nodes.peekLast();
+        return nodes.get(size - 1);
     }
 
     public StackNode pop() {
-        return nodes.removeLast();
+        size--;
+        return nodes.get(size);
     }
 
-    @Override
-    public Iterator<StackNode> iterator() {
-        return nodes.iterator();
+    public int size() {
+        return size;
+    }
+
+    public StackNode get(int index) {
+        return nodes.get(index);
     }
 }
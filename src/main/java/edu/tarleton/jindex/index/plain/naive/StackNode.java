@@ -1,28 +1,36 @@
 package edu.tarleton.jindex.index.plain.naive;
 
-import edu.tarleton.jindex.rename.RenameStrategy;
-import java.util.ArrayList;
-import java.util.List;
-
 /**
- * The representation of the stack node.
+ * The representation of the stack node. The node holds the offset of its
+ * labels in the label buffer and the ids of the renamed identifiers.
  *
  * @author Zdenek Tronicek, tronicek@tarleton.edu
  */
 public class StackNode {
 
-    private final RenameStrategy renameStrategy;
-    private final List<String> labels = new ArrayList<>();
+    private int start;
+    private int[] renamed = new int[16];
+    private int renamedCount;
+
+    public void reset(int start) {
+        this.start = start;
+        renamedCount = 0;
+    }
 
-    public StackNode(RenameStrategy renameStrategy) {
-        this.renameStrategy = renameStrategy;
+    public int getStart() {
+        return start;
     }
 
-    public RenameStrategy getRenameStrategy() {
-        return renameStrategy;
+    public void addRenamed(int id) {
+        if (renamedCount == renamed.length) {
+            int[] nr = new int[2 * renamed.length];
+            System.arraycopy(renamed, 0, nr, 0, renamedCount);
+            renamed = nr;
+        }
+        renamed[renamedCount++] = id;
     }
 
-    public List<String> getLabels() {
-        return labels;
+    public int getRenamed(int index) {
+        return renamed[index];
     }
 }
@@ -13,7 +13,9 @@ public enum PBlockType {
     INDIRECT,
     INDIRECT2,
     INDIRECT3,
-    INDIRECT4;
+    INDIRECT4,
+    PACKED,
+    EXTENT;
 
     private static final Map<Integer, PBlockType> map = new HashMap<>();
 
@@ -2,6 +2,7 @@ package edu.tarleton.jindex.index.plain.persistent;
 
 import edu.tarleton.jindex.index.MappedFile;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The class that represents the persistent TRIE edge.
@@ -10,25 +11,27 @@ import java.io.IOException;
  */
 public class PEdge {
 
-    public static final int LENGTH = 18;
-    private static long count;
+    public static final int LENGTH = 20;
+    public static final int LENGTH_1 = 18;
+    private static final AtomicLong count = new AtomicLong();
     private final int labelId;
     private final Long destId;
+    private long posBlockId = -1L;
     private PPosBlock posBlock;
 
     public static long getCount() {
-        return count;
+        return count.get();
     }
 
     public PEdge(int labelId, Long destId) {
         this.labelId = labelId;
         this.destId = destId;
-        count++;
+        count.incrementAndGet();
     }
 
-    private PEdge(int labelId, Long destId, PPosBlock posBlock) {
+    private PEdge(int labelId, Long destId, long posBlockId) {
         this(labelId, destId);
-        this.posBlock = posBlock;
+        this.posBlockId = posBlockId;
     }
 
     public int getLabelId() {
@@ -39,47 +42,96 @@ public class PEdge {
         return destId;
     }
 
-    public PPosBlock getPosBlock() {
+    public long getPosBlockId() {
+        return posBlockId;
+    }
+
+    public PPosBlock getPosBlock(Storage storage) throws IOException {
+        if (posBlock == null && posBlockId >= 0) {
+            posBlock = PPosBlock.read(posBlockId, storage);
+        }
+        return posBlock;
+    }
+
+    /**
+     * Returns the position block without keeping it in this edge.
+     */
+    public PPosBlock readPosBlock(Storage storage) throws IOException {
+        if (posBlock == null && posBlockId >= 0) {
+            return PPosBlock.read(posBlockId, storage);
+        }
         return posBlock;
     }
 
-    public void addPos(PPos pos) {
+    public void addPos(Storage storage, PPos pos) throws IOException {
+        getPosBlock(storage);
         if (posBlock == null) {
-            posBlock = new PPosBlockDirect();
+            posBlock = new PPosBlockPacked();
         }
-        if (posBlock.addPos(pos)) {
-            return;
+        if (!posBlock.addPos(pos)) {
+            posBlock = posBlock.toUpperLevelPosBlock(posBlock);
+            posBlock.addPos(pos);
         }
-        posBlock = posBlock.toUpperLevelPosBlock(posBlock);
-        posBlock.addPos(pos);
+        posBlockId = posBlock.getId();
     }
 
     public static PEdge readFrom(Storage storage) throws IOException {
         MappedFile edgeFile = storage.getEdgeFile();
-        int labelId = edgeFile.readShort();
+        int labelId = readLabelId(storage);
         long destId = edgeFile.readLong();
         long posBlockId = edgeFile.readLong();
-        PPosBlock posBlock = (posBlockId < 0) ? null : PPosBlock.read(posBlockId, storage);
-        return new PEdge(labelId, destId, posBlock);
+        return new PEdge(labelId, destId, posBlockId);
+    }
+
+    public static int readLabelId(Storage storage) throws IOException {
+        MappedFile edgeFile = storage.getEdgeFile();
+        if (storage.getFormatVersion() == 1) {
+            return edgeFile.readShort() & 0xFFFF;
+        }
+        return edgeFile.readInt();
+    }
+
+    public static PEdge readFrom(Storage storage, long offset) throws IOException {
+        MappedFile edgeFile = storage.getEdgeFile();
+        int labelId = readLabelId(storage, offset);
+        int labelLength = (storage.getFormatVersion() == 1) ? 2 : 4;
+        long destId = edgeFile.readLong(offset + labelLength);
+        long posBlockId = edgeFile.readLong(offset + labelLength + 8);
+        return new PEdge(labelId, destId, posBlockId);
+    }
+
+    public static int readLabelId(Storage storage, long offset) throws IOException {
+        MappedFile edgeFile = storage.getEdgeFile();
+        if (storage.getFormatVersion() == 1) {
+            return edgeFile.readShort(offset) & 0xFFFF;
+        }
+        return edgeFile.readInt(offset);
     }
 
     public void writeTo(Storage storage) throws IOException {
         MappedFile edgeFile = storage.getEdgeFile();
-        edgeFile.writeShort((short) labelId);
-        edgeFile.writeLong(destId);
-        if (posBlock == null) {
-            edgeFile.writeLong(-1);
+        if (storage.getFormatVersion() == 1) {
+            if (labelId > 0xFFFF) {
+                throw new IOException("label id does not fit in the index format 1: " + labelId);
+            }
+            edgeFile.writeShort((short) labelId);
         } else {
-            edgeFile.writeLong(posBlock.getId());
+            edgeFile.writeInt(labelId);
+        }
+        edgeFile.writeLong(destId);
+        edgeFile.writeLong(posBlockId);
+        if (posBlock != null) {
             posBlock.writeTo(storage);
+            posBlock = null;
         }
     }
 
-    public void print(PLabels labels) throws IOException {
+    public void print(Storage storage, PLabels labels) throws IOException {
         String lab = labels.fromLabelId(labelId);
         System.out.printf("  %s -> %d%n", lab, destId);
-        if (posBlock != null) {
-            posBlock.print();
+        PPosBlock pb = getPosBlock(storage);
+        if (pb != null) {
+            pb.print();
         }
     }
 }
@@ -2,29 +2,51 @@ package edu.tarleton.jindex.index.plain.persistent;
 
 import edu.tarleton.jindex.index.MappedFile;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The class that represents the block of persistent TRIE edges.
  * 
+ * Nodes with a small fanout keep their edges in a chain of blocks with
+ * BLOCK_SIZE edges each. When the fanout exceeds the threshold, the edges are
+ * moved to a sorted block, i.e. an extent of consecutive block slots that
+ * holds the edges sorted by label. The extent is reallocated with doubled
+ * capacity when it gets full.
+ *
  * @author Zdenek Tronicek, tronicek@tarleton.edu
  */
 public class PEdgeBlock {
 
     public static final int BLOCK_SIZE = 4;
     public static final int LENGTH = 8 + 4 + BLOCK_SIZE * PEdge.LENGTH + 8;
-    private static long edgeBlockCount;
-    private final long id;
+    public static final int LENGTH_1 = 8 + 4 + BLOCK_SIZE * PEdge.LENGTH_1 + 8;
+    public static final int DEFAULT_SORTED_THRESHOLD = 4 * BLOCK_SIZE;
+    private static final long SORTED = -2L;
+    private static final int SORTED_HEADER_LENGTH = 8 + 8 + 4 + 4;
+    private static final Comparator<PEdge> LABEL_ORDER = Comparator.comparingInt(PEdge::getLabelId);
+    private static final AtomicLong edgeBlockCount = new AtomicLong();
+    private long id;
     private int edgeCount;
-    private final PEdge[] edges = new PEdge[BLOCK_SIZE];
+    private PEdge[] edges = new PEdge[BLOCK_SIZE];
     private PEdgeBlock next;
+    private boolean sorted;
 
     public static void reset() {
-        edgeBlockCount = 0;
+        edgeBlockCount.set(0L);
+    }
+
+    public static void reset(long nextId) {
+        edgeBlockCount.set(nextId);
+    }
+
+    public static long getNextId() {
+        return edgeBlockCount.get();
     }
 
     public PEdgeBlock() {
-        id = edgeBlockCount;
-        edgeBlockCount++;
+        id = edgeBlockCount.getAndIncrement();
     }
 
     public PEdgeBlock(Long id) {
@@ -43,7 +65,32 @@ public class PEdgeBlock {
         return edges;
     }
 
-    public void addEdge(PEdge edge) {
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * Returns the id that follows the last block slot occupied by this block
+     * and its successors.
+     */
+    public long getEndId(Storage storage) {
+        long end = sorted ? id + slotCount(storage, edges.length) : id + 1;
+        if (next != null) {
+            end = Math.max(end, next.getEndId(storage));
+        }
+        return end;
+    }
+
+    public void addEdge(Storage storage, PEdge edge) {
+        if (sorted) {
+            insertSorted(storage, edge);
+            return;
+        }
+        append(edge);
+        relayout(storage);
+    }
+
+    private void append(PEdge edge) {
         if (edgeCount < edges.length) {
             edges[edgeCount] = edge;
             edgeCount++;
@@ -51,11 +98,88 @@ public class PEdgeBlock {
             if (next == null) {
                 next = new PEdgeBlock();
             }
-            next.addEdge(edge);
+            next.append(edge);
+        }
+    }
+
+    private void insertSorted(Storage storage, PEdge edge) {
+        if (edgeCount == edges.length) {
+            allocateSorted(storage, edges, edgeCount, 2 * edgeCount);
+        }
+        int i = edgeCount;
+        while (i > 0 && edges[i - 1].getLabelId() > edge.getLabelId()) {
+            edges[i] = edges[i - 1];
+            i--;
+        }
+        edges[i] = edge;
+        edgeCount++;
+    }
+
+    /**
+     * Moves a chain of blocks whose fanout exceeds the threshold to a sorted
+     * block. Returns true if the block has been moved.
+     */
+    public boolean relayout(Storage storage) {
+        if (sorted) {
+            return false;
+        }
+        int total = countEdges();
+        if (total <= storage.getSortedEdgeThreshold()) {
+            return false;
+        }
+        PEdge[] all = new PEdge[total];
+        int n = 0;
+        for (PEdgeBlock b = this; b != null; b = b.next) {
+            for (int i = 0; i < b.edgeCount; i++) {
+                all[n++] = b.edges[i];
+            }
         }
+        Arrays.sort(all, LABEL_ORDER);
+        allocateSorted(storage, all, total, 2 * total);
+        next = null;
+        sorted = true;
+        return true;
     }
 
-    public PEdge findEdge(short labelId) {
+    private int countEdges() {
+        int n = 0;
+        for (PEdgeBlock b = this; b != null; b = b.next) {
+            n += b.edgeCount;
+        }
+        return n;
+    }
+
+    private void allocateSorted(Storage storage, PEdge[] ee, int count, int capacity) {
+        int slots = slotCount(storage, capacity);
+        id = edgeBlockCount.getAndAdd(slots);
+        int bytes = slots * storage.getEdgeBlockLength() - SORTED_HEADER_LENGTH;
+        edges = Arrays.copyOf(ee, bytes / storage.getEdgeLength());
+        edgeCount = count;
+    }
+
+    private static int slotCount(Storage storage, int capacity) {
+        int length = storage.getEdgeBlockLength();
+        int bytes = SORTED_HEADER_LENGTH + capacity * storage.getEdgeLength();
+        return (bytes + length - 1) / length;
+    }
+
+    public PEdge findEdge(int labelId) {
+        if (sorted) {
+            int low = 0;
+            int high = edgeCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                PEdge e = edges[mid];
+                if (e.getLabelId() < labelId) {
+                    low = mid + 1;
+                } else if (e.getLabelId() > labelId) {
+                    high = mid - 1;
+                } else {
+                    return e;
+                }
+            }
+            return null;
+        }
         for (int i = 0; i < edgeCount; i++) {
             PEdge e = edges[i];
             if (e.getLabelId() == labelId) {
@@ -68,18 +192,65 @@ public class PEdgeBlock {
         return null;
     }
 
+    /**
+     * Finds the edge directly in the edge file. Only the label of the visited
+     * edges is read, the matching edge is decoded. The position of the file
+     * is not used.
+     */
+    public static PEdge findEdge(Storage storage, long id, int labelId) throws IOException {
+        MappedFile edgeFile = storage.getEdgeFile();
+        int edgeLength = storage.getEdgeLength();
+        long offset = id * storage.getEdgeBlockLength();
+        long nextId = edgeFile.readLong(offset + 8);
+        int count = edgeFile.readInt(offset + 16);
+        if (nextId == SORTED) {
+            long base = offset + SORTED_HEADER_LENGTH;
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long edgeOffset = base + (long) mid * edgeLength;
+                int lab = PEdge.readLabelId(storage, edgeOffset);
+                if (lab < labelId) {
+                    low = mid + 1;
+                } else if (lab > labelId) {
+                    high = mid - 1;
+                } else {
+                    return PEdge.readFrom(storage, edgeOffset);
+                }
+            }
+            return null;
+        }
+        long base = offset + 8 + 8 + 4;
+        for (int i = 0; i < count; i++) {
+            long edgeOffset = base + (long) i * edgeLength;
+            if (PEdge.readLabelId(storage, edgeOffset) == labelId) {
+                return PEdge.readFrom(storage, edgeOffset);
+            }
+        }
+        if (nextId >= 0) {
+            return findEdge(storage, nextId, labelId);
+        }
+        return null;
+    }
+
     public PEdgeBlock getNext() {
         return next;
     }
 
     public void readFrom(Storage storage) throws IOException {
         MappedFile edgeFile = storage.getEdgeFile();
-        long offset = id * LENGTH;
+        long offset = id * storage.getEdgeBlockLength();
         edgeFile.seek(offset);
         long eid = edgeFile.readLong();
         assert eid == id;
         long nextId = edgeFile.readLong();
         edgeCount = edgeFile.readInt();
+        if (nextId == SORTED) {
+            int capacity = edgeFile.readInt();
+            sorted = true;
+            edges = new PEdge[capacity];
+        }
         for (int i = 0; i < edgeCount; i++) {
             edges[i] = PEdge.readFrom(storage);
         }
@@ -91,12 +262,18 @@ public class PEdgeBlock {
 
     public void writeTo(Storage storage) throws IOException {
         MappedFile edgeFile = storage.getEdgeFile();
-        long offset = id * LENGTH;
+        long offset = id * storage.getEdgeBlockLength();
         edgeFile.seek(offset);
         edgeFile.writeLong(id);
-        long nextId = (next == null) ? -1L : next.id;
-        edgeFile.writeLong(nextId);
-        edgeFile.writeInt(edgeCount);
+        if (sorted) {
+            edgeFile.writeLong(SORTED);
+            edgeFile.writeInt(edgeCount);
+            edgeFile.writeInt(edges.length);
+        } else {
+            long nextId = (next == null) ? -1L : next.id;
+            edgeFile.writeLong(nextId);
+            edgeFile.writeInt(edgeCount);
+        }
         for (int i = 0; i < edgeCount; i++) {
             PEdge e = edges[i];
             e.writeTo(storage);
@@ -106,12 +283,12 @@ public class PEdgeBlock {
         }
     }
 
-    public void print(PLabels labels) throws IOException {
+    public void print(Storage storage, PLabels labels) throws IOException {
         for (int i = 0; i < edgeCount; i++) {
-            edges[i].print(labels);
+            edges[i].print(storage, labels);
         }
         if (next != null) {
-            next.print(labels);
+            next.print(storage, labels);
         }
     }
 }
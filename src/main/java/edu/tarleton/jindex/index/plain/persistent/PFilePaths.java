@@ -1,102 +1,86 @@
 package edu.tarleton.jindex.index.plain.persistent;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import edu.tarleton.jindex.index.StringTable;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
-import java.nio.file.StandardOpenOption;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
- * The class that represents the persistent file paths.
+ * The class that represents the persistent file paths. The paths are kept in
+ * the string table, so that they are not decoded when the trie is opened.
  *
  * @author Zdenek Tronicek, tronicek@tarleton.edu
  */
 public class PFilePaths {
 
-    private final Map<String, Long> map;
-    private long nextFileId;
+    private final StringTable paths;
+    private final Set<Long> removed = new HashSet<>();
 
-    private PFilePaths(Map<String, Long> map, long nextFileId) {
-        this.map = map;
-        this.nextFileId = nextFileId;
+    private PFilePaths(StringTable paths) {
+        this.paths = paths;
     }
 
     public static void initialize(Storage storage) throws IOException {
-        File pathFile = storage.getPathFile();
-        try (FileChannel ch = FileChannel.open(pathFile.toPath(),
-                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
-            ch.truncate(0);
-        }
+        StringTable.initialize(storage.getPathFile());
     }
 
     public static PFilePaths load(Storage storage) throws IOException {
-        Map<String, Long> map = new HashMap<>();
-        long fileId = 0L;
-        File pathFile = storage.getPathFile();
-        if (!pathFile.exists()) {
-            return new PFilePaths(map, fileId);
-        }
-        try (DataInputStream in = new DataInputStream(
-                new FileInputStream(pathFile))) {
-            try {
-                while (true) {
-                    String path = in.readUTF();
-                    map.put(path, fileId);
-                    fileId++;
-                }
-            } catch (EOFException e) {
-                // okay
-            }
-        }
-        return new PFilePaths(map, fileId);
+        return new PFilePaths(StringTable.load(storage.getPathFile()));
     }
 
-    public long toFileId(Storage storage, String path) throws IOException {
-        Long fid = map.get(path);
-        if (fid != null) {
+    public void store(Storage storage) throws IOException {
+        paths.store();
+    }
+
+    public void close() throws IOException {
+        paths.close();
+    }
+
+    public synchronized long toFileId(Storage storage, String path) throws IOException {
+        long fid = paths.getId(path);
+        if (fid >= 0 && !removed.contains(fid)) {
             return fid;
         }
-        append(storage, path);
-        map.put(path, nextFileId);
-        nextFileId++;
-        return nextFileId - 1;
+        return paths.add(path);
+    }
+
+    /**
+     * Returns the id of the file or -1 if there is no such file.
+     */
+    public synchronized long getFileId(String path) {
+        long fid = paths.getId(path);
+        return (fid < 0 || removed.contains(fid)) ? -1 : fid;
     }
 
-    private void append(Storage storage, String path) throws IOException {
-        try (DataOutputStream out = new DataOutputStream(
-                new FileOutputStream(storage.getPathFile(), true))) {
-            out.writeUTF(path);
+    /**
+     * Removes the path. If the path is added again, it gets a new id. Returns
+     * the id of the removed path.
+     */
+    public synchronized Long remove(String path) {
+        long fid = paths.getId(path);
+        if (fid < 0 || !removed.add(fid)) {
+            return null;
         }
+        return fid;
+    }
+
+    public synchronized void removeFileIds(Set<Long> fileIds) {
+        removed.addAll(fileIds);
     }
 
-    public Map<Long, String> getInverseMap() {
-        Map<Long, String> imap = new HashMap<>();
-        for (String fn : map.keySet()) {
-            Long fileId = map.get(fn);
-            imap.put(fileId, fn);
+    /**
+     * Returns the path of the file or null if the file has been removed.
+     */
+    public synchronized String getPath(long fileId) {
+        if (fileId >= paths.size() || removed.contains(fileId)) {
+            return null;
         }
-        return imap;
+        return paths.get((int) fileId);
     }
 
     public void print(Storage storage) throws IOException {
-        long fileId = 0L;
-        try (DataInputStream in = new DataInputStream(
-                new FileInputStream(storage.getPathFile()))) {
-            try {
-                while (true) {
-                    String path = in.readUTF();
-                    System.out.printf("%d %s%n", fileId, path);
-                    fileId++;
-                }
-            } catch (EOFException e) {
-                // okay
-            }
+        for (int i = 0; i < paths.size(); i++) {
+            System.out.printf("%d %s%n", i, paths.get(i));
         }
     }
 }
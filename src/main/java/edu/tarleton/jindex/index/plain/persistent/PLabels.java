@@ -1,16 +1,10 @@
 package edu.tarleton.jindex.index.plain.persistent;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
+import edu.tarleton.jindex.index.LabelDictionary;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * The class that represents the persistent labels of TRIE edges.
@@ -19,9 +13,9 @@ import java.util.List;
  */
 public class PLabels {
 
-    private final List<String> labels;
+    private final LabelDictionary labels;
 
-    private PLabels(List<String> labels) {
+    private PLabels(LabelDictionary labels) {
         this.labels = labels;
     }
 
@@ -34,65 +28,33 @@ public class PLabels {
     }
 
     public static PLabels load(Storage storage) throws IOException {
-        List<String> labels = new ArrayList<>();
-        File labelFile = storage.getLabelFile();
-        if (!labelFile.exists()) {
-            return new PLabels(labels);
-        }
-        try (DataInputStream in = new DataInputStream(
-                new FileInputStream(storage.getLabelFile()))) {
-            try {
-                while (true) {
-                    String label = in.readUTF();
-                    labels.add(label);
-                }
-            } catch (EOFException e) {
-                // okay
-            }
-        }
+        LabelDictionary labels = LabelDictionary.load(storage.getLabelFile());
         return new PLabels(labels);
     }
 
     public void store(Storage storage) throws IOException {
-        try (DataOutputStream out = new DataOutputStream(
-                new FileOutputStream(storage.getLabelFile()))) {
-            for (String label : labels) {
-                out.writeUTF(label);
-            }
-        }
+        labels.store(storage.getLabelFile());
+    }
+
+    public void close() {
+        labels.close();
     }
 
     public int toLabelId(String label) {
-        int index = labels.indexOf(label);
-        if (index >= 0) {
-            return index;
-        }
-        labels.add(label);
-        assert labels.size() <= Short.MAX_VALUE;
-        return labels.size() - 1;
+        return labels.toId(label);
     }
 
     public int toExistingLabelId(String label) {
-        return labels.indexOf(label);
+        return labels.getId(label);
     }
 
     public String fromLabelId(int labelId) {
-        return labels.get(labelId);
+        return labels.getLabel(labelId);
     }
 
     public void print(Storage storage) throws IOException {
-        int index = 0;
-        try (DataInputStream in = new DataInputStream(
-                new FileInputStream(storage.getLabelFile()))) {
-            try {
-                while (true) {
-                    String label = in.readUTF();
-                    System.out.printf("%d %s%n", index, label);
-                    index++;
-                }
-            } catch (EOFException e) {
-                // okay
-            }
+        for (int i = 0; i < labels.size(); i++) {
+            System.out.printf("%d %s%n", i, labels.getLabel(i));
         }
     }
 }
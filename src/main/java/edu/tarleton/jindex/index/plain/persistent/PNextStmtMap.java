@@ -2,66 +2,185 @@ package edu.tarleton.jindex.index.plain.persistent;
 
 import com.github.javaparser.Position;
 import edu.tarleton.jindex.Pos;
+import edu.tarleton.jindex.index.MappedFile;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.StandardOpenOption;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 /**
  * The class that represents the persistent next-statement map.
  *
+ * The map file is a sequence of runs, one run per batch. A run consists of
+ * the header (the magic number, the number of entries, the smallest and the
+ * largest file id), the sorted keys (file id, start line, start column, end
+ * line, end column of the statement), and the values (project id, start and
+ * end of the next statement, start and end of the method). The runs are
+ * mapped into memory and searched by binary search. The older format (the
+ * entries written by writeUTF) is converted when the map is loaded.
+ *
  * @author Zdenek Tronicek, tronicek@tarleton.edu
  */
 public class PNextStmtMap {
 
-    private final Map<Pos, Pos> nextStmtMap;
+    private static final int MAGIC = 0xCAFE4E53;
+    private static final int HEADER_LENGTH = 24;
+    private static final int KEY_LENGTH = 24;
+    private static final int VALUE_LENGTH = 36;
+    private final File file;
+    private final PProjects projects;
+    private final PFilePaths filePaths;
+    private volatile Run[] runs;
+    private long length;
+    private boolean converted;
 
-    private PNextStmtMap(Map<Pos, Pos> nextStmtMap) {
-        this.nextStmtMap = nextStmtMap;
+    private PNextStmtMap(File file, PProjects projects, PFilePaths filePaths,
+            Run[] runs, long length) {
+        this.file = file;
+        this.projects = projects;
+        this.filePaths = filePaths;
+        this.runs = runs;
+        this.length = length;
     }
 
+    /**
+     * Returns the statement that follows the statement or null if there is no
+     * such statement.
+     */
     public Pos getNext(Pos stmt) {
-        return nextStmtMap.get(stmt);
+        long fileId = filePaths.getFileId(stmt.getFile());
+        if (fileId < 0) {
+            return null;
+        }
+        int[] key = {stmt.getStartLine(), stmt.getStartColumn(),
+            stmt.getEndLine(), stmt.getEndColumn()};
+        Run[] rr = runs;
+        for (int i = rr.length - 1; i >= 0; i--) {
+            int k = rr[i].search(fileId, key);
+            if (k >= 0) {
+                return rr[i].getNext(k, stmt.getFile(), projects);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the start line, start column, end line, and end column of the
+     * statement that follows the statement given by the same values or null
+     * if there is no such statement.
+     */
+    public int[] getNextKey(long fileId, int[] key) {
+        Run[] rr = runs;
+        for (int i = rr.length - 1; i >= 0; i--) {
+            int k = rr[i].search(fileId, key);
+            if (k >= 0) {
+                Run r = rr[i];
+                return new int[]{r.value(k, 1), r.value(k, 2), r.value(k, 3), r.value(k, 4)};
+            }
+        }
+        return null;
+    }
+
+    public synchronized void addNextStmtMap(Storage storage, Map<Pos, Pos> map) throws IOException {
+        if (map.isEmpty()) {
+            return;
+        }
+        long[] fileIds = new long[map.size()];
+        int[][] entries = new int[map.size()][];
+        int n = 0;
+        for (Map.Entry<Pos, Pos> e : map.entrySet()) {
+            Pos stmt = e.getKey();
+            Pos next = e.getValue();
+            fileIds[n] = filePaths.toFileId(storage, stmt.getFile());
+            entries[n] = new int[]{
+                stmt.getStartLine(), stmt.getStartColumn(),
+                stmt.getEndLine(), stmt.getEndColumn(),
+                projects.toProjectId(storage, stmt.getProject()),
+                next.getStartLine(), next.getStartColumn(),
+                next.getEndLine(), next.getEndColumn(),
+                stmt.getMethodStartLine(), stmt.getMethodStartColumn(),
+                stmt.getMethodEndLine(), stmt.getMethodEndColumn()};
+            n++;
+        }
+        append(toRun(fileIds, entries));
     }
 
-    public void addNextStmtMap(Storage storage, Map<Pos, Pos> map) throws IOException {
-        append(storage, map);
-        for (Pos stmt : map.keySet()) {
-            Pos next = map.get(stmt);
-            nextStmtMap.put(stmt, next);
+    private static ByteBuffer toRun(long[] fileIds, int[][] entries) {
+        int count = fileIds.length;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
         }
+        Arrays.sort(order, (i, j) -> {
+            int c = Long.compare(fileIds[i], fileIds[j]);
+            for (int k = 0; c == 0 && k < 4; k++) {
+                c = Integer.compare(entries[i][k], entries[j][k]);
+            }
+            return c;
+        });
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + (KEY_LENGTH + VALUE_LENGTH) * count);
+        buf.putInt(MAGIC);
+        buf.putInt(count);
+        buf.putLong(fileIds[order[0]]);
+        buf.putLong(fileIds[order[count - 1]]);
+        for (int i : order) {
+            buf.putLong(fileIds[i]);
+            for (int k = 0; k < 4; k++) {
+                buf.putInt(entries[i][k]);
+            }
+        }
+        for (int i : order) {
+            for (int k = 4; k < entries[i].length; k++) {
+                buf.putInt(entries[i][k]);
+            }
+        }
+        buf.flip();
+        return buf;
     }
 
-    private void append(Storage storage, Map<Pos, Pos> map) throws IOException {
-        try (DataOutputStream out = new DataOutputStream(
-                new FileOutputStream(storage.getNextStmtMapFile(), true))) {
-            for (Pos stmt : map.keySet()) {
-                Pos next = map.get(stmt);
-                out.writeUTF(stmt.getProject());
-                out.writeUTF(stmt.getFile());
-                out.writeInt(stmt.getStartLine());
-                out.writeInt(stmt.getStartColumn());
-                out.writeInt(stmt.getEndLine());
-                out.writeInt(stmt.getEndColumn());
-                out.writeInt(next.getStartLine());
-                out.writeInt(next.getStartColumn());
-                out.writeInt(next.getEndLine());
-                out.writeInt(next.getEndColumn());
-                out.writeInt(stmt.getMethodStartLine());
-                out.writeInt(stmt.getMethodStartColumn());
-                out.writeInt(stmt.getMethodEndLine());
-                out.writeInt(stmt.getMethodEndColumn());
+    /**
+     * Appends the run to the map file. If the map has been converted from the
+     * older format, the file is rewritten first.
+     */
+    private void append(ByteBuffer run) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (converted) {
+                ch.truncate(0L);
+                length = 0L;
+                Run[] rr = runs;
+                for (int i = 0; i < rr.length; i++) {
+                    rr[i] = write(ch, rr[i].buf.duplicate());
+                }
+                converted = false;
             }
+            ch.truncate(length);
+            Run[] rr = Arrays.copyOf(runs, runs.length + 1);
+            rr[rr.length - 1] = write(ch, run);
+            runs = rr;
         }
     }
 
+    private Run write(FileChannel ch, ByteBuffer run) throws IOException {
+        int size = run.remaining();
+        ch.position(length);
+        while (run.hasRemaining()) {
+            ch.write(run);
+        }
+        Run r = new Run(ch.map(MapMode.READ_ONLY, length, size));
+        length += size;
+        return r;
+    }
+
     public static void initialize(Storage storage) throws IOException {
         File mapFile = storage.getNextStmtMapFile();
         if (mapFile != null) {
@@ -72,78 +191,176 @@ public class PNextStmtMap {
         }
     }
 
-    public static PNextStmtMap load(Storage storage) throws IOException {
-        Map<Pos, Pos> map = new HashMap<>();
+    public static PNextStmtMap load(Storage storage, PProjects projects,
+            PFilePaths filePaths) throws IOException {
         File mapFile = storage.getNextStmtMapFile();
         if (mapFile == null) {
             return null;
         }
-        if (!mapFile.exists()) {
-            return new PNextStmtMap(map);
+        List<Run> runs = new ArrayList<>();
+        long length = 0L;
+        if (mapFile.exists()) {
+            try (FileChannel ch = FileChannel.open(mapFile.toPath(), StandardOpenOption.READ)) {
+                long size = ch.size();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                while (length + HEADER_LENGTH <= size) {
+                    header.clear();
+                    ch.read(header, length);
+                    if (header.getInt(0) != MAGIC) {
+                        break;
+                    }
+                    long runLength = HEADER_LENGTH + (long) (KEY_LENGTH + VALUE_LENGTH) * header.getInt(4);
+                    if (length + runLength > size) {
+                        // an incomplete run at the end of the file is overwritten
+                        break;
+                    }
+                    runs.add(new Run(ch.map(MapMode.READ_ONLY, length, runLength)));
+                    length += runLength;
+                }
+            }
+            if (length == 0L && mapFile.length() > 0L) {
+                return convert(mapFile, projects, filePaths);
+            }
         }
-        try (DataInputStream in = new DataInputStream(
-                new FileInputStream(storage.getNextStmtMapFile()))) {
+        return new PNextStmtMap(mapFile, projects, filePaths, runs.toArray(new Run[0]), length);
+    }
+
+    /**
+     * Converts the map in the older format to one run in memory. The run is
+     * written when a batch is appended.
+     */
+    private static PNextStmtMap convert(File mapFile, PProjects projects,
+            PFilePaths filePaths) throws IOException {
+        List<Long> fileIds = new ArrayList<>();
+        List<int[]> entries = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(mapFile))) {
             try {
                 while (true) {
-                    Pos[] pos = readTwoPos(in);
-                    map.put(pos[0], pos[1]);
+                    int projId = projects.getProjectId(in.readUTF());
+                    long fileId = filePaths.getFileId(in.readUTF());
+                    int[] e = new int[13];
+                    for (int i = 0; i < 4; i++) {
+                        e[i] = in.readInt();
+                    }
+                    e[4] = projId;
+                    for (int i = 5; i < e.length; i++) {
+                        e[i] = in.readInt();
+                    }
+                    if (projId >= 0 && fileId >= 0) {
+                        fileIds.add(fileId);
+                        entries.add(e);
+                    }
                 }
             } catch (EOFException e) {
                 // okay
             }
         }
-        return new PNextStmtMap(map);
+        Run[] runs = {};
+        if (!entries.isEmpty()) {
+            long[] ids = new long[fileIds.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = fileIds.get(i);
+            }
+            runs = new Run[]{new Run(toRun(ids, entries.toArray(new int[0][])))};
+        }
+        PNextStmtMap map = new PNextStmtMap(mapFile, projects, filePaths, runs, 0L);
+        map.converted = true;
+        return map;
     }
 
-    private static Pos[] readTwoPos(DataInputStream in) throws IOException {
-        String project = in.readUTF();
-        String file = in.readUTF();
-        Position stmtStart = new Position(in.readInt(), in.readInt());
-        Position stmtEnd = new Position(in.readInt(), in.readInt());
-        Position nextStart = new Position(in.readInt(), in.readInt());
-        Position nextEnd = new Position(in.readInt(), in.readInt());
-        Position methodStart = new Position(in.readInt(), in.readInt());
-        Position methodEnd = new Position(in.readInt(), in.readInt());
-        return new Pos[]{
-            new Pos(project, file, stmtStart, stmtEnd, methodStart, methodEnd),
-            new Pos(project, file, nextStart, nextEnd, methodStart, methodEnd)
-        };
+    /**
+     * Releases the mappings of the runs. The map must not be used afterwards.
+     */
+    public synchronized void close() {
+        for (Run r : runs) {
+            MappedFile.unmap(r.buf);
+        }
+        runs = new Run[0];
     }
 
-    public void store(Storage storage) throws IOException {
-        try (DataOutputStream out = new DataOutputStream(
-                new FileOutputStream(storage.getNextStmtMapFile()))) {
-            for (Pos stmt : nextStmtMap.keySet()) {
-                Pos next = nextStmtMap.get(stmt);
-                out.writeUTF(stmt.getProject());
-                out.writeUTF(stmt.getFile());
-                out.writeInt(stmt.getStartLine());
-                out.writeInt(stmt.getStartColumn());
-                out.writeInt(stmt.getEndLine());
-                out.writeInt(stmt.getEndColumn());
-                out.writeInt(next.getStartLine());
-                out.writeInt(next.getStartColumn());
-                out.writeInt(next.getEndLine());
-                out.writeInt(next.getEndColumn());
-                out.writeInt(stmt.getMethodStartLine());
-                out.writeInt(stmt.getMethodStartColumn());
-                out.writeInt(stmt.getMethodEndLine());
-                out.writeInt(stmt.getMethodEndColumn());
+    public void print(Storage storage) throws IOException {
+        for (Run r : runs) {
+            for (int k = 0; k < r.count; k++) {
+                long fileId = r.buf.getLong(HEADER_LENGTH + KEY_LENGTH * k);
+                String path = filePaths.getPath(fileId);
+                if (path != null) {
+                    Pos next = r.getNext(k, path, projects);
+                    Pos stmt = r.getStmt(k, path, projects);
+                    System.out.printf("%s -> %s%n", stmt, next);
+                }
             }
         }
     }
 
-    public void print(Storage storage) throws IOException {
-        try (DataInputStream in = new DataInputStream(
-                new FileInputStream(storage.getNextStmtMapFile()))) {
-            try {
-                while (true) {
-                    Pos[] pos = readTwoPos(in);
-                    System.out.printf("%s -> %s%n", pos[0], pos[1]);
+    /**
+     * The run of the sorted entries.
+     */
+    private static class Run {
+
+        final ByteBuffer buf;
+        final int count;
+        final long minFileId;
+        final long maxFileId;
+
+        Run(ByteBuffer buf) {
+            this.buf = buf;
+            count = buf.getInt(4);
+            minFileId = buf.getLong(8);
+            maxFileId = buf.getLong(16);
+        }
+
+        /**
+         * Returns the index of the entry with the key or -1 if there is no
+         * such entry.
+         */
+        int search(long fileId, int[] key) {
+            if (fileId < minFileId || fileId > maxFileId) {
+                return -1;
+            }
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int c = compare(mid, fileId, key);
+                if (c < 0) {
+                    low = mid + 1;
+                } else if (c > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
                 }
-            } catch (EOFException e) {
-                // okay
             }
+            return -1;
+        }
+
+        private int compare(int k, long fileId, int[] key) {
+            int offset = HEADER_LENGTH + KEY_LENGTH * k;
+            int c = Long.compare(buf.getLong(offset), fileId);
+            for (int i = 0; c == 0 && i < 4; i++) {
+                c = Integer.compare(buf.getInt(offset + 8 + 4 * i), key[i]);
+            }
+            return c;
+        }
+
+        private int value(int k, int i) {
+            return buf.getInt(HEADER_LENGTH + KEY_LENGTH * count + VALUE_LENGTH * k + 4 * i);
+        }
+
+        Pos getNext(int k, String path, PProjects projects) {
+            return new Pos(projects.getProject(value(k, 0)), path,
+                    new Position(value(k, 1), value(k, 2)),
+                    new Position(value(k, 3), value(k, 4)),
+                    new Position(value(k, 5), value(k, 6)),
+                    new Position(value(k, 7), value(k, 8)));
+        }
+
+        Pos getStmt(int k, String path, PProjects projects) {
+            int offset = HEADER_LENGTH + KEY_LENGTH * k + 8;
+            return new Pos(projects.getProject(value(k, 0)), path,
+                    new Position(buf.getInt(offset), buf.getInt(offset + 4)),
+                    new Position(buf.getInt(offset + 8), buf.getInt(offset + 12)),
+                    new Position(value(k, 5), value(k, 6)),
+                    new Position(value(k, 7), value(k, 8)));
         }
     }
 }
@@ -2,6 +2,7 @@ package edu.tarleton.jindex.index.plain.persistent;
 
 import edu.tarleton.jindex.index.MappedFile;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The class that represents the persistent node.
@@ -11,21 +12,24 @@ import java.io.IOException;
 public class PNode {
 
     public static final int LENGTH = 16;
-    private static long count;
+    private static final AtomicLong count = new AtomicLong();
     private final long id;
     private PEdgeBlock edgeBlock;
 
     public static long getCount() {
-        return count;
+        return count.get();
     }
 
     public static void reset() {
-        count = 0;
+        count.set(0L);
+    }
+
+    public static void reset(long nextId) {
+        count.set(nextId);
     }
 
     public PNode() {
-        id = count;
-        count++;
+        id = count.getAndIncrement();
         edgeBlock = new PEdgeBlock();
     }
 
@@ -51,17 +55,26 @@ public class PNode {
         edgeBlock.readFrom(storage);
     }
 
+    /**
+     * Finds the edge directly in the files. This does not use the position
+     * of the files, so it can be called concurrently.
+     */
+    public static PEdge findEdge(Storage storage, long id, int labelId) throws IOException {
+        long ebId = storage.getNodeFile().readLong(id * LENGTH + 8);
+        return PEdgeBlock.findEdge(storage, ebId, labelId);
+    }
+
     public void writeTo(Storage storage) throws IOException {
         MappedFile nodeFile = storage.getNodeFile();
         long offset = id * LENGTH;
         nodeFile.seek(offset);
-        nodeFile.writeLong(id);
+        nodeFile.writeLong((id == 0L) ? storage.getFormatVersion() : id);
         nodeFile.writeLong(edgeBlock.getId());
         edgeBlock.writeTo(storage);
     }
 
-    public void print(PLabels labels) throws IOException {
+    public void print(Storage storage, PLabels labels) throws IOException {
         System.out.printf("node: %d%n", id);
-        edgeBlock.print(labels);
+        edgeBlock.print(storage, labels);
     }
 }
@@ -0,0 +1,97 @@
+package edu.tarleton.jindex.index.plain.persistent;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The class that represents the LRU cache of decoded persistent nodes (with
+ * their edge blocks). Modified nodes are written back when they are evicted
+ * or when the cache is flushed. The capacity 0 disables the cache.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class PNodeCache {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    private final Storage storage;
+    private final LinkedHashMap<Long, PNode> nodes = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<Long> dirty = new HashSet<>();
+    private int capacity;
+    private long hits;
+    private long misses;
+
+    public PNodeCache(Storage storage, int capacity) {
+        this.storage = storage;
+        this.capacity = capacity;
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized void setCapacity(int capacity) throws IOException {
+        this.capacity = capacity;
+        evict();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized PNode get(long id) throws IOException {
+        PNode p = nodes.get(id);
+        if (p != null) {
+            hits++;
+            return p;
+        }
+        misses++;
+        p = new PNode(id);
+        p.readFrom(storage);
+        if (capacity > 0) {
+            nodes.put(id, p);
+            evict();
+        }
+        return p;
+    }
+
+    public synchronized void put(PNode p) throws IOException {
+        if (capacity <= 0) {
+            p.writeTo(storage);
+            return;
+        }
+        nodes.put(p.getId(), p);
+        dirty.add(p.getId());
+        evict();
+    }
+
+    public synchronized void flush() throws IOException {
+        for (Long id : dirty) {
+            nodes.get(id).writeTo(storage);
+        }
+        dirty.clear();
+    }
+
+    public synchronized void clear() throws IOException {
+        flush();
+        nodes.clear();
+    }
+
+    private void evict() throws IOException {
+        Iterator<Map.Entry<Long, PNode>> it = nodes.entrySet().iterator();
+        while (nodes.size() > capacity) {
+            Map.Entry<Long, PNode> e = it.next();
+            it.remove();
+            if (dirty.remove(e.getKey())) {
+                e.getValue().writeTo(storage);
+            }
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package edu.tarleton.jindex.index.plain.persistent;
 
 import edu.tarleton.jindex.index.MappedFile;
+import edu.tarleton.jindex.index.PackedPositions;
 import com.github.javaparser.Position;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The class that represents the persistent position in the source code.
@@ -13,7 +15,7 @@ public class PPos {
 
     public static final int LENGTH = 44;
     private static final Position NO_POSITION = new Position(-1, -1);
-    private static long count;
+    private static final AtomicLong count = new AtomicLong();
     private final int projectId;
     private final long fileId;
     private final Position begin;
@@ -22,7 +24,7 @@ public class PPos {
     private final Position methodEnd;
 
     public static long getCount() {
-        return count;
+        return count.get();
     }
 
     public PPos(int projectId, long fileId, Position begin, Position end,
@@ -33,7 +35,7 @@ public class PPos {
         this.end = (end == null) ? NO_POSITION : end;
         this.methodBegin = methodBegin;
         this.methodEnd = methodEnd;
-        count++;
+        count.incrementAndGet();
     }
 
     public int getProjectId() {
@@ -84,6 +86,20 @@ public class PPos {
                 position(mbline, mbcol), position(meline, mecol));
     }
 
+    public static PPos readFrom(PackedPositions.Cursor cursor) {
+        return new PPos(cursor.getProjectId(), cursor.getFileId(),
+                position(cursor.getBeginLine(), cursor.getBeginColumn()),
+                position(cursor.getEndLine(), cursor.getEndColumn()),
+                position(cursor.getMethodBeginLine(), cursor.getMethodBeginColumn()),
+                position(cursor.getMethodEndLine(), cursor.getMethodEndColumn()));
+    }
+
+    public boolean writeTo(PackedPositions packed) {
+        return packed.add(projectId, fileId,
+                begin.line, begin.column, end.line, end.column,
+                methodBegin.line, methodBegin.column, methodEnd.line, methodEnd.column);
+    }
+
     private static Position position(int begin, int end) {
         if (begin < 0 && end < 0) {
             return NO_POSITION;
@@ -2,6 +2,10 @@ package edu.tarleton.jindex.index.plain.persistent;
 
 import edu.tarleton.jindex.index.MappedFile;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * The block of positions in the plain (not compressed) persistent TRIE.
@@ -10,17 +14,30 @@ import java.io.IOException;
  */
 public abstract class PPosBlock {
 
-    private static long posBlockCount;
-    protected final long id;
+    /**
+     * The unit of allocation in the position file. A block occupies one or
+     * more consecutive units and its id is the index of its first unit.
+     */
+    public static final int UNIT = 32;
+    public static final int INDIRECT_UNITS = (PPosBlockDirect.LENGTH + UNIT - 1) / UNIT;
+    private static final AtomicLong posBlockCount = new AtomicLong();
+    protected long id;
     protected final PBlockType type;
 
     public static void reset() {
-        posBlockCount = 0;
+        posBlockCount.set(0L);
     }
 
-    public PPosBlock(PBlockType type) {
-        this(posBlockCount, type);
-        posBlockCount++;
+    public static void reset(long nextId) {
+        posBlockCount.set(nextId);
+    }
+
+    public static long getNextId() {
+        return posBlockCount.get();
+    }
+
+    public PPosBlock(PBlockType type, int units) {
+        this(allocate(units), type);
     }
 
     public PPosBlock(long id, PBlockType type) {
@@ -28,9 +45,13 @@ public abstract class PPosBlock {
         this.type = type;
     }
 
+    protected static long allocate(int units) {
+        return posBlockCount.getAndAdd(units);
+    }
+
     public static PPosBlock read(long id, Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        long offset = id * PPosBlockDirect.LENGTH;
+        long offset = id * storage.getPosBlockUnit();
         posFile.seek(offset);
         long pid = posFile.readLong();
         assert pid == id;
@@ -53,6 +74,10 @@ public abstract class PPosBlock {
                 return new PPosBlockIndirect3(id);
             case INDIRECT4:
                 return new PPosBlockIndirect4(id);
+            case PACKED:
+                return new PPosBlockPacked(id);
+            case EXTENT:
+                return new PPosBlockExtent(id);
             default:
                 throw new AssertionError("invalid type");
         }
@@ -66,9 +91,27 @@ public abstract class PPosBlock {
 
     public abstract int countPositions();
 
-    public abstract PPos[] getPositions();
+    /**
+     * Returns the number of positions whose size (in lines) is between
+     * minSize and maxSize. The positions are not created.
+     */
+    public abstract int countPositions(int minSize, int maxSize);
 
-    public abstract PPos[] getPositions(int minSize, int maxSize);
+    /**
+     * Passes the positions whose size (in lines) is between minSize and
+     * maxSize to the action in the order in which they were added.
+     */
+    public abstract void forEachPosition(int minSize, int maxSize, Consumer<PPos> action);
+
+    public PPos[] getPositions() {
+        return getPositions(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    public PPos[] getPositions(int minSize, int maxSize) {
+        List<PPos> pp = new ArrayList<>();
+        forEachPosition(minSize, maxSize, pp::add);
+        return pp.toArray(new PPos[pp.size()]);
+    }
 
     public abstract void readFrom(Storage storage) throws IOException;
 
@@ -78,8 +121,9 @@ public abstract class PPosBlock {
 
     public abstract void print();
 
-    protected void readHeaderFrom(MappedFile posFile) throws IOException {
-        long offset = id * PPosBlockDirect.LENGTH;
+    protected void readHeaderFrom(Storage storage) throws IOException {
+        MappedFile posFile = storage.getPosFile();
+        long offset = id * storage.getPosBlockUnit();
         posFile.seek(offset);
         long pid = posFile.readLong();
         assert pid == id;
@@ -88,8 +132,9 @@ public abstract class PPosBlock {
         assert ptype == type;
     }
 
-    protected void writeHeaderTo(MappedFile posFile) throws IOException {
-        long offset = id * PPosBlockDirect.LENGTH;
+    protected void writeHeaderTo(Storage storage) throws IOException {
+        MappedFile posFile = storage.getPosFile();
+        long offset = id * storage.getPosBlockUnit();
         posFile.seek(offset);
         posFile.writeLong(id);
         posFile.writeShort((short) type.ordinal());
@@ -2,9 +2,11 @@ package edu.tarleton.jindex.index.plain.persistent;
 
 import edu.tarleton.jindex.index.MappedFile;
 import java.io.IOException;
+import java.util.function.Consumer;
 
 /**
  * The direct block of positions in the plain (not compressed) persistent TRIE.
+ * Direct blocks are used by indexes of format version 1 and 2.
  *
  * @author Zdenek Tronicek, tronicek@tarleton.edu
  */
@@ -15,10 +17,6 @@ public class PPosBlockDirect extends PPosBlock {
     private int posCount;
     private final PPos[] positions = new PPos[BLOCK_SIZE];
 
-    public PPosBlockDirect() {
-        super(PBlockType.DIRECT);
-    }
-
     public PPosBlockDirect(long id) {
         super(id, PBlockType.DIRECT);
     }
@@ -39,14 +37,7 @@ public class PPosBlockDirect extends PPosBlock {
     }
 
     @Override
-    public PPos[] getPositions() {
-        PPos[] pp = new PPos[posCount];
-        System.arraycopy(positions, 0, pp, 0, pp.length);
-        return pp;
-    }
-
-    @Override
-    public PPos[] getPositions(int minSize, int maxSize) {
+    public int countPositions(int minSize, int maxSize) {
         int c = 0;
         for (int i = 0; i < posCount; i++) {
             int size = positions[i].getLines();
@@ -54,21 +45,23 @@ public class PPosBlockDirect extends PPosBlock {
                 c++;
             }
         }
-        PPos[] pp = new PPos[c];
-        for (int i = 0, j = 0; i < posCount; i++) {
+        return c;
+    }
+
+    @Override
+    public void forEachPosition(int minSize, int maxSize, Consumer<PPos> action) {
+        for (int i = 0; i < posCount; i++) {
             int size = positions[i].getLines();
             if (minSize <= size && size <= maxSize) {
-                pp[j] = positions[i];
-                j++;
+                action.accept(positions[i]);
             }
         }
-        return pp;
     }
 
     @Override
     public void readFrom(Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        readHeaderFrom(posFile);
+        readHeaderFrom(storage);
         posCount = posFile.readShort();
         for (int i = 0; i < posCount; i++) {
             positions[i] = PPos.readFrom(storage);
@@ -78,7 +71,7 @@ public class PPosBlockDirect extends PPosBlock {
     @Override
     public void writeTo(Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        super.writeHeaderTo(posFile);
+        super.writeHeaderTo(storage);
         posFile.writeShort((short) posCount);
         for (int i = 0; i < posCount; i++) {
             PPos p = positions[i];
@@ -0,0 +1,267 @@
+package edu.tarleton.jindex.index.plain.persistent;
+
+import edu.tarleton.jindex.index.MappedFile;
+import edu.tarleton.jindex.index.PackedPositions;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The extent of positions in the plain (not compressed) persistent TRIE. The
+ * extents make an unbounded list of positions. When an extent is full, a new
+ * extent of double length (up to MAX_UNITS units) is allocated and linked to
+ * the full one. The first extent is linked to the full block of another type.
+ * The edge refers to the last extent, so an append reads and writes only the
+ * header of the last extent and the new positions. The positions appended
+ * between two writes make a segment (the number of positions, the length,
+ * and the packed positions), which is packed from scratch, so that the
+ * positions in the file need not be decoded.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class PPosBlockExtent extends PPosBlock {
+
+    public static final int HEADER_LENGTH = 8 + 2 + 8 + 8 + 4 + 4 + 4;
+    public static final int SEGMENT_HEADER_LENGTH = 4 + 4;
+    public static final int FIRST_UNITS = 2 * PPosBlockPacked.MAX_UNITS;
+    public static final int MAX_UNITS = 1 << 16;
+    private long prevId = -1L;
+    private PPosBlock prev;
+    private long prevCount;
+    private int units;
+    private int count;
+    private int size;
+    private PackedPositions appended;
+    private Storage storage;
+    private final List<PPosBlock> unsaved = new ArrayList<>();
+
+    public PPosBlockExtent(long id) {
+        super(id, PBlockType.EXTENT);
+    }
+
+    public PPosBlockExtent(PPosBlock pb) {
+        super(PBlockType.EXTENT, FIRST_UNITS);
+        units = FIRST_UNITS;
+        link(pb);
+    }
+
+    private PPosBlockExtent(PPosBlockExtent e) {
+        super(e.id, PBlockType.EXTENT);
+        prevId = e.prevId;
+        prev = e.prev;
+        prevCount = e.prevCount;
+        units = e.units;
+        count = e.count;
+        size = e.size;
+        appended = e.appended;
+        storage = e.storage;
+    }
+
+    private void link(PPosBlock pb) {
+        prev = pb;
+        prevId = pb.getId();
+        prevCount = pb.countPositions();
+        unsaved.add(pb);
+    }
+
+    @Override
+    public boolean addPos(PPos pos) {
+        if (appended == null) {
+            appended = new PackedPositions(Math.max(0, getCapacity() - size - SEGMENT_HEADER_LENGTH));
+        }
+        if (pos.writeTo(appended)) {
+            return true;
+        }
+        // the copy keeps the id and the content of the full extent
+        PPosBlockExtent full = new PPosBlockExtent(this);
+        units = Math.min(MAX_UNITS, 2 * units);
+        id = allocate(units);
+        count = 0;
+        size = 0;
+        link(full);
+        appended = new PackedPositions(getCapacity() - SEGMENT_HEADER_LENGTH);
+        return pos.writeTo(appended);
+    }
+
+    private int getCapacity() {
+        return units * UNIT - HEADER_LENGTH;
+    }
+
+    @Override
+    public int countPositions() {
+        long n = prevCount + count + ((appended == null) ? 0 : appended.getCount());
+        return (int) Math.min(Integer.MAX_VALUE, n);
+    }
+
+    @Override
+    public int countPositions(int minSize, int maxSize) {
+        int posCount = 0;
+        for (PPosBlock b : getChain()) {
+            if (b instanceof PPosBlockExtent) {
+                posCount += ((PPosBlockExtent) b).countOwnPositions(minSize, maxSize);
+            } else {
+                posCount += b.countPositions(minSize, maxSize);
+            }
+        }
+        return posCount;
+    }
+
+    @Override
+    public void forEachPosition(int minSize, int maxSize, Consumer<PPos> action) {
+        PackedPositions.Cursor c = new PackedPositions.Cursor();
+        for (PPosBlock b : getChain()) {
+            if (b instanceof PPosBlockExtent) {
+                ((PPosBlockExtent) b).forEachOwnPosition(c, minSize, maxSize, action);
+            } else {
+                b.forEachPosition(minSize, maxSize, action);
+            }
+        }
+    }
+
+    /**
+     * Returns the blocks of the chain from the first one (the full block of
+     * another type) to this extent. The chain is walked iteratively, so its
+     * length is not limited by the stack.
+     */
+    private Deque<PPosBlock> getChain() {
+        try {
+            Deque<PPosBlock> chain = new ArrayDeque<>();
+            PPosBlock b = this;
+            while (b != null) {
+                chain.push(b);
+                b = (b instanceof PPosBlockExtent) ? ((PPosBlockExtent) b).getPrev() : null;
+            }
+            return chain;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private PPosBlock getPrev() throws IOException {
+        if (prev == null && prevId >= 0) {
+            prev = PPosBlock.read(prevId, storage);
+        }
+        return prev;
+    }
+
+    /**
+     * Returns the segments of this extent (without the previous blocks) that
+     * are in the file.
+     */
+    private byte[] readSegments() {
+        byte[] bytes = new byte[size];
+        if (size > 0) {
+            long offset = id * storage.getPosBlockUnit() + HEADER_LENGTH;
+            try {
+                storage.getPosFile().read(offset, bytes, 0, size);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return bytes;
+    }
+
+    private int countOwnPositions(int minSize, int maxSize) {
+        PackedPositions.Cursor c = new PackedPositions.Cursor();
+        byte[] bytes = readSegments();
+        int posCount = 0;
+        int p = 0;
+        while (p < size) {
+            int length = readInt(bytes, p + 4);
+            c.reset(bytes, p + SEGMENT_HEADER_LENGTH, p + SEGMENT_HEADER_LENGTH + length);
+            posCount += c.count(minSize, maxSize);
+            p += SEGMENT_HEADER_LENGTH + length;
+        }
+        if (appended != null) {
+            c.reset(appended.getBytes(), appended.getSize());
+            posCount += c.count(minSize, maxSize);
+        }
+        return posCount;
+    }
+
+    private void forEachOwnPosition(PackedPositions.Cursor c, int minSize, int maxSize,
+            Consumer<PPos> action) {
+        byte[] bytes = readSegments();
+        int p = 0;
+        while (p < size) {
+            int length = readInt(bytes, p + 4);
+            c.reset(bytes, p + SEGMENT_HEADER_LENGTH, p + SEGMENT_HEADER_LENGTH + length);
+            forEach(c, minSize, maxSize, action);
+            p += SEGMENT_HEADER_LENGTH + length;
+        }
+        if (appended != null) {
+            c.reset(appended.getBytes(), appended.getSize());
+            forEach(c, minSize, maxSize, action);
+        }
+    }
+
+    private static void forEach(PackedPositions.Cursor c, int minSize, int maxSize,
+            Consumer<PPos> action) {
+        while (c.next()) {
+            int lines = c.getLines();
+            if (minSize <= lines && lines <= maxSize) {
+                action.accept(PPos.readFrom(c));
+            }
+        }
+    }
+
+    private static int readInt(byte[] b, int p) {
+        return ((b[p] & 0xFF) << 24) | ((b[p + 1] & 0xFF) << 16)
+                | ((b[p + 2] & 0xFF) << 8) | (b[p + 3] & 0xFF);
+    }
+
+    @Override
+    public void readFrom(Storage storage) throws IOException {
+        MappedFile posFile = storage.getPosFile();
+        readHeaderFrom(storage);
+        prevId = posFile.readLong();
+        prevCount = posFile.readLong();
+        count = posFile.readInt();
+        size = posFile.readInt();
+        units = posFile.readInt();
+        this.storage = storage;
+    }
+
+    @Override
+    public void writeTo(Storage storage) throws IOException {
+        for (PPosBlock pb : unsaved) {
+            pb.writeTo(storage);
+        }
+        unsaved.clear();
+        MappedFile posFile = storage.getPosFile();
+        int segmentOffset = size;
+        if (appended != null && appended.getCount() > 0) {
+            count += appended.getCount();
+            size += SEGMENT_HEADER_LENGTH + appended.getSize();
+        }
+        super.writeHeaderTo(storage);
+        posFile.writeLong(prevId);
+        posFile.writeLong(prevCount);
+        posFile.writeInt(count);
+        posFile.writeInt(size);
+        posFile.writeInt(units);
+        if (appended != null && appended.getCount() > 0) {
+            posFile.seek(id * storage.getPosBlockUnit() + HEADER_LENGTH + segmentOffset);
+            posFile.writeInt(appended.getCount());
+            posFile.writeInt(appended.getSize());
+            posFile.write(appended.getBytes(), 0, appended.getSize());
+        }
+        appended = null;
+        this.storage = storage;
+    }
+
+    @Override
+    public PPosBlock toUpperLevelPosBlock(PPosBlock pblock) {
+        return new PPosBlockExtent(pblock);
+    }
+
+    @Override
+    public void print() {
+        System.out.printf("    posBlockId: %d (extent)%n", id);
+        forEachPosition(Integer.MIN_VALUE, Integer.MAX_VALUE, PPos::print);
+    }
+}
@@ -2,6 +2,7 @@ package edu.tarleton.jindex.index.plain.persistent;
 
 import edu.tarleton.jindex.index.MappedFile;
 import java.io.IOException;
+import java.util.function.Consumer;
 
 /**
  * The indirect block of positions in the plain (not compressed) persistent
@@ -16,7 +17,7 @@ public class PPosBlockIndirect extends PPosBlock {
     private final PPosBlock[] posBlock = new PPosBlock[BLOCK_SIZE];
 
     public PPosBlockIndirect() {
-        super(PBlockType.INDIRECT);
+        super(PBlockType.INDIRECT, INDIRECT_UNITS);
     }
 
     public PPosBlockIndirect(long id) {
@@ -24,7 +25,7 @@ public class PPosBlockIndirect extends PPosBlock {
     }
 
     public PPosBlockIndirect(PPosBlock pb) {
-        super(PBlockType.INDIRECT);
+        super(PBlockType.INDIRECT, INDIRECT_UNITS);
         posBlock[0] = pb;
         posBlockCount++;
     }
@@ -32,7 +33,7 @@ public class PPosBlockIndirect extends PPosBlock {
     @Override
     public boolean addPos(PPos pos) {
         if (posBlockCount == 0) {
-            posBlock[0] = new PPosBlockDirect();
+            posBlock[0] = new PPosBlockPacked();
             posBlock[0].addPos(pos);
             posBlockCount++;
             return true;
@@ -43,7 +44,7 @@ public class PPosBlockIndirect extends PPosBlock {
         if (posBlock[posBlockCount - 1].addPos(pos)) {
             return true;
         }
-        posBlock[posBlockCount] = new PPosBlockDirect();
+        posBlock[posBlockCount] = new PPosBlockPacked();
         posBlock[posBlockCount].addPos(pos);
         posBlockCount++;
         return true;
@@ -59,50 +60,39 @@ public class PPosBlockIndirect extends PPosBlock {
     }
 
     @Override
-    public PPos[] getPositions() {
-        PPos[] pp = new PPos[0];
+    public int countPositions(int minSize, int maxSize) {
+        int posCount = 0;
         for (int i = 0; i < posBlockCount; i++) {
-            PPos[] pp2 = posBlock[i].getPositions();
-            pp = merge(pp, pp2);
+            posCount += posBlock[i].countPositions(minSize, maxSize);
         }
-        return pp;
+        return posCount;
     }
 
     @Override
-    public PPos[] getPositions(int minSize, int maxSize) {
-        PPos[] pp = new PPos[0];
+    public void forEachPosition(int minSize, int maxSize, Consumer<PPos> action) {
         for (int i = 0; i < posBlockCount; i++) {
-            PPos[] pp2 = posBlock[i].getPositions(minSize, maxSize);
-            pp = merge(pp, pp2);
+            posBlock[i].forEachPosition(minSize, maxSize, action);
         }
-        return pp;
-    }
-
-    private PPos[] merge(PPos[] pp1, PPos[] pp2) {
-        PPos[] pp = new PPos[pp1.length + pp2.length];
-        System.arraycopy(pp1, 0, pp, 0, pp1.length);
-        System.arraycopy(pp2, 0, pp, pp1.length, pp2.length);
-        return pp;
     }
 
     @Override
     public void readFrom(Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        readHeaderFrom(posFile);
+        readHeaderFrom(storage);
         posBlockCount = posFile.readShort();
+        long[] pbIds = new long[posBlockCount];
         for (int i = 0; i < posBlockCount; i++) {
-            long pbId = posFile.readLong();
-            posBlock[i] = new PPosBlockDirect(pbId);
+            pbIds[i] = posFile.readLong();
         }
         for (int i = 0; i < posBlockCount; i++) {
-            posBlock[i].readFrom(storage);
+            posBlock[i] = PPosBlock.read(pbIds[i], storage);
         }
     }
 
     @Override
     public void writeTo(Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        super.writeHeaderTo(posFile);
+        super.writeHeaderTo(storage);
         posFile.writeShort((short) posBlockCount);
         for (int i = 0; i < posBlockCount; i++) {
             long pbId = posBlock[i].getId();
@@ -115,7 +105,7 @@ public class PPosBlockIndirect extends PPosBlock {
 
     @Override
     public PPosBlock toUpperLevelPosBlock(PPosBlock pblock) {
-        return new PPosBlockIndirect2(pblock);
+        return new PPosBlockExtent(pblock);
     }
 
     @Override
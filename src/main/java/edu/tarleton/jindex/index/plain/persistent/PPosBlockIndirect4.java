@@ -2,6 +2,7 @@ package edu.tarleton.jindex.index.plain.persistent;
 
 import edu.tarleton.jindex.index.MappedFile;
 import java.io.IOException;
+import java.util.function.Consumer;
 
 /**
  * The fourth-level indirect block of positions in the plain (not compressed)
@@ -16,7 +17,7 @@ public class PPosBlockIndirect4 extends PPosBlock {
     private final PPosBlock[] posBlock = new PPosBlock[BLOCK_SIZE];
 
     public PPosBlockIndirect4() {
-        super(PBlockType.INDIRECT4);
+        super(PBlockType.INDIRECT4, INDIRECT_UNITS);
     }
 
     public PPosBlockIndirect4(long id) {
@@ -24,7 +25,7 @@ public class PPosBlockIndirect4 extends PPosBlock {
     }
 
     public PPosBlockIndirect4(PPosBlock pb) {
-        super(PBlockType.INDIRECT4);
+        super(PBlockType.INDIRECT4, INDIRECT_UNITS);
         posBlock[0] = pb;
         posBlockCount++;
     }
@@ -59,36 +60,25 @@ public class PPosBlockIndirect4 extends PPosBlock {
     }
 
     @Override
-    public PPos[] getPositions() {
-        PPos[] pp = new PPos[0];
+    public int countPositions(int minSize, int maxSize) {
+        int posCount = 0;
         for (int i = 0; i < posBlockCount; i++) {
-            PPos[] pp2 = posBlock[i].getPositions();
-            pp = merge(pp, pp2);
+            posCount += posBlock[i].countPositions(minSize, maxSize);
         }
-        return pp;
+        return posCount;
     }
 
     @Override
-    public PPos[] getPositions(int minSize, int maxSize) {
-        PPos[] pp = new PPos[0];
+    public void forEachPosition(int minSize, int maxSize, Consumer<PPos> action) {
         for (int i = 0; i < posBlockCount; i++) {
-            PPos[] pp2 = posBlock[i].getPositions(minSize, maxSize);
-            pp = merge(pp, pp2);
+            posBlock[i].forEachPosition(minSize, maxSize, action);
         }
-        return pp;
-    }
-
-    private PPos[] merge(PPos[] pp1, PPos[] pp2) {
-        PPos[] pp = new PPos[pp1.length + pp2.length];
-        System.arraycopy(pp1, 0, pp, 0, pp1.length);
-        System.arraycopy(pp2, 0, pp, pp1.length, pp2.length);
-        return pp;
     }
 
     @Override
     public void readFrom(Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        readHeaderFrom(posFile);
+        readHeaderFrom(storage);
         posBlockCount = posFile.readShort();
         for (int i = 0; i < posBlockCount; i++) {
             long pbId = posFile.readLong();
@@ -102,7 +92,7 @@ public class PPosBlockIndirect4 extends PPosBlock {
     @Override
     public void writeTo(Storage storage) throws IOException {
         MappedFile posFile = storage.getPosFile();
-        super.writeHeaderTo(posFile);
+        super.writeHeaderTo(storage);
         posFile.writeShort((short) posBlockCount);
         for (int i = 0; i < posBlockCount; i++) {
             long pbId = posBlock[i].getId();
@@ -115,7 +105,7 @@ public class PPosBlockIndirect4 extends PPosBlock {
 
     @Override
     public PPosBlock toUpperLevelPosBlock(PPosBlock pblock) {
-        throw new RuntimeException("too many positions");
+        return new PPosBlockExtent(pblock);
     }
 
     @Override
@@ -0,0 +1,99 @@
+package edu.tarleton.jindex.index.plain.persistent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The parallel traversal of the plain (not compressed) persistent TRIE. The
+ * nodes in the first SPLIT_DEPTH levels are split into fork/join tasks, one
+ * per subtree, and the subtrees below are traversed depth-first. Each worker
+ * thread reads the trie through its own storage cursor.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+class PTraversal {
+
+    static final int SPLIT_DEPTH = 2;
+    private final PEdgeVisitor visitor;
+    private final ThreadLocal<Storage> cursors;
+
+    PTraversal(Storage storage, PEdgeVisitor visitor) {
+        this.visitor = visitor;
+        cursors = ThreadLocal.withInitial(() -> {
+            try {
+                return storage.cursor();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    void run(int threads) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new SubtreeTask(0L, 0));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void traverse(long nodeId, Storage storage) throws IOException {
+        Deque<Long> stack = new ArrayDeque<>();
+        stack.push(nodeId);
+        while (!stack.isEmpty()) {
+            PNode p = new PNode(stack.pop());
+            p.readFrom(storage);
+            for (PEdgeBlock eb = p.getEdgeBlock(); eb != null; eb = eb.getNext()) {
+                PEdge[] ee = eb.getEdges();
+                for (int i = 0; i < eb.getEdgeCount(); i++) {
+                    visitor.visit(ee[i], storage);
+                    stack.push(ee[i].getDestId());
+                }
+            }
+        }
+    }
+
+    private class SubtreeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final long nodeId;
+        private final int depth;
+
+        SubtreeTask(long nodeId, int depth) {
+            this.nodeId = nodeId;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            Storage storage = cursors.get();
+            try {
+                if (depth >= SPLIT_DEPTH) {
+                    traverse(nodeId, storage);
+                    return;
+                }
+                PNode p = new PNode(nodeId);
+                p.readFrom(storage);
+                List<SubtreeTask> tasks = new ArrayList<>();
+                for (PEdgeBlock eb = p.getEdgeBlock(); eb != null; eb = eb.getNext()) {
+                    PEdge[] ee = eb.getEdges();
+                    for (int i = 0; i < eb.getEdgeCount(); i++) {
+                        visitor.visit(ee[i], storage);
+                        tasks.add(new SubtreeTask(ee[i].getDestId(), depth + 1));
+                    }
+                }
+                invokeAll(tasks);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package edu.tarleton.jindex.index.plain.persistent;
 
 import edu.tarleton.jindex.Pos;
+import edu.tarleton.jindex.index.CappedEdges;
+import edu.tarleton.jindex.index.FileStates;
+import edu.tarleton.jindex.index.IngestionPolicy;
 import edu.tarleton.jindex.index.PIndex;
+import edu.tarleton.jindex.index.SequenceClones.Fragment;
+import edu.tarleton.jindex.index.SequenceClones;
 import edu.tarleton.jindex.index.plain.Trie;
 import edu.tarleton.jindex.index.plain.TrieEdge;
 import edu.tarleton.jindex.index.plain.TrieNode;
@@ -9,9 +14,12 @@ import java.io.IOException;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * The class that represents the plain (not compressed) persistent TRIE.
@@ -26,6 +34,10 @@ public class PTrie implements AutoCloseable, PIndex {
     private final PFilePaths filePaths;
     private final PLabels labels;
     private final PNextStmtMap nextStmtMap;
+    private final PNodeCache nodeCache;
+    private final FileStates fileStates;
+    private final CappedEdges cappedEdges;
+    private IngestionPolicy policy = new IngestionPolicy();
 
     public enum Mode {
         READ_WRITE, READ_ONLY
@@ -37,7 +49,17 @@ public class PTrie implements AutoCloseable, PIndex {
         projects = PProjects.load(storage);
         filePaths = PFilePaths.load(storage);
         labels = PLabels.load(storage);
-        nextStmtMap = PNextStmtMap.load(storage);
+        nodeCache = new PNodeCache(storage, PNodeCache.DEFAULT_CAPACITY);
+        fileStates = FileStates.load(storage.getFileStateFile());
+        cappedEdges = CappedEdges.load(storage.getCappedEdgeFile());
+        filePaths.removeFileIds(fileStates.getTombstones());
+        nextStmtMap = PNextStmtMap.load(storage, projects, filePaths);
+        if (mode == Mode.READ_WRITE && fileStates.isLoaded()) {
+            long[] nextIds = fileStates.getNextIds();
+            PNode.reset(nextIds[0]);
+            PEdgeBlock.reset(nextIds[1]);
+            PPosBlock.reset(nextIds[2]);
+        }
     }
 
     public static PTrie initialize(String nodeFileName, int nodeFilePageSize,
@@ -53,6 +75,8 @@ public class PTrie implements AutoCloseable, PIndex {
         PNode.reset();
         PEdgeBlock.reset();
         PPosBlock.reset();
+        FileStates.initialize(st.getFileStateFile());
+        CappedEdges.initialize(st.getCappedEdgeFile());
         PNode root = new PNode();
         root.writeTo(st);
         PProjects.initialize(st);
@@ -80,51 +104,185 @@ public class PTrie implements AutoCloseable, PIndex {
     @Override
     public void close() throws Exception {
         if (mode == Mode.READ_WRITE) {
+            nodeCache.flush();
             labels.store(storage);
-            if (nextStmtMap != null) {
-                nextStmtMap.store(storage);
+            projects.store(storage);
+            filePaths.store(storage);
+            if (fileStates.isLoaded() || !fileStates.isEmpty()) {
+                fileStates.setNextIds(PNode.getCount(), PEdgeBlock.getNextId(), PPosBlock.getNextId());
+                fileStates.store(storage.getFileStateFile());
             }
+            cappedEdges.store(storage.getCappedEdgeFile());
+        }
+        labels.close();
+        projects.close();
+        filePaths.close();
+        if (nextStmtMap != null) {
+            nextStmtMap.close();
         }
         storage.close();
     }
 
+    public PNodeCache getNodeCache() {
+        return nodeCache;
+    }
+
+    public FileStates getFileStates() {
+        return fileStates;
+    }
+
+    public CappedEdges getCappedEdges() {
+        return cappedEdges;
+    }
+
+    /**
+     * Sets the fanout above which the edges of a node are moved to a sorted
+     * edge block.
+     */
+    public void setSortedEdgeThreshold(int threshold) {
+        storage.setSortedEdgeThreshold(threshold);
+    }
+
+    /**
+     * Sets the policy that decides which positions are stored by addTrie.
+     */
+    public void setIngestionPolicy(IngestionPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Returns true if the index can be updated incrementally.
+     */
+    public boolean isUpdatable() {
+        return fileStates.isLoaded() && storage.getFormatVersion() == Storage.FORMAT_VERSION;
+    }
+
+    /**
+     * Removes the file from the index. The positions in the file become
+     * tombstones and the file gets a new id if it is added again.
+     */
+    public void removeFile(String path) {
+        Long fileId = filePaths.remove(path);
+        if (fileId != null) {
+            fileStates.addTombstone(fileId);
+        }
+    }
+
+    /**
+     * Adds the batch to the TRIE. The positions are stored according to the
+     * ingestion policy.
+     */
     public void addTrie(Trie trie) throws IOException {
         TrieNode root = trie.getRoot();
         root.setPersistentId(0L);
         Deque<TrieNode> queue = new ArrayDeque<>();
         queue.add(root);
+        Deque<Integer> depths = new ArrayDeque<>();
+        depths.add(0);
         while (!queue.isEmpty()) {
             TrieNode n = queue.remove();
-            PNode p = new PNode(n.getPersistentId());
-            p.readFrom(storage);
+            int depth = depths.remove();
+            PNode p = nodeCache.get(n.getPersistentId());
             PEdgeBlock eb = p.getEdgeBlock();
             for (TrieEdge e : n.getEdges()) {
-                short labelId = (short) labels.toLabelId(e.getLabel());
+                if (depth == 0 && policy.isSkipped(e.getLabel())) {
+                    continue;
+                }
+                int labelId = labels.toLabelId(e.getLabel());
                 PEdge pe = eb.findEdge(labelId);
                 if (pe == null) {
                     PNode dest = new PNode();
-                    dest.writeTo(storage);
+                    nodeCache.put(dest);
                     pe = new PEdge(labelId, dest.getId());
-                    eb.addEdge(pe);
+                    eb.addEdge(storage, pe);
                 }
-                for (Pos pos : e.getPositions()) {
-                    int projId = projects.toProjectId(storage, pos.getProject());
-                    long fileId = filePaths.toFileId(storage, pos.getFile());
-                    PPos pp = new PPos(projId, fileId, pos.getStart(), pos.getEnd(),
-                            pos.getMethodStart(), pos.getMethodEnd());
-                    pe.addPos(pp);
+                if (policy.isStored(depth + 1)) {
+                    storePositions(pe, e.getPositions());
                 }
                 TrieNode nn = e.getDestination();
                 nn.setPersistentId(pe.getDestId());
                 queue.add(nn);
+                depths.add(depth + 1);
             }
-            p.writeTo(storage);
+            nodeCache.put(p);
         }
+        nodeCache.flush();
         if (nextStmtMap != null) {
             nextStmtMap.addNextStmtMap(storage, trie.getNextStmtMap());
         }
     }
 
+    /**
+     * Adds the positions to the edge. If the edge reaches the limit of the
+     * ingestion policy, the remaining positions are only counted.
+     */
+    private void storePositions(PEdge pe, Pos[] positions) throws IOException {
+        int n = positions.length;
+        if (policy.isCapped()) {
+            int stored = policy.getMaxEdgePositions();
+            if (!cappedEdges.isCapped(pe.getDestId())) {
+                PPosBlock pb = pe.getPosBlock(storage);
+                stored = (pb == null) ? 0 : pb.countPositions();
+            }
+            int room = Math.max(0, policy.getMaxEdgePositions() - stored);
+            if (room < n) {
+                cappedEdges.addDropped(pe.getDestId(), n - room);
+                n = room;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            Pos pos = positions[i];
+            int projId = projects.toProjectId(storage, pos.getProject());
+            long fileId = filePaths.toFileId(storage, pos.getFile());
+            PPos pp = new PPos(projId, fileId, pos.getStart(), pos.getEnd(),
+                    pos.getMethodStart(), pos.getMethodEnd());
+            pe.addPos(storage, pp);
+        }
+    }
+
+    /**
+     * Moves the edges of the nodes whose fanout exceeds the threshold to
+     * sorted edge blocks. This converts an index built with chained edge
+     * blocks only. Returns the number of converted nodes.
+     */
+    public int rebuildEdges() throws IOException {
+        nodeCache.clear();
+        long endId = 0L;
+        Deque<Long> queue = new ArrayDeque<>();
+        queue.add(0L);
+        while (!queue.isEmpty()) {
+            PNode p = new PNode(queue.remove());
+            p.readFrom(storage);
+            PEdgeBlock eb = p.getEdgeBlock();
+            endId = Math.max(endId, eb.getEndId(storage));
+            addDestinations(eb, queue);
+        }
+        PEdgeBlock.reset(endId);
+        int converted = 0;
+        queue.add(0L);
+        while (!queue.isEmpty()) {
+            PNode p = new PNode(queue.remove());
+            p.readFrom(storage);
+            PEdgeBlock eb = p.getEdgeBlock();
+            if (eb.relayout(storage)) {
+                p.writeTo(storage);
+                converted++;
+            }
+            addDestinations(eb, queue);
+        }
+        return converted;
+    }
+
+    private void addDestinations(PEdgeBlock eb, Deque<Long> queue) {
+        while (eb != null) {
+            PEdge[] ee = eb.getEdges();
+            for (int i = 0; i < eb.getEdgeCount(); i++) {
+                queue.add(ee[i].getDestId());
+            }
+            eb = eb.getNext();
+        }
+    }
+
     @Override
     public void print() throws IOException {
         PNode n = new PNode(0L);
@@ -133,7 +291,7 @@ public class PTrie implements AutoCloseable, PIndex {
         queue.add(n);
         while (!queue.isEmpty()) {
             PNode p = queue.remove();
-            p.print(labels);
+            p.print(storage, labels);
             PEdgeBlock eb = p.getEdgeBlock();
             while (eb != null) {
                 PEdge[] ee = eb.getEdges();
@@ -155,36 +313,265 @@ public class PTrie implements AutoCloseable, PIndex {
         }
     }
 
+    /**
+     * Returns the statement that follows the statement or null if there is no
+     * such statement or the next-statement map is not available.
+     */
+    public Pos getNextStmt(Pos stmt) {
+        return (nextStmtMap == null) ? null : nextStmtMap.getNext(stmt);
+    }
+
+    /**
+     * Finds the positions of the tokens. In the read-only mode, this can be
+     * called by several threads at once.
+     */
     @Override
     public List<Pos> find(List<String> tokens) throws Exception {
         List<Pos> found = new ArrayList<>();
-        PNode p = new PNode(0L);
-        p.readFrom(storage);
+        PEdge edge = findEdge(tokens);
+        if (edge == null) {
+            return found;
+        }
+        PPosBlock pb = edge.readPosBlock(storage.cursor());
+        if (pb == null) {
+            return found;
+        }
+        addPositions(pb, found);
+        return found;
+    }
+
+    /**
+     * Returns the number of positions of the tokens, including the positions
+     * that were not stored because the edge reached the limit of the
+     * ingestion policy.
+     */
+    public long countPositions(List<String> tokens) throws Exception {
+        PEdge edge = findEdge(tokens);
+        if (edge == null) {
+            return 0L;
+        }
+        PPosBlock pb = edge.readPosBlock(storage.cursor());
+        long stored = (pb == null) ? 0L : pb.countPositions();
+        return stored + cappedEdges.getDropped(edge.getDestId());
+    }
+
+    /**
+     * Returns the edge that ends the path of the tokens or null if there is
+     * no such edge.
+     */
+    private PEdge findEdge(List<String> tokens) throws IOException {
+        long nodeId = 0L;
         PEdge edge = null;
         for (String token : tokens) {
-            short labId = (short) labels.toExistingLabelId(token);
-            edge = p.getEdgeBlock().findEdge(labId);
+            int labId = labels.toExistingLabelId(token);
+            edge = findEdge(nodeId, labId);
             if (edge == null) {
-                return found;
+                return null;
             }
-            long destId = edge.getDestId();
-            p = new PNode(destId);
-            p.readFrom(storage);
+            nodeId = edge.getDestId();
         }
-        if (edge == null) {
-            return found;
+        return edge;
+    }
+
+    /**
+     * Finds the positions of several token sequences. The sequences are
+     * looked up in the lexicographic order of their label ids, so the walk
+     * along the common prefix of consecutive sequences is shared and the
+     * positions of equal sequences are decoded once. In the read-only mode,
+     * this can be called by several threads at once.
+     */
+    @Override
+    public List<List<Pos>> findAll(List<List<String>> tokenLists) throws Exception {
+        int n = tokenLists.size();
+        int[][] seqs = new int[n][];
+        int maxLength = 0;
+        for (int i = 0; i < n; i++) {
+            List<String> tokens = tokenLists.get(i);
+            seqs[i] = new int[tokens.size()];
+            for (int j = 0; j < tokens.size(); j++) {
+                seqs[i][j] = labels.toExistingLabelId(tokens.get(j));
+            }
+            maxLength = Math.max(maxLength, tokens.size());
+        }
+        List<List<Pos>> results = new ArrayList<>(Collections.nCopies(n, null));
+        Storage st = storage.cursor();
+        PEdge[] path = new PEdge[maxLength];
+        int reached = 0;
+        int[] prev = null;
+        List<Pos> prevFound = null;
+        for (int i : sortedOrder(seqs)) {
+            int[] seq = seqs[i];
+            if (prev != null && Arrays.equals(prev, seq)) {
+                results.set(i, new ArrayList<>(prevFound));
+                continue;
+            }
+            int k = Math.min(commonPrefix(prev, seq), reached);
+            while (k < seq.length) {
+                long nodeId = (k == 0) ? 0L : path[k - 1].getDestId();
+                PEdge edge = findEdge(nodeId, seq[k]);
+                if (edge == null) {
+                    break;
+                }
+                path[k] = edge;
+                k++;
+            }
+            reached = k;
+            List<Pos> found = new ArrayList<>();
+            if (k > 0 && k == seq.length) {
+                PPosBlock pb = path[k - 1].readPosBlock(st);
+                if (pb != null) {
+                    addPositions(pb, found);
+                }
+            }
+            results.set(i, found);
+            prev = seq;
+            prevFound = found;
+        }
+        return results;
+    }
+
+    private static Integer[] sortedOrder(int[][] seqs) {
+        Integer[] order = new Integer[seqs.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
         }
-        PPosBlock pb = edge.getPosBlock();
-        Map<Integer, String> pmap = projects.getInverseMap();
-        Map<Long, String> fmap = filePaths.getInverseMap();
-        for (PPos pp : pb.getPositions()) {
-            String project = pmap.get(pp.getProjectId());
-            String file = fmap.get(pp.getFileId());
+        Arrays.sort(order, (a, b) -> compareSequences(seqs[a], seqs[b]));
+        return order;
+    }
+
+    private static int compareSequences(int[] seq1, int[] seq2) {
+        int n = Math.min(seq1.length, seq2.length);
+        for (int i = 0; i < n; i++) {
+            if (seq1[i] != seq2[i]) {
+                return Integer.compare(seq1[i], seq2[i]);
+            }
+        }
+        return Integer.compare(seq1.length, seq2.length);
+    }
+
+    private static int commonPrefix(int[] seq1, int[] seq2) {
+        if (seq1 == null) {
+            return 0;
+        }
+        int n = Math.min(seq1.length, seq2.length);
+        int i = 0;
+        while (i < n && seq1[i] == seq2[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private void addPositions(PPosBlock pb, List<Pos> found) {
+        addPositions(pb, Integer.MIN_VALUE, Integer.MAX_VALUE, found);
+    }
+
+    /**
+     * Adds the positions whose size (in lines) is between minSize and maxSize
+     * to the list. The positions are streamed from the block, so the block is
+     * not copied into an array.
+     */
+    private void addPositions(PPosBlock pb, int minSize, int maxSize, List<Pos> found) {
+        pb.forEachPosition(minSize, maxSize, p -> {
+            if (fileStates.isTombstone(p.getFileId())) {
+                return;
+            }
+            String project = projects.getProject(p.getProjectId());
+            String file = filePaths.getPath(p.getFileId());
             Pos pos = new Pos(project, file,
-                    pp.getBegin(), pp.getEnd(),
-                    pp.getMethodBegin(), pp.getMethodEnd());
+                    p.getBegin(), p.getEnd(),
+                    p.getMethodBegin(), p.getMethodEnd());
             found.add(pos);
+        });
+    }
+
+    /**
+     * Visits all edges of the trie using the given number of threads. With
+     * more than one thread, the visitor is called concurrently.
+     */
+    public void traverse(int threads, PEdgeVisitor visitor) throws IOException {
+        new PTraversal(storage, visitor).run(threads);
+    }
+
+    /**
+     * Finds the clone classes, i.e. the edges with two or more positions
+     * whose size (in lines) is between minSize and maxSize. The subtrees are
+     * traversed depth-first and every clone class is passed to the consumer
+     * as soon as it is found, so only the pending edges on the current paths
+     * are kept in memory. The consumer is called by one thread at a time.
+     * Returns the number of clone classes.
+     */
+    public long detectClones(int minSize, int maxSize, int threads,
+            Consumer<List<Pos>> consumer) throws IOException {
+        LongAdder classes = new LongAdder();
+        traverse(threads, (e, st) -> {
+            PPosBlock pb = e.readPosBlock(st);
+            if (pb == null || pb.countPositions() < 2) {
+                return;
+            }
+            List<Pos> clones = new ArrayList<>();
+            addPositions(pb, minSize, maxSize, clones);
+            if (clones.size() >= 2) {
+                synchronized (consumer) {
+                    consumer.accept(clones);
+                }
+                classes.increment();
+            }
+        });
+        return classes.sum();
+    }
+
+    /**
+     * Finds the clone classes of sequences of two or more consecutive
+     * statements. The clone classes of all positions are collected in one
+     * traversal and then extended along the next-statement map. Only the
+     * fragments whose size (in lines) is between minSize and maxSize are
+     * passed to the consumer. Returns the number of clone classes.
+     */
+    public long detectSequenceClones(int minSize, int maxSize, int threads,
+            Consumer<List<Pos>> consumer) throws IOException {
+        if (nextStmtMap == null) {
+            return 0L;
         }
-        return found;
+        SequenceClones clones = new SequenceClones(nextStmtMap::getNextKey);
+        traverse(threads, (e, st) -> {
+            PPosBlock pb = e.readPosBlock(st);
+            if (pb == null || pb.countPositions() < 2) {
+                return;
+            }
+            List<PPos> pp = new ArrayList<>();
+            pb.forEachPosition(Integer.MIN_VALUE, Integer.MAX_VALUE, p -> {
+                if (!fileStates.isTombstone(p.getFileId())) {
+                    pp.add(p);
+                }
+            });
+            if (pp.size() >= 2) {
+                int classId = clones.addClass();
+                for (PPos p : pp) {
+                    clones.add(classId, p.getProjectId(), p.getFileId(),
+                            p.getBegin(), p.getEnd(), p.getMethodBegin(), p.getMethodEnd());
+                }
+            }
+        });
+        return clones.detect(minSize, maxSize, fragments -> {
+            List<Pos> found = new ArrayList<>();
+            for (Fragment f : fragments) {
+                found.add(new Pos(projects.getProject(f.getProjectId()),
+                        filePaths.getPath(f.getFileId()), f.getBegin(), f.getEnd(),
+                        f.getMethodBegin(), f.getMethodEnd()));
+            }
+            consumer.accept(found);
+        });
+    }
+
+    /**
+     * Finds the edge of the node. In the read-only mode, the node cache is not
+     * used, so that the threads that search at once do not wait for its lock.
+     */
+    private PEdge findEdge(long nodeId, int labelId) throws IOException {
+        if (mode == Mode.READ_WRITE && nodeCache.getCapacity() > 0) {
+            PNode p = nodeCache.get(nodeId);
+            return p.getEdgeBlock().findEdge(labelId);
+        }
+        return PNode.findEdge(storage, nodeId, labelId);
     }
 }
@@ -0,0 +1,196 @@
+package edu.tarleton.jindex.rename;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The renaming strategy shared by all open statements. It gives the same
+ * names as a separate {@link RenameStrategy} for each open statement, but the
+ * scopes are kept only once. Each scope maps names to the sequence numbers of
+ * their declarations and each statement keeps the sequence number and the
+ * depth of the scope at which it was opened. The name in a statement is then
+ * computed from the sequence number relative to the statement.
+ *
+ * @author Zdenek Tronicek, tronicek@tarleton.edu
+ */
+public class SharedRenameStrategy {
+
+    private final List<Map<String, Decls>> scopes = new ArrayList<>();
+    private int depth;
+    private final List<Frame> frames = new ArrayList<>();
+    private int size;
+    private int seq;
+
+    public SharedRenameStrategy() {
+        scopes.add(new HashMap<>());
+    }
+
+    /**
+     * Opens a statement.
+     */
+    public void push() {
+        if (size == frames.size()) {
+            frames.add(new Frame());
+        }
+        frames.get(size).reset(seq, depth);
+        size++;
+    }
+
+    /**
+     * Closes the innermost statement.
+     */
+    public void pop() {
+        size--;
+        if (size == 0 && seq > 0) {
+            for (int d = 0; d <= depth; d++) {
+                scopes.get(d).clear();
+            }
+            seq = 0;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void enterBlock() {
+        depth++;
+        if (depth == scopes.size()) {
+            scopes.add(new HashMap<>());
+        }
+    }
+
+    public void exitBlock() {
+        scopes.get(depth).clear();
+        depth--;
+    }
+
+    public void declareVar(String name) {
+        if (size == 0) {
+            return;
+        }
+        Map<String, Decls> scope = scopes.get(depth);
+        Decls d = scope.get(name);
+        if (d == null) {
+            d = new Decls();
+            scope.put(name, d);
+        }
+        d.add(seq);
+        seq++;
+    }
+
+    /**
+     * Renames the name in all open statements. The number of the name in the
+     * i-th statement (the outermost statement first) is stored to counts[i].
+     * If the name is not declared in a statement, it is declared as global.
+     */
+    public void rename(String name, int[] counts) {
+        int i = 0;
+        for (int d = depth; d >= 0; d--) {
+            Decls decls = scopes.get(d).get(name);
+            if (decls == null) {
+                continue;
+            }
+            for (; i < size && frames.get(i).baseDepth < d; i++) {
+                counts[i] = frames.get(i).count(decls.first());
+            }
+            for (; i < size && frames.get(i).baseDepth == d; i++) {
+                counts[i] = frames.get(i).renameGlobal(name, decls, seq);
+            }
+            break;
+        }
+        for (; i < size; i++) {
+            counts[i] = frames.get(i).renameGlobal(name, null, seq);
+        }
+    }
+
+    /**
+     * The sequence numbers of the declarations of a name in a scope.
+     */
+    private static class Decls {
+
+        private int[] seqs = new int[1];
+        private int count;
+
+        void add(int s) {
+            if (count == seqs.length) {
+                int[] ns = new int[2 * seqs.length];
+                System.arraycopy(seqs, 0, ns, 0, count);
+                seqs = ns;
+            }
+            seqs[count++] = s;
+        }
+
+        int first() {
+            return seqs[0];
+        }
+
+        int firstFrom(int s) {
+            for (int i = 0; i < count; i++) {
+                if (seqs[i] >= s) {
+                    return seqs[i];
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The state of an open statement: the sequence number and the depth at
+     * which it was opened and its global names.
+     */
+    private static class Frame {
+
+        private int baseSeq;
+        private int baseDepth;
+        private final Map<String, Integer> globals = new HashMap<>();
+        private int[] globalSeqs = new int[8];
+        private int globalCount;
+
+        void reset(int baseSeq, int baseDepth) {
+            this.baseSeq = baseSeq;
+            this.baseDepth = baseDepth;
+            globals.clear();
+            globalCount = 0;
+        }
+
+        /**
+         * Returns the number of the variable declared with the sequence
+         * number s, i.e. the number of declarations that precede it.
+         */
+        int count(int s) {
+            int lo = 0;
+            int hi = globalCount;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (globalSeqs[mid] <= s) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return s - baseSeq + lo;
+        }
+
+        int renameGlobal(String name, Decls decls, int seq) {
+            int s = (decls == null) ? -1 : decls.firstFrom(baseSeq);
+            Integer g = globals.get(name);
+            if (s >= 0 && (g == null || s < globalSeqs[g])) {
+                return count(s);
+            }
+            if (g == null) {
+                g = globalCount;
+                if (globalCount == globalSeqs.length) {
+                    int[] ng = new int[2 * globalSeqs.length];
+                    System.arraycopy(globalSeqs, 0, ng, 0, globalCount);
+                    globalSeqs = ng;
+                }
+                globalSeqs[globalCount++] = seq;
+                globals.put(name, g);
+            }
+            return globalSeqs[g] - baseSeq + g;
+        }
+    }
+}
@@ -1,16 +1,66 @@
 package edu.tarleton.jindex;
 
+import com.github.javaparser.Position;
+import com.github.javaparser.ast.expr.AssignExpr;
+import edu.tarleton.jindex.index.LabelDictionary;
+import edu.tarleton.jindex.index.MappedFile;
+import edu.tarleton.jindex.index.PIndex;
+import edu.tarleton.jindex.index.PackedPositions;
+import edu.tarleton.jindex.index.StringTable;
+import edu.tarleton.jindex.index.compressed.persistent.CPNodeCache;
+import edu.tarleton.jindex.index.compressed.persistent.CPTrie;
+import edu.tarleton.jindex.index.plain.naive.LabelTable;
 import edu.tarleton.jindex.index.plain.persistent.PEdge;
 import edu.tarleton.jindex.index.plain.persistent.PNode;
+import edu.tarleton.jindex.index.plain.persistent.PNodeCache;
 import edu.tarleton.jindex.index.plain.persistent.PPos;
+import edu.tarleton.jindex.index.plain.persistent.PPosBlock;
+import edu.tarleton.jindex.index.plain.persistent.PPosBlockPacked;
+import edu.tarleton.jindex.index.plain.persistent.PTrie;
+import edu.tarleton.jindex.rename.RenameStrategy;
+import edu.tarleton.jindex.rename.SharedRenameStrategy;
+import edu.tarleton.jindex.search.Parser;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.AfterClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 
 /**
@@ -22,13 +72,13 @@ public class EngineTest {
 
     private final Random rand = new Random();
     private final Set<String> names = new HashSet<>();
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
 
     @AfterClass
     public static void tearDownAll() throws Exception {
-        // GC must collect the mapped buffers
-        Thread.sleep(500);
-        System.gc();
-        Thread.sleep(500);
+        // the mapped files are unmapped when they are closed
+        assertEquals(0L, MappedFile.getMappedBytes());
     }
 
     private List<Pos> perform(String dir, String code) throws Exception {
@@ -64,8 +114,32 @@ public class EngineTest {
     }
 
     private Engine initialize(Properties conf, String dir) throws Exception {
+        configure(conf, "src/test/input/" + dir);
+        Engine eng = Engine.instance(conf);
+        eng.perform();
+        return eng;
+    }
+
+    /**
+     * Indexes the files in the directory into newly generated index files.
+     */
+    private Engine index(Properties conf, Path dir) throws Exception {
+        configure(conf, dir.toString());
+        Engine eng = Engine.instance(conf);
+        eng.perform();
+        return eng;
+    }
+
+    /**
+     * Creates an empty source directory that is deleted after the test.
+     */
+    private Path newSourceDir() throws IOException {
+        return temp.newFolder().toPath();
+    }
+
+    private void configure(Properties conf, String sourceDir) {
         conf.setProperty("project", "Test");
-        conf.setProperty("sourceDir", "src/test/input/" + dir);
+        conf.setProperty("sourceDir", sourceDir);
         String nodeFileName = generateFileName("data", "nodes");
         String edgeFileName = generateFileName("data", "edges");
         String posFileName = generateFileName("data", "positions");
@@ -85,10 +159,9 @@ public class EngineTest {
         conf.setProperty("labelFile", labelFileName);
         conf.setProperty("linearizationFile", linearizationFileName);
         conf.setProperty("nextStmtMapFile", nextStmtMapFileName);
+        new File(pathFileName + ".state").deleteOnExit();
+        new File(pathFileName + ".capped").deleteOnExit();
         //conf.setProperty("printTrie", "true");
-        Engine eng = Engine.instance(conf);
-        eng.perform();
-        return eng;
     }
 
     private String generateFileName(String dir, String prefix) {
@@ -99,9 +172,15 @@ public class EngineTest {
         names.add(fn);
         File file = new File(fn);
         file.deleteOnExit();
+        StringTable.getIndexFile(file).deleteOnExit();
         return fn;
     }
 
+    private byte[] readFile(Properties conf, String key) throws Exception {
+        String fn = conf.getProperty(key);
+        return Files.readAllBytes(Paths.get(fn));
+    }
+
     private String randomString(int len) {
         String chars = "0123456789abcdefghijklmnopqrstuvwxyz";
         String str = "";
@@ -475,4 +554,1012 @@ public class EngineTest {
                 "while ((line = scanner.nextLine()) != null) { }");
         assertEquals(1, pp.size());
     }
+
+    @Test
+    public void testParallelIndexing() throws Exception {
+        String[] keys = {"nodeFile", "edgeFile", "posFile", "pathFile",
+            "labelFile", "linearizationFile", "nextStmtMapFile"};
+        for (String compressed : new String[]{"false", "true"}) {
+            Properties conf = new Properties();
+            conf.setProperty("compressed", compressed);
+            conf.setProperty("batchFileSize", "2");
+            Engine seq = initialize(conf, "");
+            Properties conf2 = new Properties();
+            conf2.setProperty("compressed", compressed);
+            conf2.setProperty("batchFileSize", "2");
+            conf2.setProperty("indexThreads", "4");
+            Engine par = initialize(conf2, "");
+            for (String key : keys) {
+                if (compressed.equals("false") && key.equals("linearizationFile")) {
+                    continue;
+                }
+                assertArrayEquals(key, readFile(conf, key), readFile(conf2, key));
+            }
+            List<Pos> pp = seq.find("break;");
+            List<Pos> pp2 = par.find("break;");
+            assertEquals(pp.toString(), pp2.toString());
+        }
+    }
+
+    @Test
+    public void testRebuildEdges() throws Exception {
+        String[] snippets = {"break;", "return;", "i++;", "return null;"};
+        for (String compressed : new String[]{"false", "true"}) {
+            Properties conf = new Properties();
+            conf.setProperty("compressed", compressed);
+            conf.setProperty("sortedEdgeThreshold", Integer.toString(Integer.MAX_VALUE));
+            Engine chained = initialize(conf, "");
+            String[] found = new String[snippets.length];
+            for (int i = 0; i < snippets.length; i++) {
+                found[i] = chained.find(snippets[i]).toString();
+            }
+            byte[] edges = readFile(conf, "edgeFile");
+            conf.remove("sortedEdgeThreshold");
+            conf.setProperty("rebuildEdges", "true");
+            Engine rebuilt = Engine.instance(conf);
+            rebuilt.perform();
+            assertFalse(Arrays.equals(edges, readFile(conf, "edgeFile")));
+            for (int i = 0; i < snippets.length; i++) {
+                assertEquals(found[i], rebuilt.find(snippets[i]).toString());
+            }
+            Properties conf2 = new Properties();
+            conf2.setProperty("compressed", compressed);
+            Engine sorted = initialize(conf2, "");
+            for (int i = 0; i < snippets.length; i++) {
+                assertEquals(found[i], sorted.find(snippets[i]).toString());
+            }
+        }
+    }
+
+    @Test
+    public void testNodeCache() throws Exception {
+        String[] keys = {"nodeFile", "edgeFile", "posFile", "linearizationFile"};
+        for (String compressed : new String[]{"false", "true"}) {
+            Properties conf = new Properties();
+            conf.setProperty("compressed", compressed);
+            conf.setProperty("batchFileSize", "2");
+            conf.setProperty("nodeCacheSize", "0");
+            Engine uncached = initialize(conf, "");
+            Map<String, byte[]> files = new HashMap<>();
+            for (String key : keys) {
+                if (compressed.equals("true") || !key.equals("linearizationFile")) {
+                    files.put(key, readFile(conf, key));
+                }
+            }
+            String found = uncached.find("break;").toString();
+            for (String size : new String[]{"3", "10000"}) {
+                Properties conf2 = new Properties();
+                conf2.setProperty("compressed", compressed);
+                conf2.setProperty("batchFileSize", "2");
+                conf2.setProperty("nodeCacheSize", size);
+                Engine cached = initialize(conf2, "");
+                for (String key : files.keySet()) {
+                    assertArrayEquals(key, files.get(key), readFile(conf2, key));
+                }
+                assertEquals(found, cached.find("break;").toString());
+            }
+        }
+    }
+
+    @Test
+    public void testLabelTable() {
+        LabelTable labels = new LabelTable();
+        int assign = labels.enumId("ASSIGN_", AssignExpr.Operator.PLUS);
+        int plus = labels.enumId("", AssignExpr.Operator.PLUS);
+        assertNotEquals(assign, plus);
+        assertEquals("ASSIGN_PLUS", labels.getLabel(assign));
+        assertEquals("PLUS", labels.getLabel(plus));
+        assertEquals(assign, labels.enumId("ASSIGN_", AssignExpr.Operator.PLUS));
+    }
+
+    @Test
+    public void testLabelDictionary() throws Exception {
+        String[] labels = {"IfStmt", "IfStmt_end", "\"\u00e9t\u00e9\"", "x", ""};
+        File file = new File(generateFileName("data", "labels"));
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            for (String label : labels) {
+                out.writeUTF(label);
+            }
+        }
+        LabelDictionary dict = LabelDictionary.load(file);
+        assertEquals(labels.length, dict.size());
+        assertEquals(5, dict.toId("y"));
+        dict.store(file);
+        dict.close();
+        long mapped = MappedFile.getMappedBytes();
+        try (LabelDictionary dict2 = LabelDictionary.load(file)) {
+            assertEquals(mapped + file.length(), MappedFile.getMappedBytes());
+            assertEquals(labels.length + 1, dict2.size());
+            for (int i = 0; i < labels.length; i++) {
+                assertEquals(i, dict2.getId(labels[i]));
+                assertEquals(labels[i], dict2.getLabel(i));
+            }
+            assertEquals(5, dict2.getId("y"));
+            assertEquals(-1, dict2.getId("z"));
+        }
+        assertEquals(mapped, MappedFile.getMappedBytes());
+    }
+
+    @Test
+    public void testMappedFilePageBoundary() throws Exception {
+        String fn = generateFileName("data", "mapped");
+        try (MappedFile mf = MappedFile.initialize(fn, MapMode.READ_WRITE, 10)) {
+            mf.seek(7L);
+            mf.writeLong(0x0102030405060708L);
+            mf.writeInt(-2);
+            mf.writeShort((short) -3);
+            mf.seek(7L);
+            assertEquals(0x0102030405060708L, mf.readLong());
+            assertEquals(-2, mf.readInt());
+            assertEquals(-3, mf.readShort());
+        }
+    }
+
+    @Test
+    public void testMappedFileGrowth() throws Exception {
+        String fn = generateFileName("data", "mapped");
+        File file = new File(fn);
+        long mapped = MappedFile.getMappedBytes();
+        try (MappedFile mf = MappedFile.initialize(fn, MapMode.READ_WRITE, 1 << 20)) {
+            mf.seek(0L);
+            mf.writeLong(1L);
+            assertEquals(MappedFile.CHUNK_SIZE, file.length());
+            mf.seek(200000L);
+            mf.writeLong(2L);
+            assertEquals(4 * MappedFile.CHUNK_SIZE, file.length());
+            mf.seek((1 << 20) - 4);
+            mf.writeLong(3L);
+            assertEquals((1 << 20) + MappedFile.CHUNK_SIZE, file.length());
+        }
+        assertEquals(mapped, MappedFile.getMappedBytes());
+        long length = file.length();
+        try (MappedFile mf = MappedFile.open(fn, MapMode.READ_ONLY, 1 << 20)) {
+            assertEquals(1L, mf.readLong(0L));
+            assertEquals(2L, mf.readLong(200000L));
+            assertEquals(3L, mf.readLong((1 << 20) - 4));
+            try {
+                mf.readLong(length - 4);
+                fail();
+            } catch (EOFException e) {
+                // okay
+            }
+        }
+        assertEquals(length, file.length());
+        MappedFile.setAddressSpaceLimit(mapped + MappedFile.CHUNK_SIZE);
+        try {
+            MappedFile.open(fn, MapMode.READ_ONLY, 1 << 20);
+            fail();
+        } catch (IOException e) {
+            // okay
+        } finally {
+            MappedFile.setAddressSpaceLimit(MappedFile.DEFAULT_ADDRESS_SPACE_LIMIT);
+        }
+    }
+
+    @Test
+    public void testPackedPositions() throws Exception {
+        PackedPositions packed = new PackedPositions(497);
+        int[][] pp = {
+            {0, 5, 10, 9, 12, 30, 3, 5, 40, 5},
+            {0, 5, 11, 9, 11, 20, 3, 5, 40, 5},
+            {0, 5, 8, 9, 8, 20, 3, 5, 40, 5},
+            {0, 7, 100, 1, 100, 8, 90, 5, 120, 5},
+            {1, 2, -1, -1, -1, -1, 3, 5, 40, 5},
+            {1, 2, 50, 9, 50, 20, 45, 5, 60, 5}};
+        for (int[] p : pp) {
+            assertTrue(packed.add(p[0], p[1], p[2], p[3], p[4], p[5], p[6], p[7], p[8], p[9]));
+        }
+        PackedPositions reloaded = new PackedPositions(0);
+        reloaded.load(packed.getBytes(), packed.getSize(), packed.getCount());
+        assertTrue(reloaded.add(1, 2, 51, 9, 51, 20, 45, 5, 60, 5));
+        PackedPositions.Cursor c = reloaded.cursor();
+        for (int[] p : pp) {
+            assertTrue(c.next());
+            assertEquals(p[0], c.getProjectId());
+            assertEquals(p[1], c.getFileId());
+            assertEquals(p[2], c.getBeginLine());
+            assertEquals(p[3], c.getBeginColumn());
+            assertEquals(p[4], c.getEndLine());
+            assertEquals(p[5], c.getEndColumn());
+            assertEquals(p[6], c.getMethodBeginLine());
+            assertEquals(p[7], c.getMethodBeginColumn());
+            assertEquals(p[8], c.getMethodEndLine());
+            assertEquals(p[9], c.getMethodEndColumn());
+        }
+        assertTrue(c.next());
+        assertEquals(51, c.getBeginLine());
+        assertEquals(45, c.getMethodBeginLine());
+        assertFalse(c.next());
+        PackedPositions small = new PackedPositions(8);
+        assertFalse(small.add(0, 5, 10, 9, 12, 30, 3, 5, 40, 5));
+        assertEquals(0, small.getCount());
+    }
+
+    @Test
+    public void testPositionExtents() throws Exception {
+        for (String compressed : new String[]{"false", "true"}) {
+            Path dir = newSourceDir();
+            StringBuilder sb = new StringBuilder("int i = 0;");
+            for (int i = 0; i < 500; i++) {
+                sb.append("\n i++;");
+            }
+            for (int f = 0; f < 12; f++) {
+                writeSource(dir, "F" + f, sb.toString());
+            }
+            Properties conf = new Properties();
+            conf.setProperty("compressed", compressed);
+            conf.setProperty("incremental", "true");
+            conf.setProperty("batchFileSize", "2");
+            Engine eng = index(conf, dir);
+            List<Pos> found = eng.find("i++;");
+            assertEquals(12 * 500, found.size());
+            assertEquals(found.size(), new HashSet<>(sorted(found)).size());
+            writeSource(dir, "F0", "int i = 0;\n i++;");
+            writeSource(dir, "F12", sb.toString());
+            eng.perform();
+            assertEquals(12 * 500 + 1, eng.find("i++;").size());
+        }
+    }
+
+    @Test
+    public void testForEachPosition() {
+        int n = 100000;
+        PPosBlock pb = new PPosBlockPacked();
+        for (int i = 0; i < n; i++) {
+            int line = i % 100 + 1;
+            PPos p = new PPos(0, i / 100, new Position(line, 1), new Position(line + i % 3, 5),
+                    new Position(1, 1), new Position(200, 1));
+            if (!pb.addPos(p)) {
+                pb = pb.toUpperLevelPosBlock(pb);
+                assertTrue(pb.addPos(p));
+            }
+        }
+        assertEquals(n, pb.countPositions());
+        assertEquals(n, pb.countPositions(Integer.MIN_VALUE, Integer.MAX_VALUE));
+        assertEquals((n + 1) / 3, pb.countPositions(2, 2));
+        assertEquals(2 * n / 3 + 1, pb.countPositions(1, 2));
+        List<PPos> found = new ArrayList<>();
+        pb.forEachPosition(2, 2, found::add);
+        assertEquals(pb.countPositions(2, 2), found.size());
+        for (int k = 0; k < found.size(); k++) {
+            int i = 3 * k + 1;
+            PPos p = found.get(k);
+            assertEquals(2, p.getLines());
+            assertEquals(i / 100, p.getFileId());
+            assertEquals(i % 100 + 1, p.getBegin().line);
+        }
+        assertEquals(n, pb.getPositions().length);
+        assertEquals(n / 3, pb.getPositions(3, 3).length);
+    }
+
+    @Test
+    public void testIndexPipeline() throws Exception {
+        Path dir = newSourceDir();
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            writeSource(dir, "F" + i, "int i = " + i + ";");
+            files.add(dir.resolve("F" + i + ".java"));
+        }
+        IndexPipeline<List<String>> pipeline = new IndexPipeline<>(2, 2, 3, 1);
+        List<String> indexed = new ArrayList<>();
+        pipeline.run(files.stream(), sources -> {
+            List<String> contents = new ArrayList<>();
+            for (IndexPipeline.SourceFile f : sources) {
+                contents.add(new String(f.getContent()));
+            }
+            return contents;
+        }, indexed::addAll);
+        assertEquals(25, indexed.size());
+        for (int i = 0; i < 25; i++) {
+            assertTrue(indexed.get(i).contains("int i = " + i + ";"));
+        }
+        for (IndexPipeline.Stage st : pipeline.getStages()) {
+            assertEquals(25, st.getFiles());
+        }
+        for (IndexPipeline.Channel q : pipeline.getQueues()) {
+            assertTrue(q.getMaxDepth() <= q.getCapacity());
+        }
+        try {
+            new IndexPipeline<Void>(2, 1, 2, 1).run(files.stream(), sources -> {
+                throw new IllegalStateException("parse");
+            }, batch -> fail());
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("parse", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testReorderWindow() throws Exception {
+        Path dir = newSourceDir();
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            writeSource(dir, "F" + i, "int i = " + i + ";");
+            files.add(dir.resolve("F" + i + ".java"));
+        }
+        IndexPipeline<Path> pipeline = new IndexPipeline<>(1, 1, 4, 2);
+        List<Path> indexed = new ArrayList<>();
+        pipeline.run(files.stream(), sources -> {
+            Path path = sources.get(0).getPath();
+            if (path.equals(files.get(0))) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return path;
+        }, indexed::add);
+        assertEquals(files, indexed);
+        assertEquals(2, pipeline.getReorderWindow());
+        assertTrue(pipeline.getMaxAhead() >= 1);
+        assertTrue(pipeline.getMaxAhead() <= pipeline.getReorderWindow());
+    }
+
+    @Test
+    public void testBatchSizer() throws Exception {
+        BatchSizer fixed = new BatchSizer(3);
+        assertFalse(fixed.exceeds(3, Long.MAX_VALUE));
+        assertTrue(fixed.exceeds(4, 0L));
+        BatchSizer sizer = new BatchSizer(Integer.MAX_VALUE, 4 << 20, false);
+        assertFalse(sizer.exceeds(1, 20000L));
+        assertTrue(sizer.exceeds(1, 30000L));
+        sizer.record(1, 1000L, 100000L, 0L);
+        assertTrue(sizer.exceeds(1, 20000L));
+        assertEquals(1 << 20, sizer.getTarget());
+        BatchSizer adaptive = new BatchSizer(Integer.MAX_VALUE, 64 << 20, true);
+        assertEquals(16 << 20, adaptive.getTarget());
+        adaptive.record(10, 1000L, 100000L, 1000L);
+        assertEquals(20 << 20, adaptive.getTarget());
+        adaptive.record(10, 1000L, 100000L, 2000L);
+        assertEquals(16 << 20, adaptive.getTarget());
+        Path dir = newSourceDir();
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 400; i++) {
+            padding.append("// padding padding padding\n");
+        }
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            writeSource(dir, "F" + i, padding + "int i = 0; i++;");
+            files.add(dir.resolve("F" + i + ".java"));
+        }
+        IndexPipeline<Integer> pipeline = new IndexPipeline<>(
+                new BatchSizer(Integer.MAX_VALUE, 4 << 20, false), 1, 2, 1);
+        List<Integer> sizes = new ArrayList<>();
+        pipeline.run(files.stream(), List::size, sizes::add);
+        assertEquals(5, sizes.size());
+        assertEquals(5, pipeline.getBatchSizer().getRecords().size());
+        for (String compressed : new String[]{"false", "true"}) {
+            Properties conf = new Properties();
+            conf.setProperty("compressed", compressed);
+            conf.setProperty("batchMemoryBudget", "1");
+            conf.setProperty("adaptiveBatches", "true");
+            Engine eng = index(conf, dir);
+            try (Searcher searcher = eng.openSearcher()) {
+                assertEquals(10, searcher.find("i++;").size());
+                assertEquals(10, searcher.find("int i = 0;").size());
+            }
+        }
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        BatchSizer sizer = new BatchSizer(1, 100000L, false);
+        assertEquals(40000L, sizer.reserve(1000L));
+        assertEquals(40000L, sizer.reserve(1000L));
+        Thread t = new Thread(() -> {
+            try {
+                sizer.reserve(1000L);
+            } catch (InterruptedException e) {
+                // the test is finished
+            }
+        });
+        t.start();
+        t.join(200);
+        assertTrue(t.isAlive());
+        sizer.release(40000L);
+        t.join(1000);
+        assertFalse(t.isAlive());
+        assertEquals(80000L, sizer.getMaxInFlight());
+        assertEquals(200000L, new BatchSizer(1, 100000L, false).reserve(5000L));
+        Path dir = newSourceDir();
+        List<Path> files = new ArrayList<>();
+        for (int i = 10; i < 22; i++) {
+            writeSource(dir, "F" + i, "int i = 0;");
+            files.add(dir.resolve("F" + i + ".java"));
+        }
+        long bytes = 40 * Files.size(files.get(0));
+        BatchSizer budget = new BatchSizer(1, 3 * bytes + 1, false);
+        IndexPipeline<List<IndexPipeline.SourceFile>> pipeline = new IndexPipeline<>(budget, 1, 4, 4);
+        List<Path> indexed = new ArrayList<>();
+        pipeline.run(files.stream(), sources -> {
+            if (sources.get(0).getPath().equals(files.get(0))) {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return sources;
+        }, sources -> 40L * sources.get(0).getContent().length,
+                sources -> indexed.add(sources.get(0).getPath()));
+        assertEquals(files, indexed);
+        assertEquals(3 * bytes, budget.getMaxInFlight());
+    }
+
+    @Test
+    public void testSharedRenameStrategy() throws Exception {
+        Random random = new Random(1);
+        String[] names = {"a", "b", "c", "d", "e"};
+        SharedRenameStrategy shared = new SharedRenameStrategy();
+        List<RenameStrategy> strategies = new ArrayList<>();
+        List<Integer> blocks = new ArrayList<>();
+        blocks.add(0);
+        int[] counts = new int[64];
+        for (int step = 0; step < 100000; step++) {
+            String name = names[random.nextInt(names.length)];
+            int blockCount = blocks.get(blocks.size() - 1);
+            switch (random.nextInt(6)) {
+                case 0:
+                    if (strategies.size() < 30) {
+                        shared.push();
+                        strategies.add(new RenameStrategy());
+                        blocks.add(0);
+                    }
+                    break;
+                case 1:
+                    if (blockCount == 0 && strategies.size() > 0) {
+                        shared.pop();
+                        strategies.remove(strategies.size() - 1);
+                        blocks.remove(blocks.size() - 1);
+                    }
+                    break;
+                case 2:
+                    shared.enterBlock();
+                    strategies.forEach(rs -> rs.enterBlock());
+                    blocks.set(blocks.size() - 1, blockCount + 1);
+                    break;
+                case 3:
+                    if (blockCount > 0) {
+                        shared.exitBlock();
+                        strategies.forEach(rs -> rs.exitBlock());
+                        blocks.set(blocks.size() - 1, blockCount - 1);
+                    }
+                    break;
+                case 4:
+                    shared.declareVar(name);
+                    strategies.forEach(rs -> rs.declareVar(name, null));
+                    break;
+                default:
+                    shared.rename(name, counts);
+                    for (int i = 0; i < strategies.size(); i++) {
+                        RenameStrategy rs = strategies.get(i);
+                        String rid = rs.rename(name);
+                        if (rid == null) {
+                            rid = rs.declareGlobal(name);
+                        }
+                        assertEquals("i" + counts[i], rid);
+                    }
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalIndexing() throws Exception {
+        String[] snippets = {"a++;", "return;", "int a = 1;", "System.out.println(a);", "a--;"};
+        for (String compressed : new String[]{"false", "true"}) {
+            Path dir = newSourceDir();
+            writeSource(dir, "A", "int x = 1; x++; System.out.println(x);");
+            writeSource(dir, "B", "int y = 1; y++; return;");
+            writeSource(dir, "C", "int z = 1; System.out.println(z);");
+            Properties conf = new Properties();
+            conf.setProperty("compressed", compressed);
+            conf.setProperty("incremental", "true");
+            Engine eng = index(conf, dir);
+            assertEquals(2, eng.find("a++;").size());
+            eng.perform();
+            assertEquals(2, eng.find("a++;").size());
+            writeSource(dir, "A", "int x = 1; x--; System.out.println(x);");
+            Files.delete(dir.resolve("B.java"));
+            writeSource(dir, "D", "int w = 1; w++; return;");
+            eng.perform();
+            Properties conf2 = new Properties();
+            conf2.setProperty("compressed", compressed);
+            Engine full = index(conf2, dir);
+            for (String snippet : snippets) {
+                assertEquals(sorted(full.find(snippet)), sorted(eng.find(snippet)));
+            }
+            assertEquals(1, eng.find("a++;").size());
+            assertEquals(1, eng.find("a--;").size());
+        }
+    }
+
+    @Test
+    public void testIncrementalParseFailure() throws Exception {
+        for (String compressed : new String[]{"false", "true"}) {
+            Path dir = newSourceDir();
+            writeSource(dir, "A", "int x = 1; x++;");
+            writeSource(dir, "B", "int y = ;");
+            Properties conf = new Properties();
+            conf.setProperty("compressed", compressed);
+            conf.setProperty("incremental", "true");
+            Engine eng = index(conf, dir);
+            assertEquals(1, eng.find("a++;").size());
+            writeSource(dir, "B", "int y = 1; y++;");
+            eng.perform();
+            assertEquals(2, eng.find("a++;").size());
+            writeSource(dir, "A", "int x = 1; x++");
+            eng.perform();
+            assertEquals(1, eng.find("a++;").size());
+            writeSource(dir, "A", "int x = 1; x++;");
+            eng.perform();
+            assertEquals(2, eng.find("a++;").size());
+            eng.perform();
+            assertEquals(2, eng.find("a++;").size());
+        }
+    }
+
+    @Test
+    public void testDetectClones() throws Exception {
+        Set<String> plain = detectClones("false", 1, 1);
+        Set<String> compressed = detectClones("true", 1, 1);
+        assertFalse(plain.isEmpty());
+        assertEquals(plain, compressed);
+        Set<String> large = detectClones("false", 3, 1);
+        assertTrue(large.size() < plain.size());
+        assertEquals(large, detectClones("true", 3, 1));
+        assertEquals(plain, detectClones("false", 1, 4));
+        assertEquals(compressed, detectClones("true", 1, 4));
+    }
+
+    @Test
+    public void testSequenceClones() throws Exception {
+        for (String compressed : new String[]{"false", "true"}) {
+            Path dir = newSourceDir();
+            writeSource(dir, "A", "int x = 1;\n x++;\n System.out.println(x);\n return;");
+            writeSource(dir, "B", "int y = 1;\n y++;\n System.out.println(y);\n foo();");
+            writeSource(dir, "C", "int z = 1;\n z--;\n System.out.println(z);");
+            Properties conf = new Properties();
+            conf.setProperty("compressed", compressed);
+            Engine eng = index(conf, dir);
+            List<List<Pos>> classes = new ArrayList<>();
+            assertEquals(1, eng.detectSequenceClones(1, Integer.MAX_VALUE, classes::add));
+            List<Pos> clones = classes.get(0);
+            assertEquals(2, clones.size());
+            for (Pos pos : clones) {
+                assertEquals(3, pos.getLines());
+                assertTrue(pos.getFile().endsWith("A.java") || pos.getFile().endsWith("B.java"));
+            }
+            assertEquals(0, eng.detectSequenceClones(4, Integer.MAX_VALUE, classes::add));
+        }
+    }
+
+    private Set<String> detectClones(String compressed, int minSize, int threads) throws Exception {
+        Properties conf = new Properties();
+        conf.setProperty("compressed", compressed);
+        conf.setProperty("batchFileSize", "7");
+        conf.setProperty("traversalThreads", Integer.toString(threads));
+        Engine eng = initialize(conf, "");
+        Set<String> classes = new HashSet<>();
+        long count = eng.detectClones(minSize, Integer.MAX_VALUE, clones -> {
+            assertTrue(clones.size() >= 2);
+            for (Pos pos : clones) {
+                assertTrue(pos.getLines() >= minSize);
+            }
+            classes.add(sorted(clones).toString());
+        });
+        assertEquals(count, classes.size());
+        return classes;
+    }
+
+    @Test
+    public void testConcurrentSearcher() throws Exception {
+        String[] snippets = {"break;", "return;", "i++;", "return null;", "x = y;"};
+        for (String compressed : new String[]{"false", "true"}) {
+            for (String cacheSize : new String[]{"0", "100"}) {
+                Properties conf = new Properties();
+                conf.setProperty("compressed", compressed);
+                conf.setProperty("nodeCacheSize", cacheSize);
+                Engine eng = initialize(conf, "");
+                List<String> expected = new ArrayList<>();
+                for (String snippet : snippets) {
+                    expected.add(eng.find(snippet).toString());
+                }
+                try (Searcher searcher = eng.openSearcher()) {
+                    ExecutorService executor = Executors.newFixedThreadPool(8);
+                    List<Future<Boolean>> results = new ArrayList<>();
+                    for (int t = 0; t < 8; t++) {
+                        int first = t;
+                        results.add(executor.submit(() -> {
+                            for (int i = 0; i < 200; i++) {
+                                int k = (first + i) % snippets.length;
+                                if (!expected.get(k).equals(searcher.find(snippets[k]).toString())) {
+                                    return false;
+                                }
+                            }
+                            return true;
+                        }));
+                    }
+                    for (Future<Boolean> r : results) {
+                        assertTrue(r.get());
+                    }
+                    executor.shutdown();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReadOnlyTrie() throws Exception {
+        String[] snippets = {"break;", "return;", "i++;", "return null;", "x = y;"};
+        for (String compressed : new String[]{"false", "true"}) {
+            Properties conf = new Properties();
+            conf.setProperty("compressed", compressed);
+            Engine eng = initialize(conf, "");
+            Parser parser = Parser.instantiate(conf);
+            List<List<String>> tokens = new ArrayList<>();
+            List<String> expected = new ArrayList<>();
+            for (String snippet : snippets) {
+                tokens.add(parser.parseRename(snippet, true));
+                expected.add(eng.find(snippet).toString());
+            }
+            int nodeFilePageSize = Integer.parseInt(conf.getProperty("nodeFilePageSize"));
+            int edgeFilePageSize = Integer.parseInt(conf.getProperty("edgeFilePageSize"));
+            int posFilePageSize = Integer.parseInt(conf.getProperty("posFilePageSize"));
+            PIndex trie;
+            if (compressed.equals("true")) {
+                CPTrie t = CPTrie.fromFiles(CPTrie.Mode.READ_ONLY,
+                        conf.getProperty("nodeFile"), nodeFilePageSize,
+                        conf.getProperty("edgeFile"), edgeFilePageSize,
+                        conf.getProperty("posFile"), posFilePageSize,
+                        conf.getProperty("projectFile"), conf.getProperty("pathFile"),
+                        conf.getProperty("labelFile"), conf.getProperty("linearizationFile"),
+                        conf.getProperty("nextStmtMapFile"));
+                t.getNodeCache().setCapacity(100);
+                trie = t;
+            } else {
+                PTrie t = PTrie.fromFiles(PTrie.Mode.READ_ONLY,
+                        conf.getProperty("nodeFile"), nodeFilePageSize,
+                        conf.getProperty("edgeFile"), edgeFilePageSize,
+                        conf.getProperty("posFile"), posFilePageSize,
+                        conf.getProperty("projectFile"), conf.getProperty("pathFile"),
+                        conf.getProperty("labelFile"), conf.getProperty("nextStmtMapFile"));
+                t.getNodeCache().setCapacity(100);
+                trie = t;
+            }
+            try (AutoCloseable c = (AutoCloseable) trie) {
+                ExecutorService executor = Executors.newFixedThreadPool(8);
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    int first = t;
+                    results.add(executor.submit(() -> {
+                        for (int i = 0; i < 500; i++) {
+                            int k = (first + i) % snippets.length;
+                            if (!expected.get(k).equals(trie.find(tokens.get(k)).toString())) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }));
+                }
+                for (Future<Boolean> r : results) {
+                    assertTrue(r.get());
+                }
+                executor.shutdown();
+                if (trie instanceof PTrie) {
+                    PNodeCache cache = ((PTrie) trie).getNodeCache();
+                    assertEquals(0L, cache.getHits() + cache.getMisses());
+                } else {
+                    CPNodeCache cache = ((CPTrie) trie).getNodeCache();
+                    assertEquals(0L, cache.getHits() + cache.getMisses());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testQueryServer() throws Exception {
+        for (String compressed : new String[]{"false", "true"}) {
+            Properties conf = new Properties();
+            conf.setProperty("compressed", compressed);
+            Engine eng = initialize(conf, "");
+            List<Pos> breaks = eng.find("break;");
+            List<Pos> ifs = eng.find("if (x) {\n return;\n}");
+            String literal = "s = \"a\\nb\";";
+            List<Pos> literals = eng.find(literal);
+            QueryServer server = new QueryServer(eng, conf);
+            StringWriter sw = new StringWriter();
+            try (Searcher searcher = eng.openSearcher()) {
+                String input = "break;\n\nif (x) {\n return;\n}\n\n\n" + literal
+                        + "\n\n:stats\n:quit\nbreak;\n";
+                server.serve(searcher, new BufferedReader(new StringReader(input)), new PrintWriter(sw));
+            }
+            List<String> lines = new ArrayList<>(Arrays.asList(sw.toString().split("\\R")));
+            assertEquals(Integer.toString(breaks.size()), lines.remove(0));
+            for (Pos pos : breaks) {
+                assertEquals(pos.toString(), lines.remove(0));
+            }
+            assertEquals(Integer.toString(ifs.size()), lines.remove(0));
+            for (Pos pos : ifs) {
+                assertEquals(pos.toString(), lines.remove(0));
+            }
+            assertEquals(Integer.toString(literals.size()), lines.remove(0));
+            for (Pos pos : literals) {
+                assertEquals(pos.toString(), lines.remove(0));
+            }
+            assertTrue(lines.remove(0).startsWith("queries: 3, p50: "));
+            assertTrue(lines.isEmpty());
+            assertEquals(3, server.getLatencies().getCount());
+        }
+    }
+
+    @Test
+    public void testQueryServerClose() throws Exception {
+        Properties conf = new Properties();
+        conf.setProperty("compressed", "false");
+        Engine eng = initialize(conf, "");
+        int expected = eng.find("break;").size();
+        conf.setProperty("serverPort", "0");
+        QueryServer server = new QueryServer(eng, conf);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        Future<?> running = executor.submit(() -> {
+            server.run();
+            return null;
+        });
+        while (server.getLocalPort() < 0) {
+            assertFalse(running.isDone());
+            Thread.sleep(10);
+        }
+        int port = server.getLocalPort();
+        AtomicInteger answered = new AtomicInteger();
+        List<Future<?>> clients = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            clients.add(executor.submit(() -> {
+                try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+                        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                        PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+                    while (true) {
+                        out.print("break;\n\n");
+                        out.flush();
+                        String line = in.readLine();
+                        if (line == null) {
+                            break;
+                        }
+                        assertEquals(Integer.toString(expected), line);
+                        for (int k = 0; k < expected; k++) {
+                            assertNotNull(in.readLine());
+                        }
+                        answered.incrementAndGet();
+                    }
+                } catch (SocketException e) {
+                    // the session was ended by the server
+                }
+                return null;
+            }));
+        }
+        while (answered.get() < 40) {
+            Thread.sleep(5);
+        }
+        server.close();
+        running.get(30, TimeUnit.SECONDS);
+        for (Future<?> c : clients) {
+            c.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assertEquals(-1, server.getLocalPort());
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            fail();
+        } catch (IOException e) {
+            // okay
+        }
+    }
+
+    @Test
+    public void testQueryServerStop() throws Exception {
+        Properties conf = new Properties();
+        conf.setProperty("compressed", "false");
+        Engine eng = initialize(conf, "");
+        QueryServer server = new QueryServer(eng, conf);
+        InputStream stdin = System.in;
+        PipedOutputStream input = new PipedOutputStream();
+        System.setIn(new PipedInputStream(input));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> running = executor.submit(() -> {
+                server.run();
+                return null;
+            });
+            Thread.sleep(200);
+            assertFalse(running.isDone());
+            // the shutdown hook must not wait for the standard input
+            executor.submit(server::stop).get(2, TimeUnit.SECONDS);
+            input.close();
+            running.get(30, TimeUnit.SECONDS);
+        } finally {
+            System.setIn(stdin);
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentile(99));
+        for (int i = 1; i <= 100000; i++) {
+            h.record(i * 1000L);
+        }
+        assertEquals(100000, h.getCount());
+        assertEquals(100000, h.getMax());
+        for (double p : new double[]{1, 50, 90, 99, 99.9}) {
+            double expected = p * 1000;
+            long actual = h.getPercentile(p);
+            assertTrue(actual >= expected);
+            assertTrue(actual <= expected * 1.04);
+        }
+        assertEquals(100000, h.getPercentile(100));
+    }
+
+    @Test
+    public void testBatchFind() throws Exception {
+        List<String> snippets = Arrays.asList("return;", "return null;", "i++;", "return x;",
+                "break;", "unknownMethod(unknownArgument);", "x = y;", "return;",
+                "if (x) {\n return;\n}", "if (x) {\n break;\n}", "i++;", "continue;");
+        for (String compressed : new String[]{"false", "true"}) {
+            Properties conf = new Properties();
+            conf.setProperty("compressed", compressed);
+            Engine eng = initialize(conf, "");
+            List<List<Pos>> found = eng.find(snippets);
+            assertEquals(snippets.size(), found.size());
+            for (int i = 0; i < snippets.size(); i++) {
+                assertEquals(eng.find(snippets.get(i)).toString(), found.get(i).toString());
+            }
+            assertFalse(found.get(0).isEmpty());
+        }
+    }
+
+    @Test
+    public void testNextStmtMap() throws Exception {
+        for (String compressed : new String[]{"false", "true"}) {
+            Path dir = newSourceDir();
+            writeSource(dir, "A", "int x = 1; x++; System.out.println(x);");
+            writeSource(dir, "B", "int y = 1; y++; return;");
+            Properties conf = new Properties();
+            conf.setProperty("compressed", compressed);
+            conf.setProperty("incremental", "true");
+            conf.setProperty("batchFileSize", "1");
+            Engine eng = index(conf, dir);
+            try (Searcher searcher = eng.openSearcher()) {
+                Pos first = findIn(searcher, "int x = 1;", "A");
+                Pos second = searcher.getNextStmt(first);
+                assertEquals(findIn(searcher, "x++;", "A"), second);
+                assertEquals(findIn(searcher, "System.out.println(x);", "A"), searcher.getNextStmt(second));
+                assertEquals(findIn(searcher, "y++;", "B"), searcher.getNextStmt(findIn(searcher, "int y = 1;", "B")));
+                assertNull(searcher.getNextStmt(findIn(searcher, "return;", "B")));
+            }
+            writeSource(dir, "A", "int x = 1; x--;");
+            eng.perform();
+            try (Searcher searcher = eng.openSearcher()) {
+                Pos second = searcher.getNextStmt(findIn(searcher, "int x = 1;", "A"));
+                assertEquals(findIn(searcher, "x--;", "A"), second);
+                assertNull(searcher.getNextStmt(second));
+            }
+        }
+    }
+
+    @Test
+    public void testIngestionPolicy() throws Exception {
+        for (String compressed : new String[]{"false", "true"}) {
+            Path dir = newSourceDir();
+            for (String fn : new String[]{"A", "B", "C", "D"}) {
+                writeSource(dir, fn, "int i = 0; i++; i++; i++; while (true) { break; }");
+            }
+            Properties conf = new Properties();
+            conf.setProperty("compressed", compressed);
+            conf.setProperty("batchFileSize", "1");
+            conf.setProperty("skipStatements", "BreakStmt, EmptyStmt");
+            conf.setProperty("maxEdgePositions", "5");
+            Engine eng = index(conf, dir);
+            try (Searcher searcher = eng.openSearcher()) {
+                assertEquals(0, searcher.find("break;").size());
+                assertEquals(0L, searcher.count("break;"));
+                assertEquals(5, searcher.find("i++;").size());
+                assertEquals(12L, searcher.count("i++;"));
+                assertEquals(4, searcher.find("int i = 0;").size());
+                assertEquals(4L, searcher.count("int i = 0;"));
+            }
+            conf.setProperty("minStatementTokens", "100");
+            eng = Engine.instance(conf);
+            eng.perform();
+            try (Searcher searcher = eng.openSearcher()) {
+                assertEquals(0, searcher.find("i++;").size());
+                assertEquals(0L, searcher.count("i++;"));
+            }
+            conf.setProperty("skipStatements", "Break");
+            try {
+                Engine.instance(conf);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // okay
+            }
+        }
+    }
+
+    private Pos findIn(Searcher searcher, String code, String name) throws Exception {
+        for (Pos pos : searcher.find(code)) {
+            if (pos.getFile().endsWith(name + ".java")) {
+                return pos;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testStringTable() throws Exception {
+        File file = new File(generateFileName("data", "strings"));
+        StringTable.initialize(file);
+        List<String> expected = new ArrayList<>();
+        try (StringTable table = StringTable.load(file)) {
+            for (int i = 0; i < 1000; i++) {
+                String s = "dir" + (i % 10) + "/File\u00e9" + i + ".java";
+                assertEquals(i, table.add(s));
+                expected.add(s);
+            }
+            assertEquals(1000, table.add("dir0/File\u00e90.java"));
+            expected.add("dir0/File\u00e90.java");
+            table.store();
+        }
+        try (StringTable table = StringTable.load(file)) {
+            assertEquals(expected.size(), table.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i), table.get(i));
+            }
+            assertEquals(1000, table.getId("dir0/File\u00e90.java"));
+            assertEquals(7, table.getId("dir7/File\u00e97.java"));
+            assertEquals(-1, table.getId("missing"));
+            // appended but not stored, so the index is rebuilt
+            assertEquals(1001, table.add("new"));
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+            out.writeShort(100);
+            out.write(new byte[10]);
+        }
+        try (StringTable table = StringTable.load(file)) {
+            assertEquals(1002, table.size());
+            assertEquals(1001, table.getId("new"));
+            assertEquals(1002, table.add("newer"));
+            table.store();
+        }
+        try (StringTable table = StringTable.load(file)) {
+            assertEquals(1003, table.size());
+            assertEquals("newer", table.get(1002));
+            assertEquals(1002, table.getId("newer"));
+        }
+        File old = new File(generateFileName("data", "strings"));
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(old))) {
+            out.writeUTF("a");
+            out.writeUTF("b");
+            out.writeUTF("a");
+        }
+        try (StringTable table = StringTable.load(old)) {
+            assertEquals(3, table.size());
+            assertEquals(2, table.getId("a"));
+            assertEquals(1, table.getId("b"));
+        }
+    }
+
+    private void writeSource(Path dir, String name, String body) throws Exception {
+        String src = String.format("class %s {%n    void m() {%n        %s%n    }%n}%n", name, body);
+        Path file = dir.resolve(name + ".java");
+        Files.write(file, src.getBytes("UTF-8"));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + rand.nextInt(1000000)));
+    }
+
+    private List<String> sorted(List<Pos> pp) {
+        List<String> ss = new ArrayList<>();
+        for (Pos p : pp) {
+            ss.add(p.toString());
+        }
+        ss.sort(null);
+        return ss;
+    }
 }